@@ -61,6 +61,18 @@ public class DecatonTaskProducer implements AutoCloseable {
     }
 
     public CompletableFuture<PutTaskResult> sendRequest(String key, DecatonTaskRequest request) {
+        return sendRequest(topic, key, request);
+    }
+
+    /**
+     * Put a request into the given topic rather than the one given to the constructor, sharing the producer.
+     *
+     * @param topic the topic to put the request.
+     * @param key the key of the request.
+     * @param request the request to put.
+     * @return a {@link CompletableFuture} which completes when the request is stored.
+     */
+    public CompletableFuture<PutTaskResult> sendRequest(String topic, String key, DecatonTaskRequest request) {
         TaskMetadataProto taskMeta = Objects.requireNonNull(request.getMetadata(), "request.metadata");
         ProducerRecord<String, DecatonTaskRequest> record =
                 new ProducerRecord<>(topic, null, taskMeta.getTimestampMillis(), key, request);
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.TopicPartition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.linecorp.decaton.processor.DecatonProcessor;
+import com.linecorp.decaton.processor.DecatonTask;
+import com.linecorp.decaton.processor.TaskMetadata;
+
+/**
+ * Benchmark overhead of passing a task through a chain of {@link DecatonProcessor}s.
+ *
+ * Every processor but the last one just pushes the task to the downstream synchronously, simulating a chain
+ * that consists of trivial stages like filtering in front of the actual processor.
+ * Run this with "-prof gc" to see allocations for each task.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 2)
+public class ProcessorChainBenchmark {
+    private static final TopicPartition topicPartition = new TopicPartition("topic", 0);
+    private static final byte[] TASK = new byte[16];
+
+    @State(Scope.Thread)
+    public static class BmState {
+        @Param({ "1", "3", "5" })
+        int stages;
+
+        @Param({ "false", "true" })
+        boolean reuseContexts;
+
+        ProcessingContextImpl<byte[]> headContext;
+        TaskRequest request;
+        DecatonTask<byte[]> task;
+
+        @Setup
+        public void setUp() {
+            List<DecatonProcessor<byte[]>> processors = new ArrayList<>();
+            for (int i = 0; i < stages - 1; i++) {
+                processors.add((context, task) -> context.push(task));
+            }
+            processors.add((context, task) -> {
+                // noop
+            });
+
+            headContext = new ProcessingContextImpl<>("subscription", processors, -1, null, null, null, null,
+                                                      reuseContexts);
+            request = new TaskRequest(topicPartition, 1, null, "key", null);
+            task = new DecatonTask<>(TaskMetadata.builder().build(), TASK, null);
+        }
+    }
+
+    @Benchmark
+    public CompletableFuture<Void> processorChain(BmState state) throws InterruptedException {
+        ProcessingContextImpl<byte[]> context = state.headContext;
+        context.reset(state.request, state.task);
+        return context.push(TASK);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark contention on a {@link RateLimiter} shared by multiple {@link ProcessorUnit}s of a partition.
+ *
+ * Each thread keeps reserving a permit of the same limiter as {@link ExecutionScheduler} does for every task.
+ * Permits are only reserved but not waited for, so that the result reflects the cost of the reservation
+ * itself rather than the configured rate.
+ * To compare with another implementation, run this benchmark on the revision which has it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 2)
+public class RateLimiterBenchmark {
+    private static final long RATE = RateLimiter.MAX_RATE;
+
+    @State(Scope.Benchmark)
+    public static class BmState {
+        final RateLimiter limiter = new AveragingRateLimiter(RATE, 1.0d, System::nanoTime);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long averagingRateLimiter_1Thread(BmState state) {
+        return state.limiter.reserve(1);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long averagingRateLimiter_8Threads(BmState state) {
+        return state.limiter.reserve(1);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long averagingRateLimiter_64Threads(BmState state) {
+        return state.limiter.reserve(1);
+    }
+}
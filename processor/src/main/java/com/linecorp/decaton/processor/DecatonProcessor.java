@@ -30,6 +30,9 @@ public interface DecatonProcessor<T> extends AutoCloseable {
      * processing finished successfully or failed.
      * If {@link ProcessingContext#deferCompletion()} hasn't called at the time this method returns, upper
      * frame completes the offset implicitly so the implementation doesn't need to call it explicitly.
+     * Note that when {@link ProcessorProperties#CONFIG_PROCESSING_CONTEXT_REUSE_ENABLED} is enabled, the given
+     * {@link ProcessingContext} must not be used after this method returns in such case, as upper frame reuses
+     * it to process subsequent tasks.
      * When this method throw an exception, upper frame logs it as uncaught exception and continues to
      * process the next record. However, if this method throws {@link InterruptedException} during shutdown
      * sequence, currently processed offset won't be committed.
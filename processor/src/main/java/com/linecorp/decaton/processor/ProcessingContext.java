@@ -19,6 +19,7 @@ package com.linecorp.decaton.processor;
 import java.util.concurrent.CompletableFuture;
 
 import com.linecorp.decaton.processor.runtime.LoggingContext;
+import com.linecorp.decaton.processor.runtime.StateStore;
 
 public interface ProcessingContext<T> {
     /**
@@ -85,4 +86,19 @@ public interface ProcessingContext<T> {
      * @throws InterruptedException when processing gets interrupted.
      */
     CompletableFuture<Void> retry() throws InterruptedException;
+
+    /**
+     * Returns the {@link StateStore} of the partition which the task currently being processed belongs to.
+     * The store is shared by all processors and threads of the partition, and changes made through it are
+     * persisted once the offset of the task gets committed.
+     * The store is local to the instance and isn't rebalance-safe: it's restored only when the partition is
+     * assigned to the same instance again, and starts empty on other instances.
+     * @return the {@link StateStore} of the partition.
+     * @throws IllegalStateException when state store isn't configured by
+     * {@link ProcessorProperties#CONFIG_STATE_STORE_DIR}, which is always the case for implementations not
+     * providing state store.
+     */
+    default StateStore stateStore() {
+        throw new IllegalStateException("state store isn't configured for this processor");
+    }
 }
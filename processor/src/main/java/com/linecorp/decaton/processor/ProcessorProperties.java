@@ -22,6 +22,10 @@ import java.util.List;
 import java.util.Map;
 
 import com.linecorp.decaton.processor.runtime.RateLimiter;
+import com.linecorp.decaton.processor.runtime.RetryConfig;
+import com.linecorp.decaton.processor.runtime.StateStore;
+import com.linecorp.decaton.processor.runtime.SubscriptionBuilder;
+import com.linecorp.decaton.processor.runtime.TokenStore;
 
 /**
  * Collection of properties that can be configured to adjust {@link DecatonProcessor}'s behavior.
@@ -60,6 +64,175 @@ public class ProcessorProperties extends AbstractDecatonProperties {
                                       v -> v instanceof Long
                                            && RateLimiter.UNLIMITED <= (long) v
                                            && (long) v <= RateLimiter.MAX_RATE);
+    /**
+     * Maximum rate of processing tasks in second, in total of all partitions of each topic assigned to the
+     * subscription instance.
+     * This is applied in addition to {@link #CONFIG_PROCESSING_RATE}, and the budget is shared by the
+     * partitions currently assigned, so it's kept regardless of the number of assigned partitions.
+     *
+     * If the value N is
+     *   - (0, 1,000,000]: Do the best to process tasks as much as N per second in total.
+     *   - -1: Unlimited
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_PROCESSING_RATE_PER_TOPIC =
+            PropertyDefinition.define("decaton.processing.rate.per.topic", Long.class,
+                                      RateLimiter.UNLIMITED,
+                                      v -> v instanceof Long
+                                           && (RateLimiter.UNLIMITED == (long) v || 0 < (long) v)
+                                           && (long) v <= RateLimiter.MAX_RATE);
+    /**
+     * Maximum rate of processing tasks in second, in total of all partitions assigned to the subscription
+     * instance.
+     * This is applied in addition to {@link #CONFIG_PROCESSING_RATE} and {@link #CONFIG_PROCESSING_RATE_PER_TOPIC},
+     * and the budget is shared by the partitions currently assigned, so it's kept regardless of the number of
+     * assigned partitions.
+     *
+     * If the value N is
+     *   - (0, 1,000,000]: Do the best to process tasks as much as N per second in total.
+     *   - -1: Unlimited
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_PROCESSING_RATE_PER_SUBSCRIPTION =
+            PropertyDefinition.define("decaton.processing.rate.per.subscription", Long.class,
+                                      RateLimiter.UNLIMITED,
+                                      v -> v instanceof Long
+                                           && (RateLimiter.UNLIMITED == (long) v || 0 < (long) v)
+                                           && (long) v <= RateLimiter.MAX_RATE);
+    /**
+     * Maximum rate of processing tasks in second, in total of all subscription instances sharing the
+     * {@link TokenStore} given through {@link SubscriptionBuilder#tokenStore}.
+     * Instances share the bucket named after the subscription id, so instances of the same consumer group
+     * should have the same subscription id.
+     * This is applied in addition to other rate limits, and is ignored unless the token store is given.
+     *
+     * If the value N is
+     *   - (0, 1,000,000]: Do the best to process tasks as much as N per second in total.
+     *   - -1: Unlimited
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_PROCESSING_RATE_PER_CLUSTER =
+            PropertyDefinition.define("decaton.processing.rate.per.cluster", Long.class,
+                                      RateLimiter.UNLIMITED,
+                                      v -> v instanceof Long
+                                           && (RateLimiter.UNLIMITED == (long) v || 0 < (long) v)
+                                           && (long) v <= RateLimiter.MAX_RATE);
+    /**
+     * The number of permits leased from the {@link TokenStore} at once for
+     * {@link #CONFIG_PROCESSING_RATE_PER_CLUSTER}.
+     * Larger value reduces accesses to the store but makes the rate less smooth among instances.
+     *
+     * Reloadable: no
+     */
+    public static final PropertyDefinition<Integer> CONFIG_PROCESSING_RATE_LEASE_PERMITS =
+            PropertyDefinition.define("decaton.processing.rate.lease.permits", Integer.class, 100,
+                                      v -> v instanceof Integer && (Integer) v > 0);
+    /**
+     * Maximum rate of processing tasks in second, for each key of tasks.
+     * This is applied in addition to other rate limits, so that a few keys flooding a partition don't starve
+     * other keys. Throttled tasks are deferred without blocking tasks of other keys.
+     * Tasks without key aren't limited by this.
+     *
+     * If the value N is
+     *   - (0, 1,000,000]: Do the best to process tasks as much as N per second for each key.
+     *   - -1: Unlimited
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_PROCESSING_RATE_PER_KEY =
+            PropertyDefinition.define("decaton.processing.rate.per.key", Long.class,
+                                      RateLimiter.UNLIMITED,
+                                      v -> v instanceof Long
+                                           && (RateLimiter.UNLIMITED == (long) v || 0 < (long) v)
+                                           && (long) v <= RateLimiter.MAX_RATE);
+    /**
+     * The number of keys to hold the state of {@link #CONFIG_PROCESSING_RATE_PER_KEY} for each processor thread.
+     * The state takes 16 bytes for each key. When more keys than this are processed within a second, some keys
+     * may be limited loosely.
+     *
+     * Reloadable: no
+     */
+    public static final PropertyDefinition<Integer> CONFIG_PROCESSING_RATE_PER_KEY_CAPACITY =
+            PropertyDefinition.define("decaton.processing.rate.per.key.capacity", Integer.class, 16384,
+                                      v -> v instanceof Integer && (Integer) v > 0);
+    /**
+     * Controls whether to adjust the rate of each partition by the feedback of completed tasks.
+     * The rate is increased step by step while the average of {@code tasks.complete.duration} and the ratio of
+     * failed tasks stay under {@link #CONFIG_PROCESSING_RATE_ADAPTIVE_LATENCY_TARGET_MS} and
+     * {@link #CONFIG_PROCESSING_RATE_ADAPTIVE_ERROR_PERCENT}, and decreased multiplicatively once either of
+     * them exceeds the target.
+     * {@link #CONFIG_PROCESSING_RATE} is used as the ceiling of the rate, and 0 still stops processing.
+     *
+     * Reloadable: no
+     */
+    public static final PropertyDefinition<Boolean> CONFIG_PROCESSING_RATE_ADAPTIVE_ENABLED =
+            PropertyDefinition.define("decaton.processing.rate.adaptive.enabled", Boolean.class, false,
+                                      v -> v instanceof Boolean);
+    /**
+     * Target of the average time in milliseconds to complete tasks, for adaptive rate limiting.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_PROCESSING_RATE_ADAPTIVE_LATENCY_TARGET_MS =
+            PropertyDefinition.define("decaton.processing.rate.adaptive.latency.target.ms", Long.class, 1000L,
+                                      v -> v instanceof Long && (Long) v > 0);
+    /**
+     * Target of the percentage of failed tasks, for adaptive rate limiting.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Integer> CONFIG_PROCESSING_RATE_ADAPTIVE_ERROR_PERCENT =
+            PropertyDefinition.define("decaton.processing.rate.adaptive.error.percent", Integer.class, 5,
+                                      v -> v instanceof Integer && 0 <= (Integer) v && (Integer) v <= 100);
+    /**
+     * Tasks per second to increase the rate by at every second, for adaptive rate limiting.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_PROCESSING_RATE_ADAPTIVE_INCREASE_STEP =
+            PropertyDefinition.define("decaton.processing.rate.adaptive.increase.step", Long.class, 100L,
+                                      v -> v instanceof Long && (Long) v > 0);
+    /**
+     * Percentage of failed tasks of a partition reaching which opens the circuit breaker, which pauses fetching the
+     * partition. A task fails when it requests a retry or processors throw an exception.
+     * 0 disables the circuit breaker.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Integer> CONFIG_CIRCUIT_BREAKER_ERROR_PERCENT =
+            PropertyDefinition.define("decaton.circuit.breaker.error.percent", Integer.class, 0,
+                                      v -> v instanceof Integer && 0 <= (Integer) v && (Integer) v <= 100);
+    /**
+     * Number of completed tasks of a partition to evaluate the percentage of failed tasks over, for the circuit
+     * breaker.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Integer> CONFIG_CIRCUIT_BREAKER_WINDOW_TASKS =
+            PropertyDefinition.define("decaton.circuit.breaker.window.tasks", Integer.class, 100,
+                                      v -> v instanceof Integer && (Integer) v > 0);
+    /**
+     * Time in milliseconds to keep the circuit breaker open, after which the partition is resumed to process
+     * probe tasks.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_CIRCUIT_BREAKER_OPEN_MS =
+            PropertyDefinition.define("decaton.circuit.breaker.open.ms", Long.class, 30_000L,
+                                      v -> v instanceof Long && (Long) v >= 0);
+    /**
+     * Number of probe tasks processed while the circuit breaker is half-open. The partition is paused again as
+     * long as this number of tasks are pending. The breaker closes when this number of tasks succeed in a row,
+     * and opens again on any failure.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Integer> CONFIG_CIRCUIT_BREAKER_PROBE_TASKS =
+            PropertyDefinition.define("decaton.circuit.breaker.probe.tasks", Integer.class, 10,
+                                      v -> v instanceof Integer && (Integer) v > 0);
     /**
      * Concurrency used to process tasks coming from single partition.
      * Reloading this property will pause all assigned partitions until current pending tasks have done.
@@ -69,6 +242,20 @@ public class ProcessorProperties extends AbstractDecatonProperties {
     public static final PropertyDefinition<Integer> CONFIG_PARTITION_CONCURRENCY =
             PropertyDefinition.define("decaton.partition.concurrency", Integer.class, 1,
                                       v -> v instanceof Integer && (Integer) v > 0);
+    /**
+     * Number of offsets of completed tasks to remember for each partition, to skip tasks of those offsets
+     * when they're delivered again, e.g. after a rebalance which kept the partition assigned to this instance but
+     * regressed its offset to the one committed before they completed.
+     * Deduplication is per instance only, so offsets of a partition are forgotten once it's revoked.
+     * Remembered offsets are kept off-heap, taking 24 bytes or more for each.
+     * Tasks reprocessed intentionally by resetting offsets are skipped as well if their offsets are remembered.
+     * 0 disables deduplication.
+     *
+     * Reloadable: no
+     */
+    public static final PropertyDefinition<Integer> CONFIG_DEDUPLICATION_CAPACITY =
+            PropertyDefinition.define("decaton.deduplication.capacity", Integer.class, 0,
+                                      v -> v instanceof Integer && (Integer) v >= 0);
     /**
      * Number of records to pause source partition if pending count exceeds this number.
      *
@@ -99,15 +286,179 @@ public class ProcessorProperties extends AbstractDecatonProperties {
     public static final PropertyDefinition<Long> CONFIG_GROUP_REBALANCE_TIMEOUT_MS =
             PropertyDefinition.define("decaton.group.rebalance.timeout.ms", Long.class, 1000L,
                                       v -> v instanceof Long && (Long) v >= 0);
+    /**
+     * Controls whether to populate MDC with the information of the task being processed (see
+     * {@link com.linecorp.decaton.processor.runtime.LoggingContext}) throughout {@link DecatonProcessor#process}.
+     * The keys of the subscription and the partition are populated once and kept in MDC of each processing
+     * thread, while populating the keys of the task costs a few string allocations for every task, which is
+     * wasted if nothing logs while processing the task.
+     * Even after disabling this, processors can populate MDC for the specific log lines through
+     * {@link ProcessingContext#loggingContext()}.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Boolean> CONFIG_LOGGING_MDC_ENABLED =
+            PropertyDefinition.define("decaton.logging.mdc.enabled", Boolean.class, true,
+                                      v -> v instanceof Boolean);
+    /**
+     * Controls whether to reuse {@link ProcessingContext} instances across tasks to save allocations along the
+     * chain of processors.
+     * When enabled, a context given to {@link DecatonProcessor#process} must not be used after the method
+     * returns unless {@link ProcessingContext#deferCompletion()} has been called, as it's reset to process the
+     * next task. Processors which keep referring to the context, e.g. for logging or to call
+     * {@link ProcessingContext#retry()} asynchronously, must not be used with this option.
+     *
+     * Reloadable: no
+     */
+    public static final PropertyDefinition<Boolean> CONFIG_PROCESSING_CONTEXT_REUSE_ENABLED =
+            PropertyDefinition.define("decaton.processing.context.reuse.enabled", Boolean.class, false,
+                                      v -> v instanceof Boolean);
+
+    /**
+     * Minimum delay in milliseconds until the scheduled time of the head task of a retry topic partition to pause
+     * the partition until the task becomes due.
+     * While paused, following tasks of the partition aren't fetched, so that not-yet-due retry tasks occupy
+     * neither memory nor pending records. Tasks due within this delay are deferred in memory as usual.
+     * Negative value disables pausing.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_RETRY_PAUSE_THRESHOLD_MS =
+            PropertyDefinition.define("decaton.retry.pause.threshold.ms", Long.class, -1L,
+                                      v -> v instanceof Long);
+
+    /**
+     * Maximum number of retry tasks of a subscription which are being produced to the retry topic at a time.
+     * When a retry task is requested beyond this limit, it's queued without blocking the processing thread and
+     * stays pending until preceding ones are produced, so that partitions producing retry tasks faster than
+     * the producer can send are held back by {@link #CONFIG_MAX_PENDING_RECORDS}, while leaving others intact.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Integer> CONFIG_RETRY_MAX_IN_FLIGHT_TASKS =
+            PropertyDefinition.define("decaton.retry.max.in.flight.tasks", Integer.class, 10_000,
+                                      v -> v instanceof Integer && (Integer) v > 0);
+
+    /**
+     * Number of consecutive failures of a key to quarantine the key, where a failure is either a retry request
+     * or an exception thrown by processors.
+     * While a key is quarantined, its tasks are sent to {@link RetryConfig#deadLetterTopic()}, or discarded
+     * if it isn't configured, without being processed.
+     * Requires retry to be enabled. 0 disables quarantine.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Integer> CONFIG_RETRY_QUARANTINE_FAILURES =
+            PropertyDefinition.define("decaton.retry.quarantine.failures", Integer.class, 0,
+                                      v -> v instanceof Integer && (Integer) v >= 0);
+
+    /**
+     * Time in milliseconds to keep a key quarantined. Failures of the key are counted afresh after that.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_RETRY_QUARANTINE_COOLDOWN_MS =
+            PropertyDefinition.define("decaton.retry.quarantine.cooldown.ms", Long.class, 600_000L,
+                                      v -> v instanceof Long && (Long) v >= 0);
+
+    /**
+     * Maximum number of keys to track failures and quarantine of, for each subscription.
+     * Beyond this, keys failed least recently are forgotten, while quarantined keys are kept unless all the
+     * tracked keys are quarantined.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Integer> CONFIG_RETRY_QUARANTINE_MAX_TRACKED_KEYS =
+            PropertyDefinition.define("decaton.retry.quarantine.max.tracked.keys", Integer.class, 10_000,
+                                      v -> v instanceof Integer && (Integer) v > 0);
+
+    /**
+     * Path to the directory to store delay indexes, which hold tasks that have to wait long until their
+     * scheduled time.
+     * Instead of keeping such tasks in memory, Decaton stores them in a memory-mapped file for each partition
+     * and commits their offsets, then processes them when they become due.
+     * Since the index is local to the instance, parked tasks are processed only when the partition is assigned
+     * to the same instance again after restart or rebalance.
+     * <b>As their offsets are already committed, parked tasks are lost if the partition moves to another instance
+     * permanently or the local storage is lost.</b>
+     * Also, completion of parked tasks isn't forced to the storage, so they might be processed again after the
+     * crash of the host.
+     * Empty value, which is the default, disables the delay index.
+     *
+     * Reloadable: no
+     */
+    public static final PropertyDefinition<String> CONFIG_DELAY_INDEX_DIR =
+            PropertyDefinition.define("decaton.delay.index.dir", String.class, "",
+                                      v -> v instanceof String);
+    /**
+     * Minimum delay in milliseconds until the scheduled time of tasks to park them in the delay index.
+     * Tasks of the same key that follow a parked task are parked as well regardless of their delay, to keep
+     * their order.
+     *
+     * Reloadable: yes
+     */
+    public static final PropertyDefinition<Long> CONFIG_DELAY_INDEX_THRESHOLD_MS =
+            PropertyDefinition.define("decaton.delay.index.threshold.ms", Long.class, 60_000L,
+                                      v -> v instanceof Long && (Long) v >= 0);
+    /**
+     * Size in bytes of the delay index file for each partition.
+     * Once the index gets full, it's compacted to reclaim the space of processed tasks. Tasks are kept in memory
+     * as usual while the index is still full of unprocessed tasks.
+     *
+     * Reloadable: no
+     */
+    public static final PropertyDefinition<Integer> CONFIG_DELAY_INDEX_CAPACITY_BYTES =
+            PropertyDefinition.define("decaton.delay.index.capacity.bytes", Integer.class, 64 * 1024 * 1024,
+                                      v -> v instanceof Integer && (Integer) v >= 1024);
+    /**
+     * Path to the directory to store {@link StateStore}s, which processors access through
+     * {@link ProcessingContext#stateStore()}.
+     * Decaton keeps a log file for each partition, which is flushed along with the offset before committing it
+     * and restored when the partition is assigned to the same instance again after restart or rebalance.
+     * The log is discarded if the partition has been processed by another instance since, as it isn't backed by
+     * a changelog topic.
+     * Empty value disables state stores.
+     *
+     * Reloadable: no
+     */
+    public static final PropertyDefinition<String> CONFIG_STATE_STORE_DIR =
+            PropertyDefinition.define("decaton.state.store.dir", String.class, "",
+                                      v -> v instanceof String);
 
     public static final List<PropertyDefinition<?>> PROPERTY_DEFINITIONS =
             Collections.unmodifiableList(Arrays.asList(
                     CONFIG_IGNORE_KEYS,
                     CONFIG_PROCESSING_RATE,
+                    CONFIG_PROCESSING_RATE_PER_TOPIC,
+                    CONFIG_PROCESSING_RATE_PER_SUBSCRIPTION,
+                    CONFIG_PROCESSING_RATE_PER_CLUSTER,
+                    CONFIG_PROCESSING_RATE_LEASE_PERMITS,
+                    CONFIG_PROCESSING_RATE_PER_KEY,
+                    CONFIG_PROCESSING_RATE_PER_KEY_CAPACITY,
+                    CONFIG_PROCESSING_RATE_ADAPTIVE_ENABLED,
+                    CONFIG_PROCESSING_RATE_ADAPTIVE_LATENCY_TARGET_MS,
+                    CONFIG_PROCESSING_RATE_ADAPTIVE_ERROR_PERCENT,
+                    CONFIG_PROCESSING_RATE_ADAPTIVE_INCREASE_STEP,
+                    CONFIG_CIRCUIT_BREAKER_ERROR_PERCENT,
+                    CONFIG_CIRCUIT_BREAKER_WINDOW_TASKS,
+                    CONFIG_CIRCUIT_BREAKER_OPEN_MS,
+                    CONFIG_CIRCUIT_BREAKER_PROBE_TASKS,
                     CONFIG_PARTITION_CONCURRENCY,
+                    CONFIG_DEDUPLICATION_CAPACITY,
                     CONFIG_MAX_PENDING_RECORDS,
                     CONFIG_COMMIT_INTERVAL_MS,
-                    CONFIG_GROUP_REBALANCE_TIMEOUT_MS));
+                    CONFIG_GROUP_REBALANCE_TIMEOUT_MS,
+                    CONFIG_LOGGING_MDC_ENABLED,
+                    CONFIG_PROCESSING_CONTEXT_REUSE_ENABLED,
+                    CONFIG_RETRY_PAUSE_THRESHOLD_MS,
+                    CONFIG_RETRY_MAX_IN_FLIGHT_TASKS,
+                    CONFIG_RETRY_QUARANTINE_FAILURES,
+                    CONFIG_RETRY_QUARANTINE_COOLDOWN_MS,
+                    CONFIG_RETRY_QUARANTINE_MAX_TRACKED_KEYS,
+                    CONFIG_DELAY_INDEX_DIR,
+                    CONFIG_DELAY_INDEX_THRESHOLD_MS,
+                    CONFIG_DELAY_INDEX_CAPACITY_BYTES,
+                    CONFIG_STATE_STORE_DIR));
 
     public static Builder<ProcessorProperties> builder() {
         return new Builder<>(
@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.function.Supplier;
 
 import com.linecorp.decaton.common.Deserializer;
+import com.linecorp.decaton.common.Serializer;
 import com.linecorp.decaton.processor.runtime.DecatonProcessorSupplier;
 import com.linecorp.decaton.processor.runtime.DecatonProcessorSupplierImpl;
 import com.linecorp.decaton.processor.runtime.DefaultTaskExtractor;
@@ -45,6 +46,8 @@ public class ProcessorsBuilder<T> {
     private final TaskExtractor<T> retryTaskExtractor;
 
     private final List<DecatonProcessorSupplier<T>> suppliers;
+    private Serializer<T> taskSerializer;
+    private TaskCostFunction<T> costFunction;
 
     public ProcessorsBuilder(String topic, TaskExtractor<T> taskExtractor, TaskExtractor<T> retryTaskExtractor) {
         this.topic = topic;
@@ -133,7 +136,46 @@ public class ProcessorsBuilder<T> {
         return thenProcess(new DecatonProcessorSupplierImpl<>(() -> processor, ProcessorScope.PROVIDED));
     }
 
+    /**
+     * Stop retaining serialized bytes of tasks along with the deserialized ones while they are being processed,
+     * and serialize the task again using given {@link Serializer} only when {@link ProcessingContext#retry()}
+     * is called.
+     *
+     * By default, Decaton keeps the original bytes of every in-flight task so that it can re-enqueue the task to
+     * the retry topic as-is, but this doubles the memory footprint of tasks having large payload.
+     * Note that the bytes aren't retained regardless of this option if retry isn't enabled for the subscription,
+     * as they will never be used.
+     *
+     * The given serializer must produce bytes that the {@link Deserializer} or the {@link TaskExtractor} given
+     * to {@code consuming} can read, as they are used as {@link DecatonTask#taskDataBytes()} of the retried task.
+     * Also the task is serialized at the time {@link ProcessingContext#retry()} is called, so any modification
+     * made on the task instance by processors is reflected to the retried task.
+     *
+     * @param serializer a {@link Serializer} to serialize tasks of type {@link T} upon retry.
+     * @return updated instance of {@link ProcessorsBuilder}.
+     */
+    public ProcessorsBuilder<T> serializeOnRetry(Serializer<T> serializer) {
+        taskSerializer = serializer;
+        return this;
+    }
+
+    /**
+     * Set a {@link TaskCostFunction} to decide the number of permits each task takes from rate limiters.
+     *
+     * By default every task takes 1 permit regardless of its size, so rate limits are expressed in the number
+     * of tasks per second. For downstreams bound by bandwidth rather than requests, e.g.
+     * {@link TaskCostFunction#ofTaskDataBytes()} lets rate limits be expressed in bytes per second.
+     *
+     * @param costFunction a {@link TaskCostFunction} to decide the cost of tasks.
+     * @return updated instance of {@link ProcessorsBuilder}.
+     */
+    public ProcessorsBuilder<T> costFunction(TaskCostFunction<T> costFunction) {
+        this.costFunction = costFunction;
+        return this;
+    }
+
     public Processors<T> build(DecatonProcessorSupplier<byte[]> retryProcessorSupplier) {
-        return new Processors<>(suppliers, retryProcessorSupplier, taskExtractor, retryTaskExtractor);
+        return new Processors<>(suppliers, retryProcessorSupplier, taskExtractor, retryTaskExtractor,
+                                taskSerializer, costFunction);
     }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor;
+
+/**
+ * An interface for classes deciding the cost of each task, which is the number of permits the task takes from
+ * rate limiters such as {@link ProcessorProperties#CONFIG_PROCESSING_RATE}.
+ * By default every task costs 1 so rates mean the number of tasks per second, while giving this lets rates
+ * be expressed in other units such as bytes per second.
+ *
+ * @param <T> type of task.
+ */
+@FunctionalInterface
+public interface TaskCostFunction<T> {
+    /**
+     * Returns the cost of the given task.
+     * @param task a task to be processed. {@link DecatonTask#taskDataBytes()} is always available here.
+     * @return the number of permits to take for the task. Values smaller than 1 are treated as 1.
+     */
+    int cost(DecatonTask<T> task);
+
+    /**
+     * Returns a {@link TaskCostFunction} which costs the length of serialized task data, so that rates are
+     * expressed in bytes per second.
+     * @param <T> type of task.
+     * @return a {@link TaskCostFunction} based on {@link DecatonTask#taskDataBytes()}.
+     */
+    static <T> TaskCostFunction<T> ofTaskDataBytes() {
+        return task -> task.taskDataBytes().length;
+    }
+}
@@ -17,8 +17,10 @@
 package com.linecorp.decaton.processor.metrics;
 
 import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.Meter.Id;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
@@ -114,6 +116,18 @@ public class Metrics {
                           .description("The number of partitions currently paused for back pressure")
                           .tags(availableTags.topicScope())
                           .register(registry);
+
+        public final Counter circuitBreakerOpened =
+                Counter.builder("circuit.breaker.opened")
+                       .description("The number of times the circuit breaker of the partition opened")
+                       .tags(availableTags.partitionScope())
+                       .register(registry);
+
+        public final Counter tasksDeduplicated =
+                Counter.builder("tasks.deduplicated")
+                       .description("The number of tasks skipped as they have completed already")
+                       .tags(availableTags.partitionScope())
+                       .register(registry);
     }
 
     public class SchedulerMetrics {
@@ -130,6 +144,29 @@ public class Metrics {
                      .description("The accumulated time the partition throttled by rate limiter")
                      .tags(availableTags.partitionScope())
                      .register(registry);
+
+        public final Timer keyThrottledTime =
+                Timer.builder("key.throttled.time")
+                     .description("The accumulated time tasks throttled by rate limit per key")
+                     .tags(availableTags.partitionScope())
+                     .register(registry);
+
+        public final Counter tasksParked =
+                Counter.builder("tasks.parked")
+                       .description("The number of tasks parked in the delay index until the scheduled time")
+                       .tags(availableTags.partitionScope())
+                       .register(registry);
+    }
+
+    public class RateLimiterMetrics {
+        // The rate can exceed the range of int, so it's registered directly rather than as a ValueGauge
+        public final AtomicLong processingRate = new AtomicLong();
+
+        private final Gauge processingRateGauge =
+                Gauge.builder("processing.rate", processingRate, AtomicLong::get)
+                     .description("The rate of processing tasks per second currently applied by adaptive rate limiting")
+                     .tags(availableTags.partitionScope())
+                     .register(registry);
     }
 
     public class RetryMetrics {
@@ -139,6 +176,42 @@ public class Metrics {
                        .tags(availableTags.subscriptionScope())
                        .register(registry);
 
+        public final Counter retryLocalTasks =
+                Counter.builder("retry.local.tasks")
+                       .description("The number of tasks retried in the same instance")
+                       .tags(availableTags.subscriptionScope())
+                       .register(registry);
+
+        public final Counter retryBackpressuredTasks =
+                Counter.builder("retry.backpressured.tasks")
+                       .description("The number of retry tasks waited for preceding ones to be produced")
+                       .tags(availableTags.subscriptionScope())
+                       .register(registry);
+
+        public final Counter retryExhaustedTasks =
+                Counter.builder("retry.exhausted.tasks")
+                       .description("The number of tasks exhausted retry attempts")
+                       .tags(availableTags.subscriptionScope())
+                       .register(registry);
+
+        public final Counter retryQuarantinedKeys =
+                Counter.builder("retry.quarantined.keys")
+                       .description("The number of times keys got quarantined by consecutive failures")
+                       .tags(availableTags.subscriptionScope())
+                       .register(registry);
+
+        public final ValueGauge retryQuarantinedKeysCurrent =
+                ValueGauge.builder("retry.quarantined.keys.current")
+                          .description("The number of keys currently quarantined")
+                          .tags(availableTags.subscriptionScope())
+                          .register(registry);
+
+        public final Counter retryQuarantinedTasks =
+                Counter.builder("retry.quarantined.tasks")
+                       .description("The number of tasks of quarantined keys sent to dead letter topic or discarded")
+                       .tags(availableTags.subscriptionScope())
+                       .register(registry);
+
         public final Counter retryQueueingFailed =
                 Counter.builder("retry.queueing.failed")
                        .description("The number of tasks failed to enqueue in retry topic")
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
+
+/**
+ * A {@link RateLimiter} which adjusts its rate by the feedback of completed tasks, in AIMD manner.
+ *
+ * Completions reported through {@link #report} are aggregated in windows of a second.
+ * At the end of each window, the rate is
+ *   - decreased multiplicatively from the throughput actually observed, if the average latency or the ratio of
+ *     failed tasks exceeds its target.
+ *   - increased additively up to the ceiling otherwise, as long as the rate has limited processing in the
+ *     window.
+ */
+class AdaptiveRateLimiter implements RateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+    static final long WINDOW_NANOS = SECONDS.toNanos(1L);
+    static final double DECREASE_FACTOR = 0.7d;
+    static final long MIN_RATE = 1L;
+
+    private final long maxRate;
+    private final Property<Long> latencyTargetMillis;
+    private final Property<Integer> errorRatioTargetPercent;
+    private final Property<Long> increaseStep;
+    private final AtomicLong rateGauge;
+    private final LongSupplier currentTimeNanos;
+    private final CountDownLatch latch;
+
+    // Only reserve is called on the delegate, so that replaced limiters can be closed while other threads are
+    // still reserving from them.
+    private volatile AveragingRateLimiter limiter;
+
+    private final AtomicLong windowStartNanos;
+    private final LongAdder completedCount;
+    private final LongAdder failedCount;
+    private final LongAdder latencySumNanos;
+    private final LongAdder throttledCount;
+
+    /**
+     * @param maxRate the ceiling of the rate, which is also the initial rate.
+     * @param props properties to read targets of the adjustment.
+     * @param rateGauge the gauge to expose the current rate.
+     * @param currentTimeNanos the clock to measure windows and permits.
+     */
+    AdaptiveRateLimiter(long maxRate, ProcessorProperties props, AtomicLong rateGauge,
+                        LongSupplier currentTimeNanos) {
+        if (maxRate <= 0L) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        this.maxRate = maxRate;
+        latencyTargetMillis = props.get(ProcessorProperties.CONFIG_PROCESSING_RATE_ADAPTIVE_LATENCY_TARGET_MS);
+        errorRatioTargetPercent = props.get(ProcessorProperties.CONFIG_PROCESSING_RATE_ADAPTIVE_ERROR_PERCENT);
+        increaseStep = props.get(ProcessorProperties.CONFIG_PROCESSING_RATE_ADAPTIVE_INCREASE_STEP);
+        this.rateGauge = rateGauge;
+        this.currentTimeNanos = currentTimeNanos;
+        latch = new CountDownLatch(1);
+
+        windowStartNanos = new AtomicLong(currentTimeNanos.getAsLong());
+        completedCount = new LongAdder();
+        failedCount = new LongAdder();
+        latencySumNanos = new LongAdder();
+        throttledCount = new LongAdder();
+        setRate(maxRate);
+    }
+
+    @Override
+    public long acquire(int permits) throws InterruptedException {
+        if (latch.getCount() == 0) {
+            throw new IllegalStateException("This limiter is already closed");
+        }
+
+        long microsToWait = reserve(permits);
+        if (microsToWait > 0L) {
+            latch.await(microsToWait, MICROSECONDS);
+        }
+        return microsToWait;
+    }
+
+    @Override
+    public long reserve(int permits) {
+        maybeAdjust();
+        long waitMicros = limiter.reserve(permits);
+        if (waitMicros > 0L) {
+            throttledCount.increment();
+        }
+        return waitMicros;
+    }
+
+    @Override
+    public void report(long latencyNanos, boolean failed) {
+        completedCount.increment();
+        latencySumNanos.add(latencyNanos);
+        if (failed) {
+            failedCount.increment();
+        }
+        maybeAdjust();
+    }
+
+    long rate() {
+        return limiter.permitsPerSecond();
+    }
+
+    private void maybeAdjust() {
+        long now = currentTimeNanos.getAsLong();
+        long start = windowStartNanos.get();
+        long elapsedNanos = now - start;
+        // Only the thread which closes the window adjusts the rate
+        if (elapsedNanos < WINDOW_NANOS || !windowStartNanos.compareAndSet(start, now)) {
+            return;
+        }
+
+        long completed = completedCount.sumThenReset();
+        long failed = failedCount.sumThenReset();
+        long latencySum = latencySumNanos.sumThenReset();
+        long throttled = throttledCount.sumThenReset();
+        if (completed == 0L) {
+            return;
+        }
+
+        long rate = rate();
+        long avgLatencyNanos = latencySum / completed;
+        boolean degraded = avgLatencyNanos > MILLISECONDS.toNanos(latencyTargetMillis.value())
+                           || failed * 100L > completed * errorRatioTargetPercent.value();
+        final long newRate;
+        if (degraded) {
+            long observedRate = completed * WINDOW_NANOS / elapsedNanos;
+            newRate = Math.max(MIN_RATE, (long) (Math.min(rate, observedRate) * DECREASE_FACTOR));
+        } else if (throttled > 0L) {
+            newRate = Math.min(maxRate, rate + increaseStep.value());
+        } else {
+            return;
+        }
+
+        if (newRate != rate) {
+            logger.debug("Adjusting rate from {} to {} (completed={}, failed={}, avgLatency={} ns)",
+                         rate, newRate, completed, failed, avgLatencyNanos);
+            setRate(newRate);
+        }
+    }
+
+    private void setRate(long rate) {
+        AveragingRateLimiter oldLimiter = limiter;
+        limiter = new AveragingRateLimiter(rate, 1.0d, currentTimeNanos);
+        rateGauge.set(rate);
+        if (oldLimiter != null) {
+            oldLimiter.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        latch.countDown();
+        limiter.close();
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveRateLimiter[rate=" + rate() + ", maxRate=" + maxRate + ']';
+    }
+}
@@ -21,36 +21,47 @@
 package com.linecorp.decaton.processor.runtime;
 
 import static java.lang.Math.max;
-import static java.lang.Math.min;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.LongSupplier;
 
-// based on SmoothBursty limiter of guava library
+/**
+ * A limiter which behaves the same as SmoothBursty limiter of guava library, but without locking.
+ *
+ * Instead of holding stored permits and the next free ticket time separately, the state is folded into a
+ * single timestamp: the time the next permit becomes available if no stored permit is left, minus the time
+ * worth of the stored permits, which can't go before the current time by more than the max burst.
+ * This lets all reservations be made by a CAS on one {@link AtomicLong}, so units sharing the limiter don't
+ * contend on a monitor.
+ */
 class AveragingRateLimiter implements RateLimiter {
+    private final long permitsPerSecond;
     private final long startNanos;
     private final double stableIntervalMicros;
-    private final double maxPermits;
+    private final long maxBurstMicros;
     private final CountDownLatch latch;
     private final LongSupplier currentTimeNanos;
 
-    private double storedPermits;
-    private long nextFreeTicketMicros;
+    // The time, in microseconds since the start, the next permit becomes available including stored permits
+    private final AtomicLong nextFreeTicketMicros;
 
     AveragingRateLimiter(long permitsPerSecond, double maxBurstSeconds, LongSupplier currentTimeNanos) {
         if (permitsPerSecond == 0L) {
             throw new IllegalArgumentException("Rate must not be zero");
         }
 
+        this.permitsPerSecond = permitsPerSecond;
         this.currentTimeNanos = currentTimeNanos;
         startNanos = currentTimeNanos.getAsLong();
         stableIntervalMicros = SECONDS.toMicros(1L) / (double) permitsPerSecond;
-        maxPermits = maxBurstSeconds * permitsPerSecond;
+        maxBurstMicros = (long) (maxBurstSeconds * permitsPerSecond * stableIntervalMicros);
         latch = new CountDownLatch(1);
+        nextFreeTicketMicros = new AtomicLong();
     }
 
     @Override
@@ -66,36 +77,42 @@ class AveragingRateLimiter implements RateLimiter {
         return microsToWait;
     }
 
-    private synchronized long reserve(int permits) {
+    @Override
+    public long reserve(int permits) {
         if (permits <= 0) {
-            throw new IllegalArgumentException("Requested permits (%s) must be positive");
+            throw new IllegalArgumentException(String.format("Requested permits (%s) must be positive",
+                                                             permits));
         }
 
         long nowMicros = nowMicros();
-        long momentAvailable = reserveEarliestAvailable(permits, nowMicros);
-        return max(momentAvailable - nowMicros, 0L);
+        long cost = (long) (permits * stableIntervalMicros);
+        while (true) {
+            long current = nextFreeTicketMicros.get();
+            // Permits stored while idle are capped by the max burst
+            long base = max(current, nowMicros - maxBurstMicros);
+            if (nextFreeTicketMicros.compareAndSet(current, Math.addExact(base, cost))) {
+                return max(base - nowMicros, 0L);
+            }
+        }
     }
 
-    private long reserveEarliestAvailable(int requiredPermits, long nowMicros) {
-        resync(nowMicros);
-
-        long returnValue = nextFreeTicketMicros;
-        double storedPermitsToSpend = min(requiredPermits, storedPermits);
-        double freshPermits = requiredPermits - storedPermitsToSpend;
-        long waitMicros = (long) (freshPermits * stableIntervalMicros);
-
-        nextFreeTicketMicros = Math.addExact(nextFreeTicketMicros, waitMicros);
-
-        storedPermits -= storedPermitsToSpend;
-        return returnValue;
+    /**
+     * Gives back permits which were reserved but not used, which can't be stored beyond the max burst.
+     */
+    void release(int permits) {
+        long nowMicros = nowMicros();
+        long cost = (long) (permits * stableIntervalMicros);
+        while (true) {
+            long current = nextFreeTicketMicros.get();
+            long released = max(current - cost, nowMicros - maxBurstMicros);
+            if (released >= current || nextFreeTicketMicros.compareAndSet(current, released)) {
+                return;
+            }
+        }
     }
 
-    private void resync(long nowMicros) {
-        if (nowMicros > nextFreeTicketMicros) {
-            double newPermits = (nowMicros - nextFreeTicketMicros) / stableIntervalMicros;
-            storedPermits = min(maxPermits, storedPermits + newPermits);
-            nextFreeTicketMicros = nowMicros;
-        }
+    long permitsPerSecond() {
+        return permitsPerSecond;
     }
 
     private long nowMicros() {
@@ -103,7 +120,7 @@ class AveragingRateLimiter implements RateLimiter {
     }
 
     @Override
-    public void close() throws Exception {
+    public void close() {
         latch.countDown();
     }
 
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
+
+import io.micrometer.core.instrument.Counter;
+
+/**
+ * A circuit breaker of a partition, which opens when the percentage of failed tasks exceeds the threshold so
+ * that the partition is paused rather than amplifying an outage of downstream into retry tasks.
+ *
+ * After {@link ProcessorProperties#CONFIG_CIRCUIT_BREAKER_OPEN_MS}, the breaker gets half-open and the
+ * partition is resumed to process a limited number of probe tasks, which close the breaker if all of them
+ * succeed, or open it again otherwise.
+ * Completions are reported from processor threads while the state is read by the subscription thread.
+ */
+class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    private final PartitionScope scope;
+    private final Property<Integer> errorPercent;
+    private final Property<Integer> windowTasks;
+    private final Property<Long> openMillis;
+    private final Property<Integer> probeTasks;
+    private final Counter openedCounter;
+    private final LongSupplier clock;
+
+    private State state;
+    private long openUntilMillis;
+    private int completed;
+    private int failed;
+
+    CircuitBreaker(PartitionScope scope, Counter openedCounter, LongSupplier clock) {
+        this.scope = scope;
+        errorPercent = scope.props().get(ProcessorProperties.CONFIG_CIRCUIT_BREAKER_ERROR_PERCENT);
+        windowTasks = scope.props().get(ProcessorProperties.CONFIG_CIRCUIT_BREAKER_WINDOW_TASKS);
+        openMillis = scope.props().get(ProcessorProperties.CONFIG_CIRCUIT_BREAKER_OPEN_MS);
+        probeTasks = scope.props().get(ProcessorProperties.CONFIG_CIRCUIT_BREAKER_PROBE_TASKS);
+        this.openedCounter = openedCounter;
+        this.clock = clock;
+        state = State.CLOSED;
+    }
+
+    CircuitBreaker(PartitionScope scope, Counter openedCounter) {
+        this(scope, openedCounter, System::currentTimeMillis);
+    }
+
+    /**
+     * Returns whether the breaker is enabled by {@link ProcessorProperties#CONFIG_CIRCUIT_BREAKER_ERROR_PERCENT}.
+     * This doesn't take the lock, so that callers can skip the breaker cheaply while it's disabled.
+     */
+    boolean enabled() {
+        return errorPercent.value() > 0;
+    }
+
+    /**
+     * Reports completion of a task of the partition.
+     * @param taskFailed whether the task failed.
+     */
+    synchronized void report(boolean taskFailed) {
+        switch (currentState()) {
+            case CLOSED:
+                if (errorPercent.value() == 0) {
+                    return;
+                }
+                completed++;
+                if (taskFailed) {
+                    failed++;
+                }
+                if (completed >= windowTasks.value()) {
+                    if (failed * 100L >= (long) errorPercent.value() * completed) {
+                        logger.warn("Opening circuit breaker of {} as {} out of {} tasks failed",
+                                    scope, failed, completed);
+                        open();
+                    } else {
+                        resetCounts();
+                    }
+                }
+                break;
+            case OPEN:
+                // Tasks fetched before opening are still completing, which don't tell the recovery.
+                break;
+            case HALF_OPEN:
+                if (taskFailed) {
+                    open();
+                } else if (++completed >= probeTasks.value()) {
+                    logger.info("Closing circuit breaker of {} as probe tasks succeeded", scope);
+                    state = State.CLOSED;
+                    resetCounts();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns whether the partition has to be paused by the breaker.
+     * @param pendingTasks the number of tasks of the partition which are pending.
+     */
+    synchronized boolean shouldPause(int pendingTasks) {
+        switch (currentState()) {
+            case OPEN:
+                return true;
+            case HALF_OPEN:
+                return pendingTasks >= probeTasks.value();
+            default:
+                return false;
+        }
+    }
+
+    // visible for testing
+    synchronized State state() {
+        return currentState();
+    }
+
+    private State currentState() {
+        if (state == State.OPEN && clock.getAsLong() >= openUntilMillis) {
+            state = State.HALF_OPEN;
+            resetCounts();
+        }
+        return state;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntilMillis = clock.getAsLong() + openMillis.value();
+        openedCounter.increment();
+        resetCounts();
+    }
+
+    private void resetCounts() {
+        completed = 0;
+        failed = 0;
+    }
+}
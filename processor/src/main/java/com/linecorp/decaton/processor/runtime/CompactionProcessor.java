@@ -16,12 +16,18 @@
 
 package com.linecorp.decaton.processor.runtime;
 
+import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,8 +36,10 @@ import com.linecorp.decaton.processor.DecatonProcessor;
 import com.linecorp.decaton.processor.DeferredCompletion;
 import com.linecorp.decaton.processor.ProcessingContext;
 import com.linecorp.decaton.processor.metrics.Metrics;
+import com.linecorp.decaton.processor.metrics.ValueGauge;
 
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Tags;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.experimental.Accessors;
@@ -41,31 +49,57 @@ import lombok.experimental.Accessors;
  * This processor can be used to compact multiple tasks which are arrived within configured window.
  * Given the window W=5, if tasks having same key {@code [(1, T1), (2, T4), (3, T6)} are fed to this processor,
  * only the successor of 1 or 2 and 3 are processed by the downstream processor.
+ * Alternatively, tasks can be merged into one by {@link #merging(long, BinaryOperator)}, instead of picking
+ * one of them.
  *
  * @param <T> type of task to compact
  */
 public class CompactionProcessor<T> implements DecatonProcessor<T> {
     private static final Logger logger = LoggerFactory.getLogger(CompactionProcessor.class);
 
-    // These metrics will be instantiated every time by design, but the overhead is acceptable from micro-benchmark.
-    //
-    // We cannot instantiate counter in advance because micrometer doesn't support adding tag to existing counter dynamically
-    // unlike prometheus simple client. (more precisely, to instantiate counter in advance, we have to introduce some mechanism
-    // to retrieve context at the processor creation timing and also processor supplier implementation should be revised a bit,
-    // which should be done by separated PR)
-    // Even though such situation, we decided to migrate to micrometer because we can benefit a lot from it like various monitoring-system support.
-    private static Counter compactedTasks(String subscriptionId) {
-        return Counter.builder("processor.compaction.compacted")
-                      .description("Counter of the number of tasks compacted")
-                      .tags("subscription", subscriptionId)
-                      .register(Metrics.registry());
+    // The number of ticks of the flush wheel in a window. The larger, the closer to the window each task is
+    // flushed, at the cost of waking up the flushing thread more frequently.
+    private static final long TICKS_PER_WINDOW = 32;
+
+    // The subscription isn't known until the first task comes since processors are instantiated by suppliers
+    // without it, so meters are resolved at that time and reused as long as the subscription is the same.
+    private static class CompactionMetrics {
+        private final String subscriptionId;
+        private final Counter compactedTasks;
+        private final Counter compactedKeys;
+        private final Counter earlyFlushedKeys;
+        private final ValueGauge windowKeys;
+
+        private CompactionMetrics(String subscriptionId) {
+            this.subscriptionId = subscriptionId;
+            compactedTasks = Counter.builder("processor.compaction.compacted")
+                                    .description("Counter of the number of tasks compacted")
+                                    .tags("subscription", subscriptionId)
+                                    .register(Metrics.registry());
+            compactedKeys = Counter.builder("processor.compaction.compacted.keys")
+                                   .description("Counter of the number of keys being added to compaction window")
+                                   .tags("subscription", subscriptionId)
+                                   .register(Metrics.registry());
+            earlyFlushedKeys = Counter.builder("processor.compaction.early.flushed.keys")
+                                      .description("Counter of the number of keys flushed before lingerMillis "
+                                                   + "elapses as the window is full")
+                                      .tags("subscription", subscriptionId)
+                                      .register(Metrics.registry());
+            windowKeys = ValueGauge.builder("processor.compaction.window.keys")
+                                   .description("The number of keys currently in the compaction window")
+                                   .tags(Tags.of("subscription", subscriptionId))
+                                   .register(Metrics.registry());
+        }
     }
 
-    private static Counter compactedKeys(String subscriptionId) {
-        return Counter.builder("processor.compaction.compacted.keys")
-                      .description("Counter of the number of keys being added to compaction window")
-                      .tags("subscription", subscriptionId)
-                      .register(Metrics.registry());
+    private static class Window {
+        private final String key;
+        private final long id;
+
+        private Window(String key, long id) {
+            this.key = key;
+            this.id = id;
+        }
     }
 
     public enum CompactChoice {
@@ -86,7 +120,17 @@ public class CompactionProcessor<T> implements DecatonProcessor<T> {
     private final ScheduledExecutorService executor;
     private final ConcurrentMap<String, CompactingTask<T>> windowedTasks = new ConcurrentHashMap<>();
     private final BiFunction<CompactingTask<T>, CompactingTask<T>, CompactChoice> compactor;
+    private final BinaryOperator<T> merger;
     private final long lingerMillis;
+    private final int maxKeys;
+    private final AtomicInteger windowCount = new AtomicInteger();
+    private final AtomicLong windowSequence = new AtomicLong();
+    // Windows in order of opening, to flush the oldest ones early when the number of keys reaches maxKeys.
+    // Windows flushed already are removed lazily. Not used unless maxKeys is bounded.
+    private final Queue<Window> windowOrder = new ConcurrentLinkedQueue<>();
+    // Holds flushes of windows until their lingerMillis elapses, which are run by the executor on every tick
+    private final HashedTimingWheel<Runnable> flushWheel;
+    private volatile CompactionMetrics metrics;
 
     @Getter
     @Accessors(fluent = true)
@@ -95,6 +139,9 @@ public class CompactionProcessor<T> implements DecatonProcessor<T> {
         private final DeferredCompletion completion;
         private final ProcessingContext<T> context;
         private final T task;
+        // The window the task belongs to, which is kept while tasks in the window are replaced
+        @Getter(AccessLevel.NONE)
+        private volatile long window;
 
         private CompactingTask(DeferredCompletion completion, ProcessingContext<T> context, T task) {
             this.completion = completion;
@@ -103,13 +150,46 @@ public class CompactionProcessor<T> implements DecatonProcessor<T> {
         }
     }
 
+    /**
+     * A completion of a merged task, which completes completions of all tasks merged into it.
+     * Completions are linked to the previous one, rather than nested, so that completing thousands of merged
+     * tasks doesn't consume the stack.
+     */
+    private static class MergedCompletion implements DeferredCompletion {
+        private final DeferredCompletion completion;
+        private final DeferredCompletion previous;
+
+        private MergedCompletion(DeferredCompletion previous, DeferredCompletion completion) {
+            this.completion = completion;
+            this.previous = previous;
+        }
+
+        @Override
+        public void complete() {
+            DeferredCompletion next = this;
+            while (next instanceof MergedCompletion) {
+                MergedCompletion merged = (MergedCompletion) next;
+                merged.completion.complete();
+                next = merged.previous;
+            }
+            next.complete();
+        }
+    }
+
     // visible for testing
     CompactionProcessor(
             long lingerMillis,
+            int maxKeys,
             BiFunction<CompactingTask<T>, CompactingTask<T>, CompactChoice> compactor,
+            BinaryOperator<T> merger,
             ScheduledThreadPoolExecutor scheduledExecutor) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("maxKeys must be positive: " + maxKeys);
+        }
         this.lingerMillis = lingerMillis;
+        this.maxKeys = maxKeys;
         this.compactor = compactor;
+        this.merger = merger;
 
         if (scheduledExecutor == null) {
             scheduledExecutor = new ScheduledThreadPoolExecutor(1, r -> {
@@ -130,6 +210,10 @@ public class CompactionProcessor<T> implements DecatonProcessor<T> {
         // we think taking A is much desirable behavior in most cases.
         scheduledExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
         executor = scheduledExecutor;
+
+        long tickMillis = Math.max(1L, lingerMillis / TICKS_PER_WINDOW);
+        flushWheel = new HashedTimingWheel<>(tickMillis, lingerMillis, currentTimeMillis());
+        executor.scheduleAtFixedRate(this::flushExpired, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -142,23 +226,147 @@ public class CompactionProcessor<T> implements DecatonProcessor<T> {
      */
     public CompactionProcessor(
             long lingerMillis, BiFunction<CompactingTask<T>, CompactingTask<T>, CompactChoice> compactor) {
-        this(lingerMillis, compactor, null);
+        this(lingerMillis, Integer.MAX_VALUE, compactor, null, null);
     }
 
-    private void flush(String key) throws InterruptedException {
-        CompactingTask<T> task = windowedTasks.remove(key);
-        if (task == null) {
-            return;
+    /**
+     * Instantiate {@link CompactionProcessor} which bounds the number of keys in the window.
+     * @param lingerMillis time to window tasks fed to this processor. On every lingerMillis milliseconds,
+     * succeeded tasks of eacy keys fed in past lingerMillis milliseconds are pushed to downstream
+     * processor.
+     * @param maxKeys the maximum number of keys in the window. When a task of a new key comes while the window
+     * is full, tasks of the oldest keys are pushed to downstream processor before lingerMillis elapses.
+     * @param compactor function which takes two tasks of type {@link T} and returns a value tells the decision
+     * which one of tasks should be preserved.
+     */
+    public CompactionProcessor(
+            long lingerMillis, int maxKeys,
+            BiFunction<CompactingTask<T>, CompactingTask<T>, CompactChoice> compactor) {
+        this(lingerMillis, maxKeys, compactor, null, null);
+    }
+
+    /**
+     * Instantiate {@link CompactionProcessor} which merges tasks of the same key into one, instead of picking
+     * one of them.
+     * The merged task is pushed to downstream processor along with the context of the latest task, and all
+     * tasks merged into it are completed when the merged task completes.
+     * @param lingerMillis time to window tasks fed to this processor. On every lingerMillis milliseconds,
+     * merged tasks of each keys fed in past lingerMillis milliseconds are pushed to downstream processor.
+     * @param merger function which takes the task in the window and the new task, and returns the merged one.
+     * It must not have side effects, as the result can be discarded when the window is flushed concurrently.
+     * @param <T> type of task to merge
+     * @return {@link CompactionProcessor} which merges tasks.
+     */
+    public static <T> CompactionProcessor<T> merging(long lingerMillis, BinaryOperator<T> merger) {
+        return merging(lingerMillis, Integer.MAX_VALUE, merger);
+    }
+
+    /**
+     * Instantiate {@link CompactionProcessor} which merges tasks of the same key into one, and bounds the
+     * number of keys in the window.
+     * @param lingerMillis time to window tasks fed to this processor.
+     * @param maxKeys the maximum number of keys in the window.
+     * @param merger function which takes the task in the window and the new task, and returns the merged one.
+     * @param <T> type of task to merge
+     * @return {@link CompactionProcessor} which merges tasks.
+     * @see #merging(long, BinaryOperator)
+     */
+    public static <T> CompactionProcessor<T> merging(long lingerMillis, int maxKeys, BinaryOperator<T> merger) {
+        return new CompactionProcessor<>(lingerMillis, maxKeys, null, Objects.requireNonNull(merger), null);
+    }
+
+    private boolean bounded() {
+        return maxKeys < Integer.MAX_VALUE;
+    }
+
+    // Monotonic clock in milliseconds, as windows shouldn't be affected by adjustments of the wall clock
+    private static long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private CompactionMetrics metrics(ProcessingContext<?> context) {
+        CompactionMetrics metrics = this.metrics;
+        if (metrics == null || !metrics.subscriptionId.equals(context.subscriptionId())) {
+            metrics = new CompactionMetrics(context.subscriptionId());
+            this.metrics = metrics;
+        }
+        return metrics;
+    }
+
+    private void flushExpired() {
+        try {
+            flushWheel.advance(currentTimeMillis(), Runnable::run);
+        } catch (RuntimeException e) {
+            // An exception escaping from here stops subsequent ticks
+            logger.warn("flushing compacted tasks threw an exception", e);
         }
+    }
+
+    /**
+     * Pushes the task in the window to downstream processor, unless the window has been flushed already.
+     * @return true if the window is flushed by this call.
+     */
+    private boolean flush(String key, long window) throws InterruptedException {
+        // Removed atomically so that a task replacing the one in the same window isn't lost
+        Object[] removed = new Object[1];
+        windowedTasks.computeIfPresent(key, (k, task) -> {
+            if (task.window != window) {
+                return task;
+            }
+            removed[0] = task;
+            return null;
+        });
+        if (removed[0] == null) {
+            return false;
+        }
+        windowCount.decrementAndGet();
+        metrics.windowKeys.decrement();
+
+        @SuppressWarnings("unchecked")
+        CompactingTask<T> task = (CompactingTask<T>) removed[0];
         task.completion.completeWith(task.context.push(task.task));
+        return true;
+    }
+
+    private boolean isCurrent(Window window) {
+        CompactingTask<T> task = windowedTasks.get(window.key);
+        return task != null && task.window == window.id;
+    }
+
+    /**
+     * Removes windows flushed already from the head of {@link #windowOrder}.
+     * As windows are flushed mostly in order of opening, this keeps the queue as large as the window.
+     */
+    private void pruneWindowOrder() {
+        Window head;
+        while ((head = windowOrder.peek()) != null && !isCurrent(head)) {
+            windowOrder.remove(head);
+        }
+    }
+
+    /**
+     * Flushes the oldest windows until the number of keys gets below maxKeys.
+     */
+    private void flushOldest(ProcessingContext<T> context) throws InterruptedException {
+        while (windowCount.get() >= maxKeys) {
+            Window oldest = windowOrder.poll();
+            if (oldest == null) {
+                return;
+            }
+            if (flush(oldest.key, oldest.id)) {
+                metrics(context).earlyFlushedKeys.increment();
+            }
+        }
     }
 
     // visible for testing
-    Runnable flushTask(ProcessingContext<T> context) {
+    Runnable flushTask(ProcessingContext<T> context, long window) {
         String key = context.key();
         return () -> {
             try {
-                flush(key);
+                if (flush(key, window) && bounded()) {
+                    pruneWindowOrder();
+                }
             } catch (InterruptedException e) {
                 logger.error("interrupted while flushing compacted task result", e);
             } catch (RuntimeException e) {
@@ -168,16 +376,29 @@ public class CompactionProcessor<T> implements DecatonProcessor<T> {
     }
 
     private void logCompactionOccurrence(ProcessingContext<?> context, T compactedTask, T survivedTask) {
-        compactedTasks(context.subscriptionId()).increment();
+        metrics(context).compactedTasks.increment();
 
         if (logger.isTraceEnabled()) {
             logger.trace("task ({}) compacted by successor task ({})", compactedTask, survivedTask);
         }
     }
 
-    private void scheduleFlush(ProcessingContext<T> context) {
-        executor.schedule(flushTask(context), lingerMillis, TimeUnit.MILLISECONDS);
-        compactedKeys(context.subscriptionId()).increment();
+    /**
+     * Opens a new window of the task, flushing the oldest ones beforehand if the window is full.
+     * The task must be in {@link #windowedTasks} already.
+     */
+    private void openWindow(ProcessingContext<T> context, CompactingTask<T> task) throws InterruptedException {
+        long window = windowSequence.incrementAndGet();
+        task.window = window;
+        CompactionMetrics metrics = metrics(context);
+        if (bounded()) {
+            flushOldest(context);
+            windowOrder.add(new Window(context.key(), window));
+        }
+        windowCount.incrementAndGet();
+        metrics.windowKeys.increment();
+        flushWheel.add(flushTask(context, window), currentTimeMillis() + lingerMillis);
+        metrics.compactedKeys.increment();
     }
 
     @Override
@@ -190,8 +411,14 @@ public class CompactionProcessor<T> implements DecatonProcessor<T> {
         // of tasks sharing the same key won't be happen.
         CompactingTask<T> prevTask = windowedTasks.get(key);
         if (prevTask == null) {
+            newTask.window = -1; // Not flushed by anyone until the window opens
             windowedTasks.put(key, newTask);
-            scheduleFlush(context);
+            openWindow(context, newTask);
+            return;
+        }
+
+        if (merger != null) {
+            merge(context, prevTask, newTask);
             return;
         }
 
@@ -205,18 +432,20 @@ public class CompactionProcessor<T> implements DecatonProcessor<T> {
             case PICK_RIGHT:
             case PICK_EITHER: // Newer task has larger offset. We want to forward consumed offset.
                 // Update the last task with new one.
-                Object oldEntry = windowedTasks.put(key, newTask);
-                if (oldEntry == null) {
+                // The new task stays in the window of the previous one.
+                newTask.window = prevTask.window;
+                if (!windowedTasks.replace(key, prevTask, newTask)) {
                     // By race condition, there is a chance that the scheduled flush for preceding task just
                     // got fired right after this method checked the key's existence at the beginning of this
                     // method.
                     // In such case we have to re-schedule flush for the new entry that we being added just now.
-                    scheduleFlush(context);
+                    newTask.window = -1;
+                    windowedTasks.put(key, newTask);
+                    openWindow(context, newTask);
                 } else {
                     // Mark previous(looser) task as completed.
-                    // If the previous value returned from windowedTasks#put was null, the previous
-                    // task must have been retrieved and now being processed by a scheduled flush so we don't
-                    // have to complete it right here.
+                    // If the previous task was not in the window anymore, it must have been retrieved and
+                    // now being processed by a scheduled flush so we don't have to complete it right here.
                     prevTask.completion.complete();
                     logCompactionOccurrence(context, prevTask.task, newTask.task);
                 }
@@ -224,6 +453,23 @@ public class CompactionProcessor<T> implements DecatonProcessor<T> {
         }
     }
 
+    private void merge(ProcessingContext<T> context, CompactingTask<T> prevTask, CompactingTask<T> newTask)
+            throws InterruptedException {
+        T mergedValue = merger.apply(prevTask.task, newTask.task);
+        // Pushed along with the latest context, and completes both tasks once it completes
+        CompactingTask<T> mergedTask = new CompactingTask<>(
+                new MergedCompletion(prevTask.completion, newTask.completion), context, mergedValue);
+        mergedTask.window = prevTask.window;
+        if (windowedTasks.replace(context.key(), prevTask, mergedTask)) {
+            logCompactionOccurrence(context, prevTask.task, mergedValue);
+        } else {
+            // The previous task has been flushed concurrently, so the new task opens a window alone
+            newTask.window = -1;
+            windowedTasks.put(context.key(), newTask);
+            openWindow(context, newTask);
+        }
+    }
+
     @Override
     public void close() throws Exception {
         executor.shutdown();
@@ -16,54 +16,109 @@
 
 package com.linecorp.decaton.processor.runtime;
 
-import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import com.linecorp.decaton.client.DecatonTaskProducer;
 import com.linecorp.decaton.client.PutTaskResult;
 import com.linecorp.decaton.processor.DecatonProcessor;
 import com.linecorp.decaton.processor.ProcessingContext;
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
 import com.linecorp.decaton.processor.TaskMetadata;
 import com.linecorp.decaton.processor.metrics.Metrics;
 import com.linecorp.decaton.processor.metrics.Metrics.RetryMetrics;
 import com.linecorp.decaton.protocol.Decaton.DecatonTaskRequest;
 import com.linecorp.decaton.protocol.Decaton.TaskMetadataProto;
 
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 class DecatonTaskRetryQueueingProcessor implements DecatonProcessor<byte[]> {
+    private final String topic;
     private final DecatonTaskProducer producer;
-    private final Duration backoff;
+    private final RetryConfig retryConfig;
     private final RetryMetrics metrics;
+    private final KeyQuarantine quarantine;
+    private final Property<Integer> maxInFlightTasks;
+    private final Object inFlightLock;
+    // Requests waiting for in-flight ones to complete, guarded by inFlightLock
+    private final Queue<PendingRequest> pendingRequests;
+    private int inFlightTasks;
+    // Sends pending requests, as completion callbacks run on the producer's I/O thread which must not block
+    private final ExecutorService sender;
 
-    DecatonTaskRetryQueueingProcessor(SubscriptionScope scope, DecatonTaskProducer producer) {
-        RetryConfig retryConfig = scope.retryConfig().get(); // This won't be instantiated unless it present
+    @RequiredArgsConstructor
+    private static class PendingRequest {
+        private final String topic;
+        private final String key;
+        private final DecatonTaskRequest request;
+        private final CompletableFuture<PutTaskResult> future = new CompletableFuture<>();
+    }
+
+    DecatonTaskRetryQueueingProcessor(SubscriptionScope scope, DecatonTaskProducer producer,
+                                      KeyQuarantine quarantine) {
+        retryConfig = scope.retryConfig().get(); // This won't be instantiated unless it present
+        topic = scope.topic();
         this.producer = producer;
-        backoff = retryConfig.backoff();
+        this.quarantine = quarantine;
+        maxInFlightTasks = scope.props().get(ProcessorProperties.CONFIG_RETRY_MAX_IN_FLIGHT_TASKS);
+        inFlightLock = new Object();
+        pendingRequests = new ArrayDeque<>();
+        sender = Executors.newSingleThreadExecutor(
+                Utils.namedThreadFactory("DecatonRetryQueueingSender-" + scope.subscriptionId()));
 
         metrics = Metrics.withTags("subscription", scope.subscriptionId()).new RetryMetrics();
     }
 
+    DecatonTaskRetryQueueingProcessor(SubscriptionScope scope, DecatonTaskProducer producer) {
+        this(scope, producer, null);
+    }
+
     @Override
     public void process(ProcessingContext<byte[]> context, byte[] serializedTask)
             throws InterruptedException {
         TaskMetadata originalMeta = context.metadata();
-        long nextTryTimeMillis = System.currentTimeMillis() + backoff.toMillis();
+        if (quarantine != null && quarantine.isQuarantined(context.key())) {
+            metrics.retryQuarantinedTasks.increment();
+            deadLetter(context, serializedTask);
+            return;
+        }
+        if (retryConfig.attemptsExhausted(originalMeta.retryCount())) {
+            metrics.retryExhaustedTasks.increment();
+            deadLetter(context, serializedTask);
+            return;
+        }
+
+        long backoffMillis = retryConfig.backoffMillis(originalMeta.retryCount(),
+                                                       ThreadLocalRandom.current().nextDouble());
+        long nextTryTimeMillis = System.currentTimeMillis() + backoffMillis;
         TaskMetadataProto taskMetadata =
                 TaskMetadataProto.newBuilder(originalMeta.toProto())
                                  .setRetryCount(originalMeta.retryCount() + 1)
                                  .setScheduledTimeMillis(nextTryTimeMillis)
                                  .build();
+        // The bytes are owned by the task and never modified until the processing completes, so they can be
+        // wrapped rather than copied.
         DecatonTaskRequest request =
                 DecatonTaskRequest.newBuilder()
                                   .setMetadata(taskMetadata)
-                                  .setSerializedTask(ByteString.copyFrom(serializedTask))
+                                  .setSerializedTask(UnsafeByteOperations.unsafeWrap(serializedTask))
                                   .build();
 
-        CompletableFuture<PutTaskResult> future = producer.sendRequest(context.key(), request);
+        String retryTopic = retryConfig.retryTopicFor(topic, backoffMillis);
+        CompletableFuture<PutTaskResult> future = send(retryTopic, context.key(), request);
         future.whenComplete((r, e) -> {
             if (e == null) {
                 metrics.retryQueuedTasks.increment();
@@ -74,8 +129,131 @@ class DecatonTaskRetryQueueingProcessor implements DecatonProcessor<byte[]> {
         context.deferCompletion().completeWith(future);
     }
 
+    /**
+     * Sends the task which exhausted its attempts or whose key is quarantined to the dead letter topic, or
+     * discards it if the topic isn't configured.
+     */
+    private void deadLetter(ProcessingContext<byte[]> context, byte[] serializedTask) {
+        String deadLetterTopic = retryConfig.deadLetterTopic();
+        if (deadLetterTopic == null) {
+            log.warn("Discarding task which can't be retried anymore - ({})", context.metadata());
+            return;
+        }
+
+        DecatonTaskRequest request =
+                DecatonTaskRequest.newBuilder()
+                                  .setMetadata(context.metadata().toProto())
+                                  .setSerializedTask(UnsafeByteOperations.unsafeWrap(serializedTask))
+                                  .build();
+        CompletableFuture<PutTaskResult> future = send(deadLetterTopic, context.key(), request);
+        future.whenComplete((r, e) -> {
+            if (e != null) {
+                metrics.retryQueueingFailed.increment();
+            }
+        });
+        context.deferCompletion().completeWith(future);
+    }
+
+    /**
+     * Sends the request if the number of in-flight tasks is below the limit. Otherwise the request is queued
+     * and the returned future completes after it's sent once preceding ones are produced, so the task requesting
+     * the retry stays pending without blocking the processing thread, and the partition is held back by
+     * {@link ProcessorProperties#CONFIG_MAX_PENDING_RECORDS} in turn.
+     */
+    private CompletableFuture<PutTaskResult> send(String topic, String key, DecatonTaskRequest request) {
+        synchronized (inFlightLock) {
+            // Preceding requests are sent first so that requests are produced in order
+            if (inFlightTasks >= maxInFlightTasks.value() || !pendingRequests.isEmpty()) {
+                metrics.retryBackpressuredTasks.increment();
+                PendingRequest pending = new PendingRequest(topic, key, request);
+                pendingRequests.add(pending);
+                return pending.future;
+            }
+            inFlightTasks++;
+        }
+
+        CompletableFuture<PutTaskResult> future;
+        try {
+            future = producer.sendRequest(topic, key, request);
+        } catch (RuntimeException e) {
+            releaseInFlight();
+            throw e;
+        }
+        future.whenComplete((r, e) -> releaseInFlight());
+        return future;
+    }
+
+    /**
+     * Releases the slot of the completed request, and lets the sender send pending requests if any.
+     * This only takes the lock for a moment, as it's called from the producer's I/O thread.
+     */
+    private void releaseInFlight() {
+        boolean hasPending;
+        synchronized (inFlightLock) {
+            inFlightTasks--;
+            hasPending = !pendingRequests.isEmpty();
+        }
+        if (hasPending) {
+            try {
+                sender.execute(this::sendPendingRequests);
+            } catch (RejectedExecutionException e) {
+                // The processor is being closed, which fails pending requests
+            }
+        }
+    }
+
+    /**
+     * Sends pending requests as long as the number of in-flight tasks is below the limit.
+     */
+    private void sendPendingRequests() {
+        while (true) {
+            PendingRequest next;
+            synchronized (inFlightLock) {
+                if (inFlightTasks >= maxInFlightTasks.value() || (next = pendingRequests.poll()) == null) {
+                    return;
+                }
+                inFlightTasks++;
+            }
+
+            CompletableFuture<PutTaskResult> future;
+            try {
+                future = producer.sendRequest(next.topic, next.key, next.request);
+            } catch (RuntimeException e) {
+                synchronized (inFlightLock) {
+                    inFlightTasks--;
+                }
+                next.future.completeExceptionally(e);
+                continue;
+            }
+            future.whenComplete((r, e) -> {
+                releaseInFlight();
+                if (e == null) {
+                    next.future.complete(r);
+                } else {
+                    next.future.completeExceptionally(e);
+                }
+            });
+        }
+    }
+
+    // visible for testing
+    int inFlightTasks() {
+        synchronized (inFlightLock) {
+            return inFlightTasks;
+        }
+    }
+
     @Override
     public void close() throws Exception {
+        List<PendingRequest> discarded;
+        synchronized (inFlightLock) {
+            discarded = new ArrayList<>(pendingRequests);
+            pendingRequests.clear();
+        }
+        discarded.forEach(pending -> pending.future.completeExceptionally(
+                new IllegalStateException("retry processor closed before sending the task")));
+        sender.shutdown();
+        sender.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
         producer.close();
     }
 }
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.kafka.common.utils.MappedByteBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * A file-backed index of tasks parked until their scheduled time, which is memory-mapped with fixed capacity.
+ *
+ * Entries are appended sequentially, and appended entries are forced to the storage by {@link #flush}, which
+ * has to be called before committing offsets of parked tasks.
+ * Removing an entry just marks it done in place. Once all entries are done the whole space gets reused from
+ * the beginning, bumping the generation recorded in the header so that leftover entries of the previous
+ * generation are never recognized as live again. If the index runs out of space while some entries are done,
+ * live entries are compacted into a new file of the next generation, which replaces the current one atomically.
+ *
+ * Entries are identified by ids assigned in memory rather than their positions, which change on compaction.
+ *
+ * Layout:
+ * <pre>
+ * header: int magic | int generation
+ * entry: int body length | int crc of body | byte state |
+ *        body: int generation | long record offset | long scheduled time | int key length (-1 for null) | key |
+ *              int value length | value
+ * </pre>
+ * An entry with zero length, invalid crc or stale generation terminates the index.
+ */
+class DelayIndex implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DelayIndex.class);
+
+    private static final int MAGIC = 0xDEC47011;
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_HEADER_SIZE = 4 + 4 + 1;
+    private static final int STATE_OFFSET = 8;
+    private static final byte STATE_LIVE = 1;
+    private static final byte STATE_DONE = 2;
+
+    /**
+     * An entry which is parked in the index.
+     */
+    @Value
+    @Accessors(fluent = true)
+    static class Entry {
+        long id;
+        long recordOffset;
+        long scheduledTimeMillis;
+        String key;
+        byte[] rawRequestBytes;
+    }
+
+    private final Path path;
+    private final int capacity;
+    private MappedByteBuffer buffer;
+    // Positions of live entries by their ids, in the order they were appended
+    private final Map<Long, Integer> positions;
+    private long nextId;
+    private int generation;
+    private int writePosition;
+    private int liveBytes;
+    // Whether entries were appended since the last flush
+    private boolean dirty;
+    private boolean closed;
+
+    private DelayIndex(Path path, int capacity, MappedByteBuffer buffer) {
+        this.path = path;
+        this.capacity = capacity;
+        this.buffer = buffer;
+        positions = new LinkedHashMap<>();
+    }
+
+    /**
+     * Opens the index at the given path, creating it if it doesn't exist.
+     *
+     * @param path path of the index file.
+     * @param capacity the maximum number of bytes the index can hold.
+     * @return an instance of {@link DelayIndex}.
+     * @throws IOException when failed to open the file.
+     */
+    static DelayIndex open(Path path, int capacity) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        DelayIndex index = new DelayIndex(path, capacity, map(path, capacity));
+        index.load();
+        return index;
+    }
+
+    private static MappedByteBuffer map(Path path, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid even after closing the channel.
+            return channel.map(MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private void load() {
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            reset(0);
+            return;
+        }
+        generation = buffer.getInt(4);
+        writePosition = HEADER_SIZE;
+        int length;
+        while ((length = validEntryLength(writePosition)) > 0) {
+            if (buffer.get(writePosition + STATE_OFFSET) == STATE_LIVE) {
+                positions.put(nextId++, writePosition);
+                liveBytes += length;
+            }
+            writePosition += length;
+        }
+        if (positions.isEmpty()) {
+            reset(generation + 1);
+        }
+    }
+
+    /**
+     * Returns the total length of the entry at the given position if it's a valid entry, or 0 otherwise.
+     */
+    private int validEntryLength(int position) {
+        if (position + ENTRY_HEADER_SIZE + 4 > capacity) {
+            return 0;
+        }
+        int bodyLength = buffer.getInt(position);
+        if (bodyLength <= 0 || position + ENTRY_HEADER_SIZE + bodyLength > capacity) {
+            return 0;
+        }
+        int bodyPosition = position + ENTRY_HEADER_SIZE;
+        if (buffer.getInt(bodyPosition) != generation || buffer.getInt(position + 4) != crc(buffer, bodyPosition,
+                                                                                              bodyLength)) {
+            return 0;
+        }
+        return ENTRY_HEADER_SIZE + bodyLength;
+    }
+
+    private static int crc(ByteBuffer buffer, int position, int length) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(position);
+        body.limit(position + length);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private void reset(int newGeneration) {
+        generation = newGeneration;
+        writePosition = HEADER_SIZE;
+        liveBytes = 0;
+        buffer.putInt(4, generation);
+        buffer.putInt(writePosition, 0);
+        buffer.force();
+    }
+
+    /**
+     * Appends a task to the index.
+     * The entry is forced to the storage on the next {@link #flush}.
+     *
+     * @return the id of the appended entry, or -1 if the index has no space for the task or is closed.
+     */
+    synchronized long append(long recordOffset, long scheduledTimeMillis, String key, byte[] rawRequestBytes) {
+        if (closed) {
+            return -1;
+        }
+        byte[] keyBytes = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 4 + 8 + 8 + 4 + (keyBytes == null ? 0 : keyBytes.length) + 4 + rawRequestBytes.length;
+        int length = ENTRY_HEADER_SIZE + bodyLength;
+        // Reserve the space for the terminator too
+        if (writePosition + length + 4 > capacity) {
+            if (HEADER_SIZE + liveBytes + length + 4 > capacity || !compact()) {
+                return -1;
+            }
+        }
+
+        int position = writePosition;
+        int nextPosition = position + length;
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(position + ENTRY_HEADER_SIZE);
+        entry.putInt(generation);
+        entry.putLong(recordOffset);
+        entry.putLong(scheduledTimeMillis);
+        if (keyBytes == null) {
+            entry.putInt(-1);
+        } else {
+            entry.putInt(keyBytes.length);
+            entry.put(keyBytes);
+        }
+        entry.putInt(rawRequestBytes.length);
+        entry.put(rawRequestBytes);
+        entry.putInt(nextPosition, 0);
+
+        buffer.putInt(position, bodyLength);
+        buffer.putInt(position + 4, crc(buffer, position + ENTRY_HEADER_SIZE, bodyLength));
+        buffer.put(position + STATE_OFFSET, STATE_LIVE);
+        dirty = true;
+
+        writePosition = nextPosition;
+        liveBytes += length;
+        long id = nextId++;
+        positions.put(id, position);
+        return id;
+    }
+
+    /**
+     * Rewrites live entries into a new file of the next generation, which then replaces the current file.
+     * @return true if the index got compacted.
+     */
+    private boolean compact() {
+        int newGeneration = generation + 1;
+        Path compacting = Paths.get(path + ".compacting");
+        MappedByteBuffer compacted = null;
+        try {
+            Files.deleteIfExists(compacting);
+            compacted = map(compacting, capacity);
+            compacted.putInt(0, MAGIC);
+            compacted.putInt(4, newGeneration);
+            int newWritePosition = HEADER_SIZE;
+            Map<Long, Integer> newPositions = new LinkedHashMap<>();
+            for (Map.Entry<Long, Integer> e : positions.entrySet()) {
+                int position = e.getValue();
+                int length = ENTRY_HEADER_SIZE + buffer.getInt(position);
+                ByteBuffer entry = buffer.duplicate();
+                entry.position(position);
+                entry.limit(position + length);
+                ByteBuffer dest = compacted.duplicate();
+                dest.position(newWritePosition);
+                dest.put(entry);
+
+                int bodyPosition = newWritePosition + ENTRY_HEADER_SIZE;
+                compacted.putInt(bodyPosition, newGeneration);
+                compacted.putInt(newWritePosition + 4, crc(compacted, bodyPosition, length - ENTRY_HEADER_SIZE));
+                newPositions.put(e.getKey(), newWritePosition);
+                newWritePosition += length;
+            }
+            compacted.putInt(newWritePosition, 0);
+            compacted.force();
+            Files.move(compacting, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            unmap(buffer);
+            buffer = compacted;
+            generation = newGeneration;
+            writePosition = newWritePosition;
+            positions.putAll(newPositions);
+            // Live entries are already forced to the new file
+            dirty = false;
+            logger.debug("Compacted {} into {} bytes of {} entries", this, writePosition, positions.size());
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to compact {}", this, e);
+            if (compacted != null) {
+                unmap(compacted);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reads the entry of the given id.
+     * @throws IllegalArgumentException when the entry is already removed.
+     * @throws IllegalStateException when the index is closed.
+     */
+    synchronized Entry read(long id) {
+        ensureOpen();
+        Integer position = positions.get(id);
+        if (position == null) {
+            throw new IllegalArgumentException("no live entry of id " + id + " in " + this);
+        }
+        return read(id, position, true);
+    }
+
+    private Entry read(long id, int position, boolean withValue) {
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(position + ENTRY_HEADER_SIZE + 4);
+        long recordOffset = entry.getLong();
+        long scheduledTimeMillis = entry.getLong();
+        int keyLength = entry.getInt();
+        String key = null;
+        if (keyLength >= 0) {
+            byte[] keyBytes = new byte[keyLength];
+            entry.get(keyBytes);
+            key = new String(keyBytes, StandardCharsets.UTF_8);
+        }
+        byte[] value = null;
+        if (withValue) {
+            value = new byte[entry.getInt()];
+            entry.get(value);
+        }
+        return new Entry(id, recordOffset, scheduledTimeMillis, key, value);
+    }
+
+    /**
+     * Returns all entries which aren't removed yet, in the order they were appended.
+     * Returned entries don't hold the task bytes so {@link #read} needs to be called to obtain them.
+     * @throws IllegalStateException when the index is closed.
+     */
+    synchronized List<Entry> liveEntries() {
+        ensureOpen();
+        List<Entry> entries = new ArrayList<>(positions.size());
+        positions.forEach((id, position) -> entries.add(read(id, position, false)));
+        return entries;
+    }
+
+    /**
+     * Marks the entry of the given id as done.
+     * This isn't forced to the storage immediately, so the entry might be seen again after the crash.
+     */
+    synchronized void remove(long id) {
+        // Processing might complete after the index is closed, in which case the entry stays live and will be
+        // restored from the file again.
+        if (closed) {
+            return;
+        }
+        Integer position = positions.remove(id);
+        if (position == null) {
+            return;
+        }
+        buffer.put(position + STATE_OFFSET, STATE_DONE);
+        liveBytes -= ENTRY_HEADER_SIZE + buffer.getInt(position);
+        if (positions.isEmpty()) {
+            reset(generation + 1);
+        }
+    }
+
+    /**
+     * Forces entries appended since the last flush to the storage.
+     * This has to be done before committing offsets of tasks parked in the index.
+     */
+    synchronized void flush() {
+        if (closed || !dirty) {
+            return;
+        }
+        buffer.force();
+        dirty = false;
+    }
+
+    synchronized int size() {
+        return positions.size();
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("delay index is closed: " + this);
+        }
+    }
+
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            MappedByteBuffers.unmap(path.toString(), buffer);
+        } catch (IOException e) {
+            // The mapping is released by GC in the end
+            logger.warn("Failed to unmap {}", this, e);
+        }
+    }
+
+    /**
+     * Forces the index to the storage and releases the mapping. The index must not be accessed after this.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.force();
+        unmap(buffer);
+    }
+
+    @Override
+    public String toString() {
+        return "DelayIndex{" + path + '}';
+    }
+}
@@ -16,38 +16,107 @@
 
 package com.linecorp.decaton.processor.runtime;
 
+import java.util.function.LongFunction;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.linecorp.decaton.processor.Property;
 
+/**
+ * A {@link RateLimiter} which follows changes of the rate property.
+ *
+ * A parent limiter can be layered on it, which is typically shared by multiple partitions to limit their total
+ * rate. Permits are taken from both of this limiter and the parent.
+ */
 class DynamicRateLimiter implements RateLimiter {
     private static final Logger logger = LoggerFactory.getLogger(DynamicRateLimiter.class);
 
+    private final RateLimiter parent;
     private volatile RateLimiter current;
+    // Guarded by this
+    private boolean closed;
 
-    DynamicRateLimiter(Property<Long> rateProperty) {
-        current = RateLimiter.create(RateLimiter.UNLIMITED);
+    /**
+     * @param rateProperty the property of the rate.
+     * @param factory a function to create a limiter for the rate.
+     * @param parent a limiter applied in addition to this limiter, which is not closed along with this limiter.
+     * may be null.
+     */
+    DynamicRateLimiter(Property<Long> rateProperty, LongFunction<RateLimiter> factory, RateLimiter parent) {
+        this.parent = parent;
+        current = factory.apply(RateLimiter.UNLIMITED);
 
+        // The listener can't be removed from the property, so it just ignores updates after this limiter is
+        // closed rather than creating limiters nobody closes.
         rateProperty.listen((oldValue, newValue) -> {
-            RateLimiter oldLimiter = current;
-            current = RateLimiter.create(newValue);
-
-            try {
-                oldLimiter.close();
-            } catch (Exception e) {
-                logger.warn("Failed to close rate limiter: {}", oldLimiter, e);
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                RateLimiter oldLimiter = current;
+                current = factory.apply(newValue);
+                closeQuietly(oldLimiter);
             }
         });
     }
 
+    DynamicRateLimiter(Property<Long> rateProperty, RateLimiter parent) {
+        this(rateProperty, RateLimiter::create, parent);
+    }
+
+    DynamicRateLimiter(Property<Long> rateProperty) {
+        this(rateProperty, null);
+    }
+
     @Override
     public long acquire(int permits) throws InterruptedException {
-        return current.acquire(permits);
+        if (parent == null) {
+            return current.acquire(permits);
+        }
+        return parent.acquire(permits) + current.acquire(permits);
     }
 
+    /**
+     * If the parent can't tell the time to wait in advance after permits of this limiter are reserved, this
+     * method acquires permits of the parent by blocking, since returning a negative value would make the caller
+     * acquire permits of this limiter again through {@link #acquire(int)}.
+     */
     @Override
-    public void close() throws Exception {
+    public long reserve(int permits) {
+        long waitMicros = current.reserve(permits);
+        if (parent == null || waitMicros < 0L) {
+            return waitMicros;
+        }
+        long parentWaitMicros = parent.reserve(permits);
+        if (parentWaitMicros < 0L) {
+            try {
+                parent.acquire(permits);
+            } catch (InterruptedException e) {
+                // Interrupted typically on shutdown. Let the caller notice it at the next blocking call.
+                Thread.currentThread().interrupt();
+            }
+            return waitMicros;
+        }
+        return Math.max(waitMicros, parentWaitMicros);
+    }
+
+    @Override
+    public void report(long latencyNanos, boolean failed) {
+        current.report(latencyNanos, failed);
+    }
+
+    @Override
+    public synchronized void close() throws Exception {
+        closed = true;
         current.close();
     }
+
+    private static void closeQuietly(RateLimiter limiter) {
+        try {
+            limiter.close();
+        } catch (Exception e) {
+            logger.warn("Failed to close rate limiter: {}", limiter, e);
+        }
+    }
 }
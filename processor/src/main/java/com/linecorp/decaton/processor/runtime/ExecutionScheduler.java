@@ -14,9 +14,16 @@
  * under the License.
  */
 
+
 package com.linecorp.decaton.processor.runtime;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
@@ -24,24 +31,99 @@ import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
 import com.linecorp.decaton.processor.TaskMetadata;
 import com.linecorp.decaton.processor.metrics.Metrics;
 import com.linecorp.decaton.processor.metrics.Metrics.SchedulerMetrics;
 
+/**
+ * Schedules execution of tasks processed by a {@link ProcessorUnit}, respecting their scheduled time and the
+ * rate limit.
+ *
+ * Tasks that aren't yet due, or are throttled by the rate limiter, are deferred without occupying the unit's
+ * thread, by scheduling them on the unit's executor which then dispatches them when they become due.
+ * In the meantime, later tasks having the same key are held back behind the deferred task so that the order of
+ * tasks is kept per key, while tasks of other keys are processed as usual.
+ *
+ * If a {@link DelayIndex} is given, tasks which have to wait long are parked in it rather than kept in memory,
+ * and are read back from the index when they become due.
+ *
+ * All methods but {@link #close()} must be called from the unit's thread.
+ */
 public class ExecutionScheduler implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(ExecutionScheduler.class);
 
+    /**
+     * Represents processing of a task which is deferred to its scheduled time.
+     */
+    @FunctionalInterface
+    interface DeferredTask {
+        CompletableFuture<Void> run() throws InterruptedException;
+    }
+
+    /**
+     * Represents processing of a task which is parked in {@link DelayIndex}.
+     */
+    @FunctionalInterface
+    interface ParkedTask {
+        CompletableFuture<Void> run(DelayIndex.Entry entry) throws InterruptedException;
+    }
+
+    private static class DeferredEntry {
+        private final TaskMetadata metadata;
+        private final DeferredTask task;
+        private final boolean parked;
+        private final CompletableFuture<Void> result;
+        private final long deferredAtMillis;
+        private long dueMillis;
+        // The number of permits to take from the rate limiter
+        private int permits;
+        // Whether a permit of the rate limiter is already reserved for the task
+        private boolean permitted;
+
+        DeferredEntry(TaskMetadata metadata, DeferredTask task, boolean parked, long deferredAtMillis) {
+            this.metadata = metadata;
+            this.task = task;
+            this.parked = parked;
+            this.deferredAtMillis = deferredAtMillis;
+            dueMillis = metadata.scheduledTimeMillis();
+            permits = 1;
+            result = new CompletableFuture<>();
+        }
+    }
+
     private final ThreadScope scope;
     private final RateLimiter rateLimiter;
+    // Shared by all units of the partition. may be null.
+    private final CircuitBreaker circuitBreaker;
+    private final KeyRateLimiter keyRateLimiter;
+    private final ScheduledExecutorService executor;
+    private final DelayIndex delayIndex;
+    private final Property<Long> parkThresholdMillis;
     private final Supplier<Long> currentTimeMillis;
-    private final CountDownLatch terminateLatch;
     private final SchedulerMetrics metrics;
+    /**
+     * Tasks deferred for each key, in the order they have to be processed.
+     * A key is held as long as it has an entry in this map.
+     */
+    private final Map<String, Deque<DeferredEntry>> deferredTasks;
+
+    private volatile boolean terminated;
 
-    ExecutionScheduler(ThreadScope scope, RateLimiter rateLimiter, Supplier<Long> currentTimeMillis) {
+    ExecutionScheduler(ThreadScope scope, RateLimiter rateLimiter, ScheduledExecutorService executor,
+                       DelayIndex delayIndex, CircuitBreaker circuitBreaker, Supplier<Long> currentTimeMillis) {
         this.scope = scope;
         this.rateLimiter = rateLimiter;
+        this.circuitBreaker = circuitBreaker;
+        keyRateLimiter = new KeyRateLimiter(
+                scope.props().get(ProcessorProperties.CONFIG_PROCESSING_RATE_PER_KEY),
+                scope.props().get(ProcessorProperties.CONFIG_PROCESSING_RATE_PER_KEY_CAPACITY).value());
+        this.executor = executor;
+        this.delayIndex = delayIndex;
+        parkThresholdMillis = scope.props().get(ProcessorProperties.CONFIG_DELAY_INDEX_THRESHOLD_MS);
         this.currentTimeMillis = currentTimeMillis;
-        terminateLatch = new CountDownLatch(1);
+        deferredTasks = new HashMap<>();
 
         TopicPartition tp = scope.topicPartition();
         metrics = Metrics.withTags("subscription", scope.subscriptionId(),
@@ -50,41 +132,389 @@ public class ExecutionScheduler implements AutoCloseable {
                 .new SchedulerMetrics();
     }
 
-    public ExecutionScheduler(ThreadScope scope, RateLimiter rateLimiter) {
-        this(scope, rateLimiter, System::currentTimeMillis);
+    ExecutionScheduler(ThreadScope scope, RateLimiter rateLimiter, ScheduledExecutorService executor,
+                       DelayIndex delayIndex, Supplier<Long> currentTimeMillis) {
+        this(scope, rateLimiter, executor, delayIndex, null, currentTimeMillis);
+    }
+
+    ExecutionScheduler(ThreadScope scope, RateLimiter rateLimiter, ScheduledExecutorService executor,
+                       DelayIndex delayIndex, CircuitBreaker circuitBreaker) {
+        this(scope, rateLimiter, executor, delayIndex, circuitBreaker, System::currentTimeMillis);
+    }
+
+    public ExecutionScheduler(ThreadScope scope, RateLimiter rateLimiter, ScheduledExecutorService executor,
+                              DelayIndex delayIndex) {
+        this(scope, rateLimiter, executor, delayIndex, System::currentTimeMillis);
+    }
+
+    public ExecutionScheduler(ThreadScope scope, RateLimiter rateLimiter, ScheduledExecutorService executor) {
+        this(scope, rateLimiter, executor, null);
+    }
+
+    /**
+     * Returns the current time by the clock this scheduler compares scheduled time of tasks with.
+     * @return the current time in milliseconds.
+     */
+    public long currentTimeMillis() {
+        return currentTimeMillis.get();
+    }
+
+    /**
+     * Returns whether the task needs to be deferred through {@link #defer}, that is, its scheduled time hasn't
+     * come yet or a preceding task of the same key is deferred.
+     *
+     * @param key the key of the task. may be null.
+     * @param metadata the metadata of the task.
+     * @return true if the task needs to be deferred.
+     */
+    public boolean shouldDefer(String key, TaskMetadata metadata) {
+        return key != null && deferredTasks.containsKey(key)
+               || metadata.scheduledTimeMillis() > currentTimeMillis.get();
     }
 
-    // visible for testing
-    void sleep(long millis) throws InterruptedException {
-        terminateLatch.await(millis, TimeUnit.MILLISECONDS);
+    /**
+     * Defers a task until its scheduled time comes and all preceding deferred tasks of the same key are
+     * processed.
+     *
+     * @param key the key of the task. may be null, in which case the task is deferred independently.
+     * @param metadata the metadata of the task.
+     * @param permits the number of permits to take from the rate limiter for the task.
+     * @param task the processing to run when the task becomes due. The rate limit is applied at that time.
+     * @return a {@link CompletableFuture} which completes when the future returned by the given task
+     * completes.
+     */
+    public CompletableFuture<Void> defer(String key, TaskMetadata metadata, int permits, DeferredTask task) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Deferring task in {} until the scheduled time - ({})", scope, metadata);
+        }
+        DeferredEntry entry = new DeferredEntry(metadata, task, false, currentTimeMillis.get());
+        entry.permits = permits;
+        return defer(key, entry);
+    }
+
+    public CompletableFuture<Void> defer(String key, TaskMetadata metadata, DeferredTask task) {
+        return defer(key, metadata, 1, task);
+    }
+
+    /**
+     * Defers a task likewise {@link #defer}, but can be called from any thread.
+     * The task is deferred on the unit's thread later, so tasks of the same key coming until then aren't held
+     * back behind it.
+     *
+     * @param key the key of the task. may be null, in which case the task is deferred independently.
+     * @param metadata the metadata of the task.
+     * @param permits the number of permits to take from the rate limiter for the task.
+     * @param task the processing to run when the task becomes due. The rate limit is applied at that time.
+     * @return a {@link CompletableFuture} which completes when the future returned by the given task
+     * completes.
+     */
+    public CompletableFuture<Void> deferAsync(String key, TaskMetadata metadata, int permits, DeferredTask task) {
+        DeferredEntry entry = new DeferredEntry(metadata, task, false, currentTimeMillis.get());
+        entry.permits = permits;
+        scheduleDispatch(0L, () -> defer(key, entry));
+        return entry.result;
+    }
+
+    /**
+     * Parks a task which needs to be deferred in the {@link DelayIndex}, if the index is enabled and the task
+     * has to wait long enough or the preceding task of the same key is parked.
+     * Once this method returns true, the task is stored in the index, which is forced to the storage before
+     * committing the offset of the task, so the caller doesn't need to retain the task anymore.
+     *
+     * @param request the {@link TaskRequest} of the task.
+     * @param metadata the metadata of the task.
+     * @param permits the number of permits to take from the rate limiter for the task.
+     * @param rawRequestBytes the bytes of the record.
+     * @param task the processing to run when the task becomes due, with an entry read from the index.
+     * @return true if the task is parked. false if the task still needs to be deferred through {@link #defer}.
+     */
+    public boolean park(TaskRequest request, TaskMetadata metadata, int permits, byte[] rawRequestBytes,
+                        ParkedTask task) {
+        if (delayIndex == null || rawRequestBytes == null) {
+            return false;
+        }
+        String key = request.key();
+        long delayMillis = metadata.scheduledTimeMillis() - currentTimeMillis.get();
+        if (delayMillis < parkThresholdMillis.value() && !heldByParkedTask(key)) {
+            return false;
+        }
+
+        long id = delayIndex.append(
+                request.recordOffset(), metadata.scheduledTimeMillis(), key, rawRequestBytes);
+        if (id < 0) {
+            logger.debug("Delay index is full. Keeping task in memory - {}", request);
+            return false;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Parked task in {} as {} until the scheduled time - ({})", delayIndex, id, metadata);
+        }
+        metrics.tasksParked.increment();
+        DeferredEntry entry = new DeferredEntry(
+                metadata, () -> runParked(id, task), true, currentTimeMillis.get());
+        entry.permits = permits;
+        defer(key, entry);
+        return true;
     }
 
-    // visible for testing
-    void waitOnScheduledTime(TaskMetadata metadata) throws InterruptedException {
-        long timeUntilProcess = metadata.scheduledTimeMillis() - currentTimeMillis.get();
-        if (timeUntilProcess > 0) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Sleeping {} ms awaiting scheduled time for task in {} - ({})",
-                             timeUntilProcess, scope, metadata);
+    public boolean park(TaskRequest request, TaskMetadata metadata, byte[] rawRequestBytes, ParkedTask task) {
+        return park(request, metadata, 1, rawRequestBytes, task);
+    }
+
+    /**
+     * Defers a task which was parked in the {@link DelayIndex} before, e.g. by the previous instance.
+     * Since the index doesn't record the cost of tasks, a restored task takes a single permit.
+     *
+     * @param entry an entry read from the index.
+     * @param task the processing to run when the task becomes due, with an entry read from the index.
+     */
+    public void restore(DelayIndex.Entry entry, ParkedTask task) {
+        TaskMetadata metadata = TaskMetadata.builder().scheduledTimeMillis(entry.scheduledTimeMillis()).build();
+        long id = entry.id();
+        defer(entry.key(),
+              new DeferredEntry(metadata, () -> runParked(id, task), true, currentTimeMillis.get()));
+    }
+
+    private boolean heldByParkedTask(String key) {
+        if (key == null) {
+            return false;
+        }
+        Deque<DeferredEntry> entries = deferredTasks.get(key);
+        return entries != null && entries.peekLast().parked;
+    }
+
+    private CompletableFuture<Void> runParked(long id, ParkedTask task) throws InterruptedException {
+        DelayIndex.Entry entry = delayIndex.read(id);
+        final CompletableFuture<Void> result;
+        try {
+            result = task.run(entry);
+        } catch (InterruptedException e) {
+            removeParked(id, e);
+            throw e;
+        } catch (RuntimeException e) {
+            removeParked(id, e);
+            throw e;
+        }
+        return result.whenComplete((r, e) -> removeParked(id, e));
+    }
+
+    private void removeParked(long id, Throwable e) {
+        if (e instanceof InterruptedException && terminated) {
+            // Processing interrupted by shutdown. Leave it in the index to process again after restart.
+            return;
+        }
+        delayIndex.remove(id);
+    }
+
+    private CompletableFuture<Void> defer(String key, DeferredEntry entry) {
+        if (key == null) {
+            scheduleDispatch(delayMillis(entry), () -> dispatchIndependently(entry));
+            return entry.result;
+        }
+
+        Deque<DeferredEntry> entries = deferredTasks.get(key);
+        if (entries == null) {
+            entries = new ArrayDeque<>();
+            deferredTasks.put(key, entries);
+            entries.addLast(entry);
+            scheduleDispatch(delayMillis(entry), () -> dispatch(key));
+        } else {
+            // Dispatched after all preceding tasks are dispatched.
+            entries.addLast(entry);
+        }
+        return entry.result;
+    }
+
+    /**
+     * Schedules execution of a task which is already due, reserving a permit of the rate limiter for it.
+     * If the permit isn't available immediately, the returned time has to be waited through
+     * {@link #deferThrottled} rather than blocking the thread.
+     * This method blocks only when the rate limiter can't tell when the permit becomes available, e.g. while
+     * processing is paused.
+     *
+     * @param key the key of the task. may be null, in which case the rate limit per key isn't applied.
+     * @param metadata the metadata of the task.
+     * @param permits the number of permits to take from the rate limiter for the task.
+     * @return microseconds to wait until the reserved permit becomes available. 0 if the task can be processed
+     * immediately.
+     * @throws InterruptedException when interrupted while waiting for the rate limiter.
+     */
+    public long schedule(String key, TaskMetadata metadata, int permits) throws InterruptedException {
+        metrics.tasksSchedulingDelay.record(0, TimeUnit.MILLISECONDS);
+        return reserve(key, permits);
+    }
+
+    public long schedule(TaskMetadata metadata, int permits) throws InterruptedException {
+        return schedule(null, metadata, permits);
+    }
+
+    public long schedule(TaskMetadata metadata) throws InterruptedException {
+        return schedule(metadata, 1);
+    }
+
+    /**
+     * Reserves permits of the rate limit per key and the rate limiter.
+     * @return microseconds to wait until both of permits become available.
+     */
+    private long reserve(String key, int permits) throws InterruptedException {
+        long keyWaitMicros = 0L;
+        if (key != null) {
+            keyWaitMicros = keyRateLimiter.reserve(key, permits,
+                                                   TimeUnit.MILLISECONDS.toMicros(currentTimeMillis.get()));
+            if (keyWaitMicros > 0L) {
+                metrics.keyThrottledTime.record(keyWaitMicros, TimeUnit.MICROSECONDS);
             }
-            sleep(timeUntilProcess);
         }
 
-        metrics.tasksSchedulingDelay.record(Math.max(timeUntilProcess, 0), TimeUnit.MILLISECONDS);
+        long waitMicros = rateLimiter.reserve(permits);
+        if (waitMicros < 0L) {
+            acquirePermit(permits);
+            return keyWaitMicros;
+        }
+        if (waitMicros > 0L) {
+            metrics.partitionThrottledTime.record(waitMicros, TimeUnit.MICROSECONDS);
+        }
+        return Math.max(keyWaitMicros, waitMicros);
+    }
+
+    /**
+     * Defers a task which is throttled by the rate limiters until its reserved permit becomes available.
+     * Following tasks of the same key are held back behind the task likewise {@link #defer}.
+     *
+     * @param key the key of the task. may be null, in which case the task is deferred independently.
+     * @param metadata the metadata of the task.
+     * @param waitMicros microseconds to wait, which is returned by {@link #schedule}.
+     * @param task the processing to run when the permit becomes available.
+     * @return a {@link CompletableFuture} which completes when the future returned by the given task
+     * completes.
+     */
+    public CompletableFuture<Void> deferThrottled(String key, TaskMetadata metadata, long waitMicros,
+                                                  DeferredTask task) {
+        long now = currentTimeMillis.get();
+        DeferredEntry entry = new DeferredEntry(metadata, task, false, now);
+        entry.dueMillis = now + toMillisCeil(waitMicros);
+        entry.permitted = true;
+        return defer(key, entry);
+    }
+
+    private static long toMillisCeil(long micros) {
+        return (micros + 999L) / 1000L;
     }
 
-    public void schedule(TaskMetadata metadata) throws InterruptedException {
-        // For tasks which are configured to delay its execution.
-        waitOnScheduledTime(metadata);
+    /**
+     * Reports completion of a task to the rate limiter, which may adjust its rate by the feedback, and to the
+     * circuit breaker of the partition.
+     *
+     * @param latencyNanos the time taken to complete the task.
+     * @param failed whether the task failed.
+     */
+    public void reportCompletion(long latencyNanos, boolean failed) {
+        rateLimiter.report(latencyNanos, failed);
+        if (circuitBreaker != null && circuitBreaker.enabled()) {
+            circuitBreaker.report(failed);
+        }
+    }
 
-        long throttledMicros = rateLimiter.acquire();
+    private void acquirePermit(int permits) throws InterruptedException {
+        long throttledMicros = rateLimiter.acquire(permits);
         if (throttledMicros > 0L) {
             metrics.partitionThrottledTime.record(throttledMicros, TimeUnit.MICROSECONDS);
         }
     }
 
+    /**
+     * Reserves a permit for the deferred task unless it's reserved already.
+     * @return true if the task can be dispatched now, false if it has to wait for the reserved permit.
+     */
+    private boolean reservePermit(String key, DeferredEntry entry) throws InterruptedException {
+        if (entry.permitted) {
+            return true;
+        }
+        entry.permitted = true;
+        long waitMicros = reserve(key, entry.permits);
+        if (waitMicros == 0L) {
+            return true;
+        }
+        entry.dueMillis = currentTimeMillis.get() + toMillisCeil(waitMicros);
+        return false;
+    }
+
+    private long delayMillis(DeferredEntry entry) {
+        return Math.max(0L, entry.dueMillis - currentTimeMillis.get());
+    }
+
+    private void scheduleDispatch(long delayMillis, Runnable dispatch) {
+        try {
+            executor.schedule(dispatch, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The unit is shutting down so deferred tasks will never be processed, and their offsets will
+            // never be committed as well.
+            if (!terminated) {
+                throw e;
+            }
+        }
+    }
+
+    private void dispatch(String key) {
+        Deque<DeferredEntry> entries = deferredTasks.get(key);
+        while (!terminated) {
+            DeferredEntry entry = entries.peekFirst();
+            long delayMillis = delayMillis(entry);
+            if (delayMillis > 0 || !dispatch(key, entry)) {
+                scheduleDispatch(delayMillis(entry), () -> dispatch(key));
+                return;
+            }
+
+            entries.removeFirst();
+            if (entries.isEmpty()) {
+                deferredTasks.remove(key);
+                return;
+            }
+        }
+    }
+
+    private void dispatchIndependently(DeferredEntry entry) {
+        if (!dispatch(null, entry)) {
+            scheduleDispatch(delayMillis(entry), () -> dispatchIndependently(entry));
+        }
+    }
+
+    /**
+     * Dispatches the deferred task if its permit of the rate limiter is available.
+     * @return false if the task has to wait for the permit, true otherwise.
+     */
+    private boolean dispatch(String key, DeferredEntry entry) {
+        if (terminated) {
+            return true;
+        }
+
+        CompletableFuture<Void> result = entry.result;
+        try {
+            if (!reservePermit(key, entry)) {
+                return false;
+            }
+            metrics.tasksSchedulingDelay.record(currentTimeMillis.get() - entry.deferredAtMillis,
+                                                TimeUnit.MILLISECONDS);
+            entry.task.run().whenComplete((r, e) -> {
+                if (e == null) {
+                    result.complete(r);
+                } else {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            result.completeExceptionally(e);
+
+            logger.error("Uncaught exception thrown by processor {} for deferred task ({})",
+                         scope, entry.metadata, e);
+        }
+        return true;
+    }
+
     @Override
     public void close() {
-        terminateLatch.countDown();
+        terminated = true;
     }
 }
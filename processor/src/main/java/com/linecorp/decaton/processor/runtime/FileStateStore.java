@@ -0,0 +1,432 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A store which keeps all entries in memory and persists changes to a log file along with the offset of the
+ * partition they're committed up to.
+ *
+ * Processors change entries through a {@link StateStore} obtained by {@link #forOffset}, which tags changes with
+ * the offset of the task making them. {@link #flush} appends changes made by tasks before the committed offset
+ * followed by the offset to the log and forces them to the storage, while changes of tasks after it are kept in
+ * memory until the offset gets committed, so that they aren't applied twice when the tasks are processed again.
+ * Once the log grows larger than twice the size of live entries, it's rewritten with committed entries only.
+ *
+ * The store is restored by replaying the log up to the offset which processing of the partition starts from.
+ * If the log doesn't reach the offset, which means the partition has been processed by another instance after
+ * the last flush, the log is discarded.
+ *
+ * Layout:
+ * <pre>
+ * header: int magic
+ * entry: int body length | int crc of body | body
+ * body of change: int key length | key | int value length (-1 for deletion) | value
+ * body of committed offset: int -1 | long offset
+ * </pre>
+ * An entry with invalid length or crc terminates the log, which is truncated there as it's the one partially
+ * written on crash. Changes without a following offset are discarded as well.
+ */
+class FileStateStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(FileStateStore.class);
+
+    /**
+     * Denotes the offset is unknown, which lets the store restored up to the offset flushed last.
+     */
+    static final long UNKNOWN_OFFSET = -1L;
+
+    private static final int MAGIC = 0xDEC45708;
+    private static final int HEADER_SIZE = 4;
+    private static final int ENTRY_HEADER_SIZE = 4 + 4;
+    private static final int OFFSET_MARKER = -1;
+    // The log isn't compacted until it reaches this size, to avoid rewriting small logs frequently
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private static class Change {
+        private final long offset;
+        private final String key;
+        // null for deletion
+        private final byte[] value;
+        // The value before the change, which is null if the key didn't exist
+        private final byte[] previous;
+
+        Change(long offset, String key, byte[] value, byte[] previous) {
+            this.offset = offset;
+            this.key = key;
+            this.value = value;
+            this.previous = previous;
+        }
+    }
+
+    private final Path path;
+    private final Map<String, byte[]> entries;
+    // Changes not flushed yet, in the order they were made
+    private List<Change> pending;
+    private FileChannel channel;
+    private long committedOffset;
+    private long logBytes;
+    private long liveBytes;
+    private boolean closed;
+
+    private FileStateStore(Path path) {
+        this.path = path;
+        entries = new HashMap<>();
+        pending = new ArrayList<>();
+        committedOffset = UNKNOWN_OFFSET;
+    }
+
+    /**
+     * Opens the store at the given path, creating it if it doesn't exist.
+     *
+     * @param path path of the log file.
+     * @param startOffset the offset which processing of the partition starts from, which the store is restored
+     * up to. {@link #UNKNOWN_OFFSET} to restore up to the offset flushed last.
+     * @return an instance of {@link FileStateStore} restored from the log.
+     * @throws IOException when failed to read the log.
+     */
+    static FileStateStore open(Path path, long startOffset) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        FileStateStore store = new FileStateStore(path);
+        store.load(startOffset);
+        return store;
+    }
+
+    private void load(long startOffset) throws IOException {
+        ByteBuffer log = Files.exists(path) ? ByteBuffer.wrap(Files.readAllBytes(path)) : ByteBuffer.allocate(0);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (log.remaining() < HEADER_SIZE || log.getInt(0) != MAGIC) {
+            reset();
+            return;
+        }
+
+        // Changes are applied only when the following offset is within the range to restore. Only the last
+        // change of each key matters.
+        Map<String, byte[]> changes = new HashMap<>();
+        long restoredOffset = UNKNOWN_OFFSET;
+        int restoredPosition = HEADER_SIZE;
+        int position = HEADER_SIZE;
+        int length;
+        while ((length = validEntryLength(log, position)) > 0) {
+            ByteBuffer body = log.duplicate();
+            body.position(position + ENTRY_HEADER_SIZE);
+            int keyLength = body.getInt();
+            position += length;
+            if (keyLength == OFFSET_MARKER) {
+                long offset = body.getLong();
+                if (startOffset != UNKNOWN_OFFSET && offset > startOffset) {
+                    break;
+                }
+                changes.forEach(this::apply);
+                changes.clear();
+                restoredOffset = offset;
+                restoredPosition = position;
+                continue;
+            }
+            byte[] key = new byte[keyLength];
+            body.get(key);
+            int valueLength = body.getInt();
+            byte[] value = null;
+            if (valueLength >= 0) {
+                value = new byte[valueLength];
+                body.get(value);
+            }
+            changes.put(new String(key, StandardCharsets.UTF_8), value);
+        }
+
+        if (startOffset != UNKNOWN_OFFSET && restoredOffset != startOffset) {
+            if (restoredOffset != UNKNOWN_OFFSET) {
+                logger.info("Discarding {} restored up to offset {} as the partition starts from offset {}",
+                            this, restoredOffset, startOffset);
+            }
+            entries.clear();
+            liveBytes = 0;
+            reset();
+            return;
+        }
+        channel.truncate(restoredPosition);
+        logBytes = restoredPosition;
+        committedOffset = restoredOffset;
+    }
+
+    private void reset() throws IOException {
+        channel.truncate(0);
+        channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC), 0);
+        channel.force(false);
+        logBytes = HEADER_SIZE;
+    }
+
+    /**
+     * Returns the total length of the entry at the given position if it's a valid entry, or 0 otherwise.
+     */
+    private static int validEntryLength(ByteBuffer log, int position) {
+        if (position + ENTRY_HEADER_SIZE > log.limit()) {
+            return 0;
+        }
+        int bodyLength = log.getInt(position);
+        if (bodyLength < 8 || bodyLength > log.limit() - position - ENTRY_HEADER_SIZE) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(log.array(), position + ENTRY_HEADER_SIZE, bodyLength);
+        if (log.getInt(position + 4) != (int) crc.getValue()) {
+            return 0;
+        }
+        return ENTRY_HEADER_SIZE + bodyLength;
+    }
+
+    private static int entryLength(byte[] key, byte[] value) {
+        return ENTRY_HEADER_SIZE + 4 + key.length + 4 + (value == null ? 0 : value.length);
+    }
+
+    /**
+     * Applies the change to the entries in memory.
+     * @return the value before the change.
+     */
+    private byte[] apply(String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] oldValue = value == null ? entries.remove(key) : entries.put(key, value);
+        if (oldValue != null) {
+            liveBytes -= entryLength(keyBytes, oldValue);
+        }
+        if (value != null) {
+            liveBytes += entryLength(keyBytes, value);
+        }
+        return oldValue;
+    }
+
+    private static byte[] encode(String key, byte[] value) {
+        return encode(key.getBytes(StandardCharsets.UTF_8), value);
+    }
+
+    private static byte[] encode(byte[] key, byte[] value) {
+        int bodyLength = 4 + key.length + 4 + (value == null ? 0 : value.length);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_SIZE + bodyLength);
+        entry.putInt(bodyLength);
+        entry.putInt(0); // crc, filled below
+        entry.putInt(key.length);
+        entry.put(key);
+        if (value == null) {
+            entry.putInt(-1);
+        } else {
+            entry.putInt(value.length);
+            entry.put(value);
+        }
+        return withCrc(entry, bodyLength);
+    }
+
+    private static byte[] encodeOffset(long offset) {
+        int bodyLength = 4 + 8;
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_SIZE + bodyLength);
+        entry.putInt(bodyLength);
+        entry.putInt(0); // crc, filled below
+        entry.putInt(OFFSET_MARKER);
+        entry.putLong(offset);
+        return withCrc(entry, bodyLength);
+    }
+
+    private static byte[] withCrc(ByteBuffer entry, int bodyLength) {
+        CRC32 crc = new CRC32();
+        crc.update(entry.array(), ENTRY_HEADER_SIZE, bodyLength);
+        entry.putInt(4, (int) crc.getValue());
+        return entry.array();
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("state store is closed: " + this);
+        }
+    }
+
+    /**
+     * Returns a {@link StateStore} to access this store, whose changes are made by the task at the offset.
+     * @param offset the offset of the task accessing the store.
+     * @return a {@link StateStore} backed by this store.
+     */
+    StateStore forOffset(long offset) {
+        return new StateStore() {
+            @Override
+            public byte[] get(String key) {
+                return FileStateStore.this.get(key);
+            }
+
+            @Override
+            public void put(String key, byte[] value) {
+                FileStateStore.this.put(offset, key, value);
+            }
+
+            @Override
+            public void delete(String key) {
+                FileStateStore.this.delete(offset, key);
+            }
+        };
+    }
+
+    synchronized byte[] get(String key) {
+        ensureOpen();
+        return entries.get(Objects.requireNonNull(key, "key"));
+    }
+
+    synchronized void put(long offset, String key, byte[] value) {
+        ensureOpen();
+        Objects.requireNonNull(value, "value");
+        byte[] previous = apply(Objects.requireNonNull(key, "key"), value);
+        pending.add(new Change(offset, key, value, previous));
+    }
+
+    synchronized void delete(long offset, String key) {
+        ensureOpen();
+        if (!entries.containsKey(Objects.requireNonNull(key, "key"))) {
+            return;
+        }
+        byte[] previous = apply(key, null);
+        pending.add(new Change(offset, key, null, previous));
+    }
+
+    /**
+     * Appends changes made by tasks before the committed offset followed by the offset to the log and forces
+     * them to the storage. Changes made by later tasks are kept pending.
+     * Does nothing once the store is closed or the offset isn't beyond the one flushed last.
+     * @param committedOffset the offset to be committed, i.e. the one of the next task to process.
+     * @throws UncheckedIOException when failed to write the log.
+     */
+    synchronized void flush(long committedOffset) {
+        if (closed || committedOffset <= this.committedOffset) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Change> remaining = new ArrayList<>();
+        for (Change change : pending) {
+            if (change.offset < committedOffset) {
+                byte[] entry = encode(change.key, change.value);
+                out.write(entry, 0, entry.length);
+            } else {
+                remaining.add(change);
+            }
+        }
+        byte[] marker = encodeOffset(committedOffset);
+        out.write(marker, 0, marker.length);
+
+        try {
+            // The position is advanced only after all bytes got written so that partially written bytes are
+            // overwritten on the next attempt
+            long position = write(channel, logBytes, out.toByteArray());
+            channel.force(false);
+            logBytes = position;
+            pending = remaining;
+            this.committedOffset = committedOffset;
+
+            if (logBytes > MIN_COMPACTION_BYTES && logBytes > liveBytes * 2) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to flush " + this, e);
+        }
+    }
+
+    /**
+     * Rewrites the log with committed entries only, replacing the current log atomically.
+     */
+    private void compact() throws IOException {
+        // Pending changes are already applied in memory, so the committed value of a key changed by them is
+        // the one before the first pending change
+        Map<String, byte[]> committedValues = new HashMap<>();
+        for (Change change : pending) {
+            if (!committedValues.containsKey(change.key)) {
+                committedValues.put(change.key, change.previous);
+            }
+        }
+
+        Path compacting = Paths.get(path + ".compacting");
+        try (FileChannel out = FileChannel.open(compacting, StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = out.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC), 0);
+            for (Entry<String, byte[]> entry : entries.entrySet()) {
+                if (!committedValues.containsKey(entry.getKey())) {
+                    position = write(out, position, encode(entry.getKey(), entry.getValue()));
+                }
+            }
+            for (Entry<String, byte[]> entry : committedValues.entrySet()) {
+                if (entry.getValue() != null) {
+                    position = write(out, position, encode(entry.getKey(), entry.getValue()));
+                }
+            }
+            position = write(out, position, encodeOffset(committedOffset));
+            out.force(false);
+            logBytes = position;
+        }
+        channel.close();
+        Files.move(compacting, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Writes the bytes to the channel at the position.
+     * @return the position after the written bytes.
+     */
+    private static long write(FileChannel out, long position, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * Closes the log. Changes not flushed yet are discarded, as they're made by tasks whose offsets aren't
+     * committed and will be processed again.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to close " + this, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileStateStore{" + path + '}';
+    }
+}
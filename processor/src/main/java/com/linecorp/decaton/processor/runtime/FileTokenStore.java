@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * A {@link TokenStore} which keeps buckets in files under the given directory, so that processes on the same
+ * host can share the rate limit.
+ * Each bucket is a file named after the URL-encoded bucket name, holding the time the next token becomes
+ * available, which is updated under an exclusive file lock.
+ *
+ * Since the wall clock is used to share the time between processes, leases can be inaccurate when the clock
+ * jumps.
+ */
+public class FileTokenStore implements TokenStore, Closeable {
+    private static final long MAX_BURST_MICROS = SECONDS.toMicros(1L);
+
+    private final Path directory;
+    private final Map<String, FileChannel> channels;
+
+    public FileTokenStore(Path directory) {
+        this.directory = directory;
+        channels = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public long lease(String bucket, long permitsPerSecond, int tokens) {
+        long nowMicros = MILLISECONDS.toMicros(System.currentTimeMillis());
+        long cost = SECONDS.toMicros(tokens) / permitsPerSecond;
+        long floorMicros = nowMicros - MAX_BURST_MICROS;
+        long previous = update(bucket, nextFreeTicketMicros -> Math.max(nextFreeTicketMicros, floorMicros) + cost,
+                               nowMicros);
+        return Math.max(Math.max(previous, floorMicros) - nowMicros, 0L);
+    }
+
+    @Override
+    public void release(String bucket, long permitsPerSecond, int tokens) {
+        long nowMicros = MILLISECONDS.toMicros(System.currentTimeMillis());
+        long cost = SECONDS.toMicros(tokens) / permitsPerSecond;
+        update(bucket, nextFreeTicketMicros -> Math.max(nextFreeTicketMicros - cost, nowMicros - MAX_BURST_MICROS),
+               nowMicros);
+    }
+
+    /**
+     * Updates the next free ticket time of the bucket under the lock.
+     *
+     * @param updater a function which takes the current next free ticket time and returns the new one.
+     * @param nowMicros the current time, which is used when the bucket is empty.
+     * @return the next free ticket time before the update.
+     */
+    private long update(String bucket, LongUnaryOperator updater, long nowMicros) {
+        FileChannel channel = channels.computeIfAbsent(bucket, this::openChannel);
+        // File locks are held on behalf of the whole JVM, so threads in this process have to be serialized
+        // by themselves.
+        synchronized (channel) {
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+                    long nextFreeTicketMicros =
+                            channel.read(buffer, 0) == Long.BYTES ? buffer.getLong(0) : nowMicros;
+
+                    buffer.putLong(0, updater.applyAsLong(nextFreeTicketMicros));
+                    buffer.rewind();
+                    channel.write(buffer, 0);
+                    return nextFreeTicketMicros;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("failed to update bucket " + bucket, e);
+            }
+        }
+    }
+
+    private FileChannel openChannel(String bucket) {
+        try {
+            Files.createDirectories(directory);
+            return FileChannel.open(directory.resolve(fileName(bucket)), StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to open bucket " + bucket, e);
+        }
+    }
+
+    /**
+     * Encodes the bucket name, which is typically a subscription id given by users, so that it can't contain
+     * path separators or characters invalid for file names, while distinct names map to distinct files.
+     */
+    // visible for testing
+    static String fileName(String bucket) {
+        try {
+            return URLEncoder.encode(bucket, StandardCharsets.UTF_8.name()).replace("*", "%2A") + ".bucket";
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (FileChannel channel : channels.values()) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileTokenStore{" + directory + '}';
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel which holds elements until their deadlines, and hands expired ones in batches on every
+ * tick rather than scheduling a timer for each element.
+ *
+ * Deadlines must be within {@code maxDelayMillis} from the time of adding, so that an element never goes
+ * around the wheel and adding is O(1) without ordering elements.
+ * {@link #add} is thread-safe, while {@link #advance} has to be called by a single thread.
+ *
+ * @param <E> type of elements
+ */
+class HashedTimingWheel<E> {
+    private static class Slot<E> {
+        private final long tick;
+        private final E element;
+
+        private Slot(long tick, E element) {
+            this.tick = tick;
+            this.element = element;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<List<Slot<E>>> buckets;
+    // The last tick whose bucket has been handed. Updated only while holding the bucket's lock.
+    private volatile long processedTick;
+
+    /**
+     * @param tickMillis the resolution of deadlines.
+     * @param maxDelayMillis the maximum delay of deadlines from the time of adding.
+     * @param nowMillis the current time.
+     */
+    HashedTimingWheel(long tickMillis, long maxDelayMillis, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        // +2 for rounding up the deadline and the tick which may be being processed now
+        int size = (int) (maxDelayMillis / tickMillis) + 2;
+        buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        processedTick = Math.floorDiv(nowMillis, tickMillis);
+    }
+
+    /**
+     * Adds an element which expires at the given deadline.
+     * An element whose deadline has passed already expires at the next tick.
+     */
+    void add(E element, long deadlineMillis) {
+        // Round up so that the element never expires before the deadline
+        long deadlineTick = -Math.floorDiv(-deadlineMillis, tickMillis);
+        while (true) {
+            long tick = Math.max(deadlineTick, processedTick + 1);
+            List<Slot<E>> bucket = bucket(tick);
+            synchronized (bucket) {
+                if (tick > processedTick) {
+                    bucket.add(new Slot<>(tick, element));
+                    return;
+                }
+            }
+            // The tick got processed while acquiring the lock. Retry with the next one.
+        }
+    }
+
+    /**
+     * Advances the wheel up to the given time and passes elements expired by then to the consumer in order of
+     * their deadlines, at the tick resolution.
+     */
+    void advance(long nowMillis, Consumer<E> expired) {
+        long nowTick = Math.floorDiv(nowMillis, tickMillis);
+        List<E> batch = new ArrayList<>();
+        for (long tick = processedTick + 1; tick <= nowTick; tick++) {
+            List<Slot<E>> bucket = bucket(tick);
+            synchronized (bucket) {
+                processedTick = tick;
+                for (Iterator<Slot<E>> iterator = bucket.iterator(); iterator.hasNext(); ) {
+                    Slot<E> slot = iterator.next();
+                    if (slot.tick <= tick) {
+                        batch.add(slot.element);
+                        iterator.remove();
+                    }
+                }
+            }
+            for (E element : batch) {
+                expired.accept(element);
+            }
+            batch.clear();
+        }
+    }
+
+    private List<Slot<E>> bucket(long tick) {
+        return buckets.get((int) Math.floorMod(tick, (long) buckets.size()));
+    }
+}
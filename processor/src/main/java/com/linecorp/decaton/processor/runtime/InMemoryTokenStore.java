@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link TokenStore} which keeps buckets in memory.
+ * This can be used to share the rate limit among subscriptions in the same JVM, or for testing.
+ */
+public class InMemoryTokenStore implements TokenStore {
+    private final Map<String, AveragingRateLimiter> buckets = new ConcurrentHashMap<>();
+
+    @Override
+    public long lease(String bucket, long permitsPerSecond, int tokens) {
+        AveragingRateLimiter limiter = buckets.compute(bucket, (name, current) -> {
+            if (current != null && current.permitsPerSecond() == permitsPerSecond) {
+                return current;
+            }
+            return new AveragingRateLimiter(permitsPerSecond, 1.0d, System::nanoTime);
+        });
+        return limiter.reserve(tokens);
+    }
+
+    @Override
+    public void release(String bucket, long permitsPerSecond, int tokens) {
+        AveragingRateLimiter limiter = buckets.get(bucket);
+        if (limiter != null && limiter.permitsPerSecond() == permitsPerSecond) {
+            limiter.release(tokens);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
+import com.linecorp.decaton.processor.metrics.Metrics.RetryMetrics;
+
+/**
+ * Tracks consecutive failures of each key and quarantines keys which keep failing for a cooldown period, so
+ * that tasks of a poison-pill key are sent to the dead letter topic rather than cycling through retries.
+ * The number of keys tracked at a time is bounded by
+ * {@link ProcessorProperties#CONFIG_RETRY_QUARANTINE_MAX_TRACKED_KEYS}, beyond which keys failed least recently
+ * are forgotten. Quarantined keys are forgotten only when all the tracked keys are quarantined.
+ * An instance is shared by all partitions of a subscription, hence thread-safe.
+ */
+class KeyQuarantine {
+    private static final Logger logger = LoggerFactory.getLogger(KeyQuarantine.class);
+
+    private final Property<Integer> failureThreshold;
+    private final Property<Long> cooldownMillis;
+    private final Property<Integer> maxTrackedKeys;
+    private final RetryMetrics metrics;
+    private final LongSupplier clock;
+    // Consecutive failures of keys not quarantined, in the order they were accessed
+    private final Map<String, Integer> failures;
+    // The time until which each key is quarantined, in the order they got quarantined
+    private final Map<String, Long> quarantined;
+
+    KeyQuarantine(ProcessorProperties props, RetryMetrics metrics, LongSupplier clock) {
+        failureThreshold = props.get(ProcessorProperties.CONFIG_RETRY_QUARANTINE_FAILURES);
+        cooldownMillis = props.get(ProcessorProperties.CONFIG_RETRY_QUARANTINE_COOLDOWN_MS);
+        maxTrackedKeys = props.get(ProcessorProperties.CONFIG_RETRY_QUARANTINE_MAX_TRACKED_KEYS);
+        this.metrics = metrics;
+        this.clock = clock;
+        failures = new LinkedHashMap<>(16, 0.75f, true);
+        quarantined = new LinkedHashMap<>();
+    }
+
+    KeyQuarantine(ProcessorProperties props, RetryMetrics metrics) {
+        this(props, metrics, System::currentTimeMillis);
+    }
+
+    private boolean enabled(String key) {
+        return key != null && failureThreshold.value() > 0;
+    }
+
+    /**
+     * Returns true if tasks of the key have to be sent to the dead letter topic without being processed.
+     */
+    boolean isQuarantined(String key) {
+        if (!enabled(key)) {
+            return false;
+        }
+        synchronized (this) {
+            long now = clock.getAsLong();
+            liftExpired(now);
+            Long quarantinedUntilMillis = quarantined.get(key);
+            if (quarantinedUntilMillis == null) {
+                return false;
+            }
+            if (quarantinedUntilMillis > now) {
+                return true;
+            }
+            // The cooldown elapsed, while the key wasn't lifted as the cooldown has been shortened meanwhile.
+            quarantined.remove(key);
+            metrics.retryQuarantinedKeysCurrent.set(quarantined.size());
+            return false;
+        }
+    }
+
+    void recordFailure(String key) {
+        if (!enabled(key)) {
+            return;
+        }
+        synchronized (this) {
+            long now = clock.getAsLong();
+            liftExpired(now);
+            if (quarantined.containsKey(key)) {
+                return;
+            }
+            int count = failures.merge(key, 1, Integer::sum);
+            if (count >= failureThreshold.value()) {
+                failures.remove(key);
+                quarantined.put(key, now + cooldownMillis.value());
+                metrics.retryQuarantinedKeys.increment();
+                logger.warn("Quarantining key {} for {} ms as it failed {} times in a row",
+                            key, cooldownMillis.value(), count);
+            }
+            evictExcess();
+            metrics.retryQuarantinedKeysCurrent.set(quarantined.size());
+        }
+    }
+
+    void recordSuccess(String key) {
+        if (!enabled(key)) {
+            return;
+        }
+        synchronized (this) {
+            failures.remove(key);
+        }
+    }
+
+    /**
+     * Lifts quarantine of keys whose cooldown elapsed. Keys are checked in the order they got quarantined,
+     * which is the order of their expiry as long as the cooldown isn't changed.
+     */
+    private void liftExpired(long now) {
+        boolean lifted = false;
+        for (Iterator<Long> it = quarantined.values().iterator(); it.hasNext(); ) {
+            if (it.next() > now) {
+                break;
+            }
+            it.remove();
+            lifted = true;
+        }
+        if (lifted) {
+            metrics.retryQuarantinedKeysCurrent.set(quarantined.size());
+        }
+    }
+
+    /**
+     * Forgets keys beyond the limit, starting from the ones failed least recently, so that quarantined keys are
+     * kept as long as possible.
+     */
+    private void evictExcess() {
+        int excess = failures.size() + quarantined.size() - maxTrackedKeys.value();
+        for (Iterator<?> it = failures.keySet().iterator(); excess > 0 && it.hasNext(); excess--) {
+            it.next();
+            it.remove();
+        }
+        for (Iterator<?> it = quarantined.keySet().iterator(); excess > 0 && it.hasNext(); excess--) {
+            it.next();
+            it.remove();
+        }
+    }
+}
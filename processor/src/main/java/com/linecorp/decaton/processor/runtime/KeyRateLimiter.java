@@ -0,0 +1,118 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.linecorp.decaton.processor.Property;
+
+/**
+ * A rate limiter which limits the rate of each key separately.
+ *
+ * The state of each key is a single timestamp, the time the next permit becomes available minus the time worth
+ * of the permits stored while idle, likewise {@link AveragingRateLimiter}.
+ * The states are held in a fixed size open-addressing table keyed by 64-bit hash of keys, so the memory doesn't
+ * grow with the number of keys.
+ * If no empty slot is left in the probing range, the state which has stored the most permits is evicted.
+ * It's usually a state which has stored the max burst, which is the same as absent, otherwise eviction only lets
+ * the evicted key burst again.
+ *
+ * This class isn't thread-safe, which is supposed to be used by a single unit.
+ */
+class KeyRateLimiter {
+    static final int MAX_PROBES = 8;
+    private static final long MAX_BURST_MICROS = SECONDS.toMicros(1L);
+    private static final long EMPTY = 0L;
+
+    private final Property<Long> rateProperty;
+    private final int capacity;
+
+    // Allocated lazily since the rate is usually unlimited
+    private long[] hashes;
+    private long[] nextFreeTicketMicros;
+    private int mask;
+
+    /**
+     * @param rateProperty the property of the rate per key.
+     * @param capacity the number of keys to hold the state at most, which is rounded up to a power of two.
+     */
+    KeyRateLimiter(Property<Long> rateProperty, int capacity) {
+        this.rateProperty = rateProperty;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reserves permits for the key without blocking.
+     *
+     * @param key the key of the task.
+     * @param permits the number of permits to reserve.
+     * @param nowMicros the current time in microseconds.
+     * @return microseconds to wait until the reserved permits become available.
+     */
+    long reserve(String key, int permits, long nowMicros) {
+        long permitsPerSecond = rateProperty.value();
+        if (permitsPerSecond < 0L || permitsPerSecond > RateLimiter.MAX_RATE) {
+            return 0L;
+        }
+        if (hashes == null) {
+            int size = Integer.highestOneBit(Math.max(capacity - 1, MAX_PROBES - 1)) << 1;
+            hashes = new long[size];
+            nextFreeTicketMicros = new long[size];
+            mask = size - 1;
+        }
+
+        long hash = hash(key);
+        int slot = slotFor(hash, nowMicros);
+        long cost = (long) (permits * (double) SECONDS.toMicros(1L) / permitsPerSecond);
+        long base = Math.max(nextFreeTicketMicros[slot], nowMicros - MAX_BURST_MICROS);
+        nextFreeTicketMicros[slot] = base + cost;
+        return Math.max(base - nowMicros, 0L);
+    }
+
+    private int slotFor(long hash, long nowMicros) {
+        int start = (int) (hash ^ (hash >>> 32)) & mask;
+        int victim = -1;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (start + i) & mask;
+            if (hashes[slot] == hash) {
+                return slot;
+            }
+            if (hashes[slot] == EMPTY) {
+                // Slots are never emptied, so the key doesn't exist beyond an empty slot
+                victim = slot;
+                break;
+            }
+            if (victim < 0 || nextFreeTicketMicros[slot] < nextFreeTicketMicros[victim]) {
+                victim = slot;
+            }
+        }
+        hashes[victim] = hash;
+        nextFreeTicketMicros[victim] = nowMicros - MAX_BURST_MICROS;
+        return victim;
+    }
+
+    // FNV-1a
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY ? 1L : hash;
+    }
+}
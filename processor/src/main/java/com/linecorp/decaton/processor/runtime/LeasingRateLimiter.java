@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link RateLimiter} which takes permits from a bucket of {@link TokenStore} shared with other instances.
+ *
+ * Tokens are leased in chunks and handed out locally until they run out, so most reservations don't access
+ * the store. Tokens left unused when this limiter is closed are returned to the store.
+ * If the store fails, tasks are processed without waiting rather than stopping all processing, while other
+ * limits are still applied.
+ */
+class LeasingRateLimiter implements RateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(LeasingRateLimiter.class);
+
+    /**
+     * Tokens left in the current lease and the time they become available, which are updated together so that
+     * a reservation never pairs tokens with the time of another lease.
+     */
+    private static class Lease {
+        final long remainingPermits;
+        final long availableAtNanos;
+
+        Lease(long remainingPermits, long availableAtNanos) {
+            this.remainingPermits = remainingPermits;
+            this.availableAtNanos = availableAtNanos;
+        }
+    }
+
+    private final TokenStore store;
+    private final String bucket;
+    private final long permitsPerSecond;
+    private final int leasePermits;
+    private final LongSupplier currentTimeNanos;
+    private final CountDownLatch latch;
+    private final AtomicReference<Lease> lease;
+
+    LeasingRateLimiter(TokenStore store, String bucket, long permitsPerSecond, int leasePermits,
+                       LongSupplier currentTimeNanos) {
+        if (permitsPerSecond <= 0L) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        this.store = store;
+        this.bucket = bucket;
+        this.permitsPerSecond = permitsPerSecond;
+        this.leasePermits = leasePermits;
+        this.currentTimeNanos = currentTimeNanos;
+        latch = new CountDownLatch(1);
+        lease = new AtomicReference<>(new Lease(0L, currentTimeNanos.getAsLong()));
+    }
+
+    LeasingRateLimiter(TokenStore store, String bucket, long permitsPerSecond, int leasePermits) {
+        this(store, bucket, permitsPerSecond, leasePermits, System::nanoTime);
+    }
+
+    @Override
+    public long acquire(int permits) throws InterruptedException {
+        if (latch.getCount() == 0) {
+            throw new IllegalStateException("This limiter is already closed");
+        }
+
+        long microsToWait = reserve(permits);
+        if (microsToWait > 0L) {
+            latch.await(microsToWait, MICROSECONDS);
+        }
+        return microsToWait;
+    }
+
+    @Override
+    public long reserve(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException(String.format("Requested permits (%s) must be positive",
+                                                             permits));
+        }
+
+        while (true) {
+            Lease current = lease.get();
+            if (current.remainingPermits >= permits) {
+                Lease next = new Lease(current.remainingPermits - permits, current.availableAtNanos);
+                if (lease.compareAndSet(current, next)) {
+                    return Math.max(
+                            NANOSECONDS.toMicros(current.availableAtNanos - currentTimeNanos.getAsLong()), 0L);
+                }
+                continue;
+            }
+            synchronized (this) {
+                long remaining = lease.get().remainingPermits;
+                if (remaining < permits) {
+                    extendLease(Math.max(leasePermits, (int) (permits - remaining)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Leases tokens from the store and adds them to the current lease.
+     * Leftover tokens of the current lease are kept, and considered available when newly leased ones are.
+     */
+    private void extendLease(int tokens) {
+        long waitMicros;
+        try {
+            waitMicros = store.lease(bucket, permitsPerSecond, tokens);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to lease tokens of {} from {}. Proceeding without waiting", bucket, store, e);
+            waitMicros = 0L;
+        }
+        long availableAtNanos = currentTimeNanos.getAsLong() + MICROSECONDS.toNanos(waitMicros);
+        while (true) {
+            Lease current = lease.get();
+            Lease next = new Lease(current.remainingPermits + tokens,
+                                   current.remainingPermits > 0L
+                                   ? Math.max(current.availableAtNanos, availableAtNanos)
+                                   : availableAtNanos);
+            if (lease.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns tokens left in the current lease to the store so that other instances can use them.
+     */
+    @Override
+    public void close() {
+        latch.countDown();
+        long remaining = lease.getAndSet(new Lease(0L, currentTimeNanos.getAsLong())).remainingPermits;
+        if (remaining > 0L) {
+            try {
+                store.release(bucket, permitsPerSecond, (int) remaining);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to release {} tokens of {} to {}", remaining, bucket, store, e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LeasingRateLimiter[bucket=" + bucket + ", rate=" + permitsPerSecond + "qps]";
+    }
+}
@@ -39,22 +39,58 @@ public class LoggingContext implements AutoCloseable {
     public static final String SUBSCRIPTION_ID_KEY = "dt_subscription_id";
     public static final String TASK_KEY = "dt_task_key";
 
+    // Whether to leave the keys of the subscription and the partition in MDC on close
+    private final boolean keepPartitionKeys;
+
     public LoggingContext(String subscriptionId, TaskRequest request, TaskMetadata metadata) {
-        MDC.put(METADATA_KEY, metadata.toString());
-        MDC.put(TASK_KEY, request.key());
+        putPartitionKeys(subscriptionId, request);
+        putTaskKeys(request, metadata);
+        keepPartitionKeys = false;
+    }
+
+    private LoggingContext(TaskRequest request, TaskMetadata metadata) {
+        putTaskKeys(request, metadata);
+        keepPartitionKeys = true;
+    }
+
+    /**
+     * Creates a {@link LoggingContext} for a task processed by a thread dedicated to the partition.
+     * The keys of the subscription and the partition are populated only if they aren't in MDC yet, and are left
+     * in MDC on close so that following tasks of the thread only need to populate the keys of the task.
+     * Use {@link #removePartitionKeys()} to remove them.
+     */
+    static LoggingContext reusingPartitionKeys(String subscriptionId, TaskRequest request, TaskMetadata metadata) {
+        if (MDC.get(PARTITION_KEY) == null) {
+            putPartitionKeys(subscriptionId, request);
+        }
+        return new LoggingContext(request, metadata);
+    }
+
+    static void removePartitionKeys() {
+        MDC.remove(TOPIC_KEY);
+        MDC.remove(PARTITION_KEY);
+        MDC.remove(SUBSCRIPTION_ID_KEY);
+    }
+
+    private static void putPartitionKeys(String subscriptionId, TaskRequest request) {
         MDC.put(SUBSCRIPTION_ID_KEY, subscriptionId);
-        MDC.put(OFFSET_KEY, String.valueOf(request.recordOffset()));
         MDC.put(TOPIC_KEY, request.topicPartition().topic());
         MDC.put(PARTITION_KEY, String.valueOf(request.topicPartition().partition()));
     }
 
+    private static void putTaskKeys(TaskRequest request, TaskMetadata metadata) {
+        MDC.put(METADATA_KEY, metadata.toString());
+        MDC.put(TASK_KEY, request.key());
+        MDC.put(OFFSET_KEY, String.valueOf(request.recordOffset()));
+    }
+
     @Override
     public void close() {
         MDC.remove(OFFSET_KEY);
-        MDC.remove(TOPIC_KEY);
         MDC.remove(TASK_KEY);
-        MDC.remove(PARTITION_KEY);
         MDC.remove(METADATA_KEY);
-        MDC.remove(SUBSCRIPTION_ID_KEY);
+        if (!keepPartitionKeys) {
+            removePartitionKeys();
+        }
     }
 }
@@ -33,30 +33,63 @@ public class PartitionContext {
     private final OutOfOrderCommitControl commitControl;
     private final Processors<?> processors;
     private final PartitionStateMetrics metrics;
+    private final CircuitBreaker circuitBreaker;
+    // Offsets of tasks completed recently, which is null unless deduplication is enabled.
+    private final SeenOffsets seenOffsets;
 
     private long pausedTimeNanos;
-
-    public PartitionContext(PartitionScope scope, Processors<?> processors, int maxPendingRecords) {
+    // The time until which the partition is paused for the head task to become due, or 0 if it isn't.
+    private long pausedUntilMillis;
+
+    /**
+     * @param seenOffsets offsets of tasks completed recently, which are kept across contexts of the same
+     * partition. may be null.
+     * @param startOffset the offset which processing of the partition starts from.
+     * {@link FileStateStore#UNKNOWN_OFFSET} if unknown.
+     */
+    PartitionContext(PartitionScope scope, Processors<?> processors, int maxPendingRecords,
+                     RateLimiter parentRateLimiter, SeenOffsets seenOffsets, long startOffset) {
         this.scope = scope;
         this.processors = processors;
-        partitionProcessor = new PartitionProcessor(scope, processors);
-
-        int capacity = maxPendingRecords + ConsumerSupplier.MAX_MAX_POLL_RECORDS;
-        commitControl = new OutOfOrderCommitControl(scope.topicPartition(), capacity);
+        this.seenOffsets = seenOffsets;
 
         TopicPartition tp = scope.topicPartition();
         metrics = Metrics.withTags("subscription", scope.subscriptionId(),
                                    "topic", tp.topic(),
                                    "partition", String.valueOf(tp.partition()))
                 .new PartitionStateMetrics();
+        circuitBreaker = new CircuitBreaker(scope, metrics.circuitBreakerOpened);
+        partitionProcessor = new PartitionProcessor(scope, processors, parentRateLimiter, circuitBreaker,
+                                                    startOffset);
+
+        int capacity = maxPendingRecords + ConsumerSupplier.MAX_MAX_POLL_RECORDS;
+        commitControl = new OutOfOrderCommitControl(scope.topicPartition(), capacity);
 
         pausedTimeNanos = -1;
     }
 
+    public PartitionContext(PartitionScope scope, Processors<?> processors, int maxPendingRecords,
+                            RateLimiter parentRateLimiter) {
+        this(scope, processors, maxPendingRecords, parentRateLimiter, null, FileStateStore.UNKNOWN_OFFSET);
+    }
+
+    public PartitionContext(PartitionScope scope, Processors<?> processors, int maxPendingRecords) {
+        this(scope, processors, maxPendingRecords, null);
+    }
+
     public long commitReadyOffset() {
         return commitControl.commitReadyOffset();
     }
 
+    /**
+     * Flushes parked tasks and changes of the state store of this partition made by tasks before the offset,
+     * which must be done before committing the offset.
+     * @param committedOffset the offset to be committed.
+     */
+    public void flushLocalStorages(long committedOffset) {
+        partitionProcessor.flushLocalStorages(committedOffset);
+    }
+
     public TopicPartition topicPartition() {
         return scope.topicPartition();
     }
@@ -71,7 +104,16 @@ public class PartitionContext {
     }
 
     public void destroyProcessors() throws Exception {
-        partitionProcessor.close();
+        try {
+            partitionProcessor.close();
+            // The offset is committed on revocation or shutdown after this, while changes made up to it may
+            // have not been flushed yet
+            if (commitReadyOffset() > 0) {
+                partitionProcessor.flushLocalStorages(commitReadyOffset() + 1);
+            }
+        } finally {
+            partitionProcessor.closeStateStore();
+        }
         processors.destroyPartitionScope(scope.subscriptionId(), scope.topicPartition());
     }
 
@@ -80,11 +122,52 @@ public class PartitionContext {
     }
 
     public void addRequest(TaskRequest request) {
+        if (seenOffsets != null && seenOffsets.contains(request.recordOffset())) {
+            // The task has completed before the offset got committed, so skip it without processing again
+            metrics.tasksDeduplicated.increment();
+            request.completion().complete();
+            return;
+        }
         partitionProcessor.addTask(request);
     }
 
     public DeferredCompletion registerOffset(long offset) {
-        return commitControl.reportFetchedOffset(offset);
+        DeferredCompletion completion = commitControl.reportFetchedOffset(offset);
+        if (seenOffsets == null) {
+            return completion;
+        }
+        return () -> {
+            seenOffsets.add(offset);
+            completion.complete();
+        };
+    }
+
+    public boolean isRetryTopic() {
+        return scope.isRetryTopic();
+    }
+
+    /**
+     * Marks the partition to be paused until the given time, at which the task at the position becomes due.
+     * @param millis the time to resume the partition.
+     */
+    public void pauseUntil(long millis) {
+        pausedUntilMillis = millis;
+    }
+
+    /**
+     * Returns whether the partition has to be kept paused for the head task to become due.
+     * @param nowMillis the current time.
+     */
+    public boolean waitingForDue(long nowMillis) {
+        return pausedUntilMillis > nowMillis;
+    }
+
+    /**
+     * Returns whether the partition has to be paused by its circuit breaker, which opened by failures of tasks
+     * or is half-open processing probe tasks.
+     */
+    public boolean circuitOpen() {
+        return circuitBreaker.enabled() && circuitBreaker.shouldPause(pendingTasksCount());
     }
 
     public boolean paused() {
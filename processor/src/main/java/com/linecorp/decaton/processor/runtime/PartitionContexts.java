@@ -19,9 +19,11 @@ package com.linecorp.decaton.processor.runtime;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -36,7 +38,7 @@ import com.linecorp.decaton.processor.ProcessorProperties;
 import com.linecorp.decaton.processor.Property;
 import com.linecorp.decaton.processor.runtime.Utils.Task;
 
-public class PartitionContexts {
+public class PartitionContexts implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(PartitionContexts.class);
 
     private final SubscriptionScope scope;
@@ -44,10 +46,24 @@ public class PartitionContexts {
     private final Property<Long> processingRateProp;
     private final int maxPendingRecords;
     private final Map<TopicPartition, PartitionContext> contexts;
+    // Limiters shared by all partitions assigned to this instance, to keep the total rate regardless of the
+    // number of assigned partitions.
+    private final RateLimiter clusterRateLimiter;
+    private final RateLimiter subscriptionRateLimiter;
+    private final Map<String, RateLimiter> topicRateLimiters;
+    // Kept after dropping contexts so that tasks completed before revocation are skipped once the partition is
+    // assigned back. Empty unless deduplication is enabled.
+    private final Map<TopicPartition, SeenOffsets> seenOffsets;
+    private final int deduplicationCapacity;
 
     private final AtomicBoolean reloadRequested;
 
-    public PartitionContexts(SubscriptionScope scope, Processors<?> processors) {
+    /**
+     * @param scope the scope of the subscription.
+     * @param processors processors to create partition contexts.
+     * @param tokenStore a store to share the rate limit with other instances. may be null.
+     */
+    public PartitionContexts(SubscriptionScope scope, Processors<?> processors, TokenStore tokenStore) {
         this.scope = scope;
         this.processors = processors;
 
@@ -55,6 +71,13 @@ public class PartitionContexts {
         // We don't support dynamic reload of this value so fix at the time of boot-up.
         maxPendingRecords = scope.props().get(ProcessorProperties.CONFIG_MAX_PENDING_RECORDS).value();
         contexts = new HashMap<>();
+        clusterRateLimiter = clusterRateLimiter(scope, tokenStore);
+        subscriptionRateLimiter = new DynamicRateLimiter(
+                scope.props().get(ProcessorProperties.CONFIG_PROCESSING_RATE_PER_SUBSCRIPTION),
+                clusterRateLimiter);
+        topicRateLimiters = new HashMap<>();
+        seenOffsets = new HashMap<>();
+        deduplicationCapacity = scope.props().get(ProcessorProperties.CONFIG_DEDUPLICATION_CAPACITY).value();
         reloadRequested = new AtomicBoolean(false);
 
         scope.props().get(ProcessorProperties.CONFIG_PARTITION_CONCURRENCY).listen((oldVal, newVal) -> {
@@ -70,6 +93,23 @@ public class PartitionContexts {
         });
     }
 
+    public PartitionContexts(SubscriptionScope scope, Processors<?> processors) {
+        this(scope, processors, null);
+    }
+
+    private static RateLimiter clusterRateLimiter(SubscriptionScope scope, TokenStore tokenStore) {
+        if (tokenStore == null) {
+            return null;
+        }
+        int leasePermits = scope.props().get(ProcessorProperties.CONFIG_PROCESSING_RATE_LEASE_PERMITS).value();
+        return new DynamicRateLimiter(
+                scope.props().get(ProcessorProperties.CONFIG_PROCESSING_RATE_PER_CLUSTER),
+                rate -> rate == RateLimiter.UNLIMITED
+                        ? RateLimiter.create(RateLimiter.UNLIMITED)
+                        : new LeasingRateLimiter(tokenStore, scope.subscriptionId(), rate, leasePermits),
+                null);
+    }
+
     public PartitionContext get(TopicPartition tp) {
         return contexts.get(tp);
     }
@@ -82,7 +122,20 @@ public class PartitionContexts {
      * @return instantiated context
      */
     public PartitionContext initContext(TopicPartition tp, boolean paused) {
-        PartitionContext context = instantiateContext(tp);
+        return initContext(tp, paused, FileStateStore.UNKNOWN_OFFSET);
+    }
+
+    /**
+     * Instantiate new {@link PartitionContext} and put it to contexts
+     *
+     * @param tp partition to be instantiated
+     * @param paused denotes the instantiated partition should be paused
+     * @param startOffset the offset which processing of the partition starts from, which the state store is
+     * restored up to. {@link FileStateStore#UNKNOWN_OFFSET} to restore up to the offset flushed last.
+     * @return instantiated context
+     */
+    public PartitionContext initContext(TopicPartition tp, boolean paused, long startOffset) {
+        PartitionContext context = instantiateContext(tp, startOffset);
         if (paused) {
             context.pause();
         }
@@ -101,6 +154,18 @@ public class PartitionContexts {
         }
     }
 
+    /**
+     * Destroy processors for passed partitions which are revoked from this instance, and remove those from
+     * contexts along with offsets remembered for deduplication, which are no longer useful
+     * @param partitions partitions to be revoked
+     */
+    public void revokeContexts(Collection<TopicPartition> partitions) {
+        dropContexts(partitions);
+        for (TopicPartition tp : partitions) {
+            seenOffsets.remove(tp);
+        }
+    }
+
     /**
      * Destroy all processors without removing context from contexts
      */
@@ -110,12 +175,16 @@ public class PartitionContexts {
 
     // visible for testing
     public Map<TopicPartition, OffsetAndMetadata> commitOffsets() {
-        return contexts.values().stream()
-                       .filter(c -> c.commitReadyOffset() > 0)
-                       .collect(Collectors.toMap(PartitionContext::topicPartition,
-                                                 // Committing offset tells "the offset I expected to fetch next", so need to add one for the
-                                                 // offset that we've finished processing.
-                                                 c -> new OffsetAndMetadata(c.commitReadyOffset() + 1, null)));
+        Map<TopicPartition, OffsetAndMetadata> offsets =
+                contexts.values().stream()
+                        .filter(c -> c.commitReadyOffset() > 0)
+                        .collect(Collectors.toMap(PartitionContext::topicPartition,
+                                                  // Committing offset tells "the offset I expected to fetch next", so need to add one for the
+                                                  // offset that we've finished processing.
+                                                  c -> new OffsetAndMetadata(c.commitReadyOffset() + 1, null)));
+        // Tasks parked and states changed by tasks up to the offsets have to be durable before committing them
+        offsets.forEach((tp, offset) -> contexts.get(tp).flushLocalStorages(offset.offset()));
+        return offsets;
     }
 
     public int totalPendingTasks() {
@@ -133,9 +202,18 @@ public class PartitionContexts {
     }
 
     // visible for testing
-    PartitionContext instantiateContext(TopicPartition tp) {
+    PartitionContext instantiateContext(TopicPartition tp, long startOffset) {
         PartitionScope partitionScope = new PartitionScope(scope, tp);
-        return new PartitionContext(partitionScope, processors, maxPendingRecords);
+        RateLimiter topicRateLimiter = topicRateLimiters.computeIfAbsent(
+                tp.topic(), topic -> new DynamicRateLimiter(
+                        scope.props().get(ProcessorProperties.CONFIG_PROCESSING_RATE_PER_TOPIC),
+                        subscriptionRateLimiter));
+        SeenOffsets partitionSeenOffsets = deduplicationCapacity > 0
+                                           ? seenOffsets.computeIfAbsent(
+                                                   tp, key -> new SeenOffsets(deduplicationCapacity))
+                                           : null;
+        return new PartitionContext(partitionScope, processors, maxPendingRecords, topicRateLimiter,
+                                    partitionSeenOffsets, startOffset);
     }
 
     // visible for testing
@@ -145,18 +223,26 @@ public class PartitionContexts {
 
     public Collection<TopicPartition> partitionsNeedsPause() {
         boolean pausingAll = pausingAllProcessing();
+        long nowMillis = System.currentTimeMillis();
         return contexts.values().stream()
                        .filter(c -> !c.paused())
-                       .filter(c -> pausingAll || shouldPartitionPaused(c.pendingTasksCount()))
+                       .filter(c -> pausingAll
+                                    || shouldPartitionPaused(c.pendingTasksCount())
+                                    || c.waitingForDue(nowMillis)
+                                    || c.circuitOpen())
                        .map(PartitionContext::topicPartition)
                        .collect(toList());
     }
 
     public Collection<TopicPartition> partitionsNeedsResume() {
         boolean pausingAll = pausingAllProcessing();
+        long nowMillis = System.currentTimeMillis();
         return contexts.values().stream()
                        .filter(PartitionContext::paused)
-                       .filter(c -> !pausingAll && !shouldPartitionPaused(c.pendingTasksCount()))
+                       .filter(c -> !pausingAll
+                                    && !shouldPartitionPaused(c.pendingTasksCount())
+                                    && !c.waitingForDue(nowMillis)
+                                    && !c.circuitOpen())
                        .map(PartitionContext::topicPartition)
                        .collect(toList());
     }
@@ -197,6 +283,27 @@ public class PartitionContexts {
         logger.info("Completed reloading property");
     }
 
+    /**
+     * Closes rate limiters shared by partitions.
+     * This must be called after all partition contexts are dropped or their processors are destroyed.
+     */
+    @Override
+    public void close() {
+        List<RateLimiter> limiters = new ArrayList<>(topicRateLimiters.values());
+        limiters.add(subscriptionRateLimiter);
+        if (clusterRateLimiter != null) {
+            limiters.add(clusterRateLimiter);
+        }
+        for (RateLimiter limiter : limiters) {
+            try {
+                limiter.close();
+            } catch (Exception e) {
+                logger.error("Failed to close rate limiter {}", limiter, e);
+            }
+        }
+        topicRateLimiters.clear();
+    }
+
     private void destroyProcessors(Collection<TopicPartition> partitions) {
         Utils.runInParallel("DestroyProcessors",
                             partitions.stream().map(contexts::get).map(context -> (Task) () -> {
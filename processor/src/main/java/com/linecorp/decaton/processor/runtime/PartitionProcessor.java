@@ -16,9 +16,14 @@
 
 package com.linecorp.decaton.processor.runtime;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -28,6 +33,7 @@ import org.slf4j.LoggerFactory;
 
 import com.linecorp.decaton.processor.DecatonProcessor;
 import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
 import com.linecorp.decaton.processor.metrics.Metrics;
 import com.linecorp.decaton.processor.runtime.Utils.Task;
 
@@ -54,9 +60,27 @@ public class PartitionProcessor implements AsyncShutdownable {
     // can make processing unfair but it likely gives better overall throughput
     private final RateLimiter rateLimiter;
 
-    public PartitionProcessor(PartitionScope scope, Processors<?> processors) {
+    // Shared by all units of this partition to park tasks delayed long, which is null unless enabled.
+    private final DelayIndex delayIndex;
+    // Shared by all units of this partition. may be null.
+    private final CircuitBreaker circuitBreaker;
+    // Shared by all units of this partition, which is null unless enabled.
+    private final FileStateStore stateStore;
+
+    /**
+     * @param scope the scope of the partition.
+     * @param processors processors to create units.
+     * @param parentRateLimiter a limiter shared with other partitions, which is applied in addition to the
+     * limiter of this partition. may be null.
+     * @param circuitBreaker a breaker to report completions of tasks of this partition. may be null.
+     * @param startOffset the offset which processing of this partition starts from, which the state store is
+     * restored up to. {@link FileStateStore#UNKNOWN_OFFSET} if unknown.
+     */
+    PartitionProcessor(PartitionScope scope, Processors<?> processors, RateLimiter parentRateLimiter,
+                       CircuitBreaker circuitBreaker, long startOffset) {
         this.scope = scope;
         this.processors = processors;
+        this.circuitBreaker = circuitBreaker;
 
         // Create units with latest property value.
         //
@@ -71,17 +95,21 @@ public class PartitionProcessor implements AsyncShutdownable {
         int concurrency = scope.props().get(ProcessorProperties.CONFIG_PARTITION_CONCURRENCY).value();
         units = new ArrayList<>(concurrency);
         subPartitioner = new SubPartitioner(concurrency);
-        rateLimiter = new DynamicRateLimiter(scope.props().get(ProcessorProperties.CONFIG_PROCESSING_RATE));
+        rateLimiter = createRateLimiter(scope, parentRateLimiter);
 
         try {
+            delayIndex = openDelayIndex();
+            stateStore = openStateStore(startOffset);
             for (int i = 0; i < concurrency; i++) {
                 units.add(createUnit(i));
             }
+            restoreParkedTasks();
         } catch (RuntimeException e) {
-            // If exception occurred in the middle of instantiating processor units, we have to make sure
-            // all the previously created units are destroyed before bubbling up the exception.
+            // If exception occurred in the middle of opening local storages or instantiating processor units, we
+            // have to make sure all the previously opened ones are closed before bubbling up the exception.
             try {
                 close();
+                closeStateStore();
             } catch (Exception e1) {
                 logger.warn("failed to cleanup intermediate states", e1);
             }
@@ -89,11 +117,86 @@ public class PartitionProcessor implements AsyncShutdownable {
         }
     }
 
+    public PartitionProcessor(PartitionScope scope, Processors<?> processors, RateLimiter parentRateLimiter) {
+        this(scope, processors, parentRateLimiter, null, FileStateStore.UNKNOWN_OFFSET);
+    }
+
+    public PartitionProcessor(PartitionScope scope, Processors<?> processors) {
+        this(scope, processors, null);
+    }
+
+    private static RateLimiter createRateLimiter(PartitionScope scope, RateLimiter parentRateLimiter) {
+        Property<Long> rateProperty = scope.props().get(ProcessorProperties.CONFIG_PROCESSING_RATE);
+        if (!scope.props().get(ProcessorProperties.CONFIG_PROCESSING_RATE_ADAPTIVE_ENABLED).value()) {
+            return new DynamicRateLimiter(rateProperty, parentRateLimiter);
+        }
+
+        TopicPartition tp = scope.topicPartition();
+        AtomicLong rateGauge = Metrics.withTags("subscription", scope.subscriptionId(),
+                                                "topic", tp.topic(),
+                                                "partition", String.valueOf(tp.partition()))
+                .new RateLimiterMetrics().processingRate;
+        return new DynamicRateLimiter(rateProperty, rate -> {
+            if (rate == RateLimiter.PAUSED) {
+                return RateLimiter.create(rate);
+            }
+            // Unlimited rate is treated as the ceiling, from which the rate is adjusted
+            long maxRate = rate < 0L ? RateLimiter.MAX_RATE : rate;
+            return new AdaptiveRateLimiter(maxRate, scope.props(), rateGauge, System::nanoTime);
+        }, parentRateLimiter);
+    }
+
+    // visible for testing
+    DelayIndex openDelayIndex() {
+        String dir = scope.props().get(ProcessorProperties.CONFIG_DELAY_INDEX_DIR).value();
+        if (dir.isEmpty()) {
+            return null;
+        }
+        TopicPartition tp = scope.topicPartition();
+        try {
+            return DelayIndex.open(
+                    Paths.get(dir, scope.subscriptionId(), tp.topic() + '-' + tp.partition()),
+                    scope.props().get(ProcessorProperties.CONFIG_DELAY_INDEX_CAPACITY_BYTES).value());
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to open delay index for " + scope, e);
+        }
+    }
+
+    // visible for testing
+    FileStateStore openStateStore(long startOffset) {
+        String dir = scope.props().get(ProcessorProperties.CONFIG_STATE_STORE_DIR).value();
+        if (dir.isEmpty()) {
+            return null;
+        }
+        TopicPartition tp = scope.topicPartition();
+        try {
+            return FileStateStore.open(Paths.get(dir, scope.subscriptionId(), tp.topic() + '-' + tp.partition()),
+                                       startOffset);
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to open state store for " + scope, e);
+        }
+    }
+
+    private void restoreParkedTasks() {
+        if (delayIndex == null) {
+            return;
+        }
+        List<DelayIndex.Entry> entries = delayIndex.liveEntries();
+        if (!entries.isEmpty()) {
+            logger.info("Restoring {} tasks parked in {}", entries.size(), delayIndex);
+        }
+        for (DelayIndex.Entry entry : entries) {
+            units.get(subPartitioner.partitionFor(entry.key())).restoreParkedTask(entry);
+        }
+    }
+
     // visible for testing
     ProcessorUnit createUnit(int threadId) {
         ThreadScope threadScope = new ThreadScope(scope, threadId);
 
-        ExecutionScheduler scheduler = new ExecutionScheduler(threadScope, rateLimiter);
+        ScheduledExecutorService executor = ProcessorUnit.newExecutor(threadScope);
+        ExecutionScheduler scheduler =
+                new ExecutionScheduler(threadScope, rateLimiter, executor, delayIndex, circuitBreaker);
 
         TopicPartition tp = scope.topicPartition();
         Metrics metrics = Metrics.withTags(
@@ -102,8 +205,32 @@ public class PartitionProcessor implements AsyncShutdownable {
                 "partition", String.valueOf(tp.partition()),
                 "subpartition", String.valueOf(threadId));
 
-        ProcessPipeline<?> pipeline = processors.newPipeline(threadScope, scheduler, metrics);
-        return new ProcessorUnit(threadScope, pipeline);
+        ProcessPipeline<?> pipeline = processors.newPipeline(threadScope, scheduler, metrics, stateStore);
+        return new ProcessorUnit(threadScope, pipeline, executor);
+    }
+
+    /**
+     * Forces tasks parked in the delay index and changes of the state store made by tasks before the offset to
+     * the storage, if they're enabled.
+     * @param committedOffset the offset to be committed.
+     */
+    public void flushLocalStorages(long committedOffset) {
+        if (delayIndex != null) {
+            delayIndex.flush();
+        }
+        if (stateStore != null) {
+            stateStore.flush(committedOffset);
+        }
+    }
+
+    /**
+     * Closes the state store of this partition, if it's enabled. This has to be called after this processor is
+     * closed, and the changes to be committed are flushed.
+     */
+    public void closeStateStore() {
+        if (stateStore != null) {
+            stateStore.close();
+        }
     }
 
     public void addTask(TaskRequest request) {
@@ -119,6 +246,11 @@ public class PartitionProcessor implements AsyncShutdownable {
                     units.get(i).close();
                     processors.destroyThreadScope(scope.subscriptionId(), scope.topicPartition(), i);
                 }).collect(Collectors.toList()));
+        if (delayIndex != null) {
+            // Close the index after all units stopped processing so that parked tasks which completed
+            // during shutdown are removed from it.
+            cleanupResult = cleanupResult.whenComplete((r, e) -> delayIndex.close());
+        }
 
         try {
             rateLimiter.close();
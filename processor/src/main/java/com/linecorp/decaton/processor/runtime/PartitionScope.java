@@ -34,7 +34,7 @@ class PartitionScope extends SubscriptionScope {
     }
 
     boolean isRetryTopic() {
-        return retryTopic().map(t -> t.equals(topicPartition.topic())).orElse(false);
+        return retryTopics().contains(topicPartition.topic());
     }
 
     @Override
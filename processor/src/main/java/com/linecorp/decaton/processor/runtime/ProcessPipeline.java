@@ -24,12 +24,17 @@ import java.util.concurrent.CompletableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.linecorp.decaton.common.Serializer;
 import com.linecorp.decaton.processor.DecatonTask;
 import com.linecorp.decaton.processor.TaskExtractor;
 import com.linecorp.decaton.processor.DecatonProcessor;
-import com.linecorp.decaton.processor.ProcessingContext;
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
+import com.linecorp.decaton.processor.TaskCostFunction;
+import com.linecorp.decaton.processor.TaskMetadata;
 import com.linecorp.decaton.processor.metrics.Metrics;
 import com.linecorp.decaton.processor.metrics.Metrics.ProcessMetrics;
+import com.linecorp.decaton.processor.metrics.Metrics.RetryMetrics;
 import com.linecorp.decaton.processor.metrics.Metrics.TaskMetrics;
 import com.linecorp.decaton.processor.runtime.Utils.Timer;
 
@@ -40,36 +45,134 @@ public class ProcessPipeline<T> implements AutoCloseable {
     private final List<DecatonProcessor<T>> processors;
     private final DecatonProcessor<byte[]> retryProcessor;
     private final TaskExtractor<T> taskExtractor;
+    private final Serializer<T> taskSerializer;
+    private final TaskCostFunction<T> costFunction;
+    // Tracks failures of keys to divert tasks of quarantined keys. may be null.
+    private final KeyQuarantine quarantine;
+    private final boolean retainTaskDataBytes;
     private final ExecutionScheduler scheduler;
+    private final Property<Boolean> mdcEnabled;
+    // Whether MDC of the thread holds the keys of the partition, which are kept across tasks
+    private boolean partitionMdcPopulated;
+    private final FileStateStore stateStore;
+    // The head of the chain reused for every task, or null if contexts are allocated per task.
+    private final ProcessingContextImpl<T> headContext;
     private final TaskMetrics taskMetrics;
     private final ProcessMetrics processMetrics;
+    private final RetryMetrics retryMetrics;
+    private final RetryConfig retryConfig;
+    // The number of times to retry a task in this instance before queueing it to the retry topic
+    private final int localRetries;
+    private final long localBackoffMillis;
 
-    public ProcessPipeline(ThreadScope scope,
-                           List<DecatonProcessor<T>> processors,
-                           DecatonProcessor<byte[]> retryProcessor,
-                           TaskExtractor<T> taskExtractor,
-                           ExecutionScheduler scheduler,
-                           Metrics metrics) {
+    /**
+     * @param scope the scope of the thread this pipeline is used by.
+     * @param processors the chain of processors.
+     * @param retryProcessor the processor to queue tasks to the retry topic. may be null.
+     * @param taskExtractor the extractor of tasks.
+     * @param taskSerializer the serializer to serialize tasks again on retry. may be null.
+     * @param costFunction the function to calculate permits of tasks. may be null.
+     * @param quarantine the tracker of failing keys. may be null.
+     * @param stateStore the state store of the partition. may be null.
+     * @param scheduler the scheduler of tasks.
+     * @param metrics the metrics to record.
+     */
+    ProcessPipeline(ThreadScope scope,
+                    List<DecatonProcessor<T>> processors,
+                    DecatonProcessor<byte[]> retryProcessor,
+                    TaskExtractor<T> taskExtractor,
+                    Serializer<T> taskSerializer,
+                    TaskCostFunction<T> costFunction,
+                    KeyQuarantine quarantine,
+                    FileStateStore stateStore,
+                    ExecutionScheduler scheduler,
+                    Metrics metrics) {
         this.scope = scope;
         this.processors = Collections.unmodifiableList(processors);
         this.retryProcessor = retryProcessor;
         this.taskExtractor = taskExtractor;
+        this.taskSerializer = taskSerializer;
+        this.costFunction = costFunction;
+        this.quarantine = retryProcessor != null ? quarantine : null;
         this.scheduler = scheduler;
 
+        // Serialized task bytes are referred only when the task is retried.
+        // If retry isn't configured or the task can be serialized again at that time, there's no reason to
+        // keep holding them in addition to the deserialized task until the processing completes.
+        retainTaskDataBytes = retryProcessor != null && taskSerializer == null;
+        mdcEnabled = scope.props().get(ProcessorProperties.CONFIG_LOGGING_MDC_ENABLED);
+        this.stateStore = stateStore;
+        retryConfig = scope.retryConfig().orElse(null);
+        localRetries = retryProcessor != null && retryConfig != null ? retryConfig.localRetries() : 0;
+        localBackoffMillis = retryConfig != null ? retryConfig.localBackoffOrDefault().toMillis() : 0L;
+        if (scope.props().get(ProcessorProperties.CONFIG_PROCESSING_CONTEXT_REUSE_ENABLED).value()) {
+            // A pipeline is used only by the single thread so we can reuse the head of the chain for every task.
+            headContext = newHeadContext(true);
+        } else {
+            headContext = null;
+        }
+
         taskMetrics = metrics.new TaskMetrics();
         processMetrics = metrics.new ProcessMetrics();
+        retryMetrics = metrics.new RetryMetrics();
+    }
+
+    public ProcessPipeline(ThreadScope scope,
+                           List<DecatonProcessor<T>> processors,
+                           DecatonProcessor<byte[]> retryProcessor,
+                           TaskExtractor<T> taskExtractor,
+                           ExecutionScheduler scheduler,
+                           Metrics metrics) {
+        this(scope, processors, retryProcessor, taskExtractor, null, null, null, null, scheduler, metrics);
     }
 
     public CompletableFuture<Void> scheduleThenProcess(TaskRequest request) throws InterruptedException {
-        DecatonTask<T> extracted = extract(request);
+        // Keep the reference before extraction purges it, in case the task needs to be parked.
+        byte[] rawRequestBytes = request.rawRequestBytes();
+        DecatonTask<T> fullTask = extractFully(request);
+        int permits = permits(fullTask);
+        DecatonTask<T> extracted = trim(fullTask);
+
+        // For tasks which are configured to delay its execution, or have to wait for preceding tasks of the same
+        // key which are delayed.
+        if (scheduler.shouldDefer(request.key(), extracted.metadata())) {
+            if (scheduler.park(request, extracted.metadata(), permits, rawRequestBytes, this::processParked)) {
+                // The task is durably stored in the delay index so it's safe to commit its offset.
+                return CompletableFuture.completedFuture(null);
+            }
+            return scheduler.defer(request.key(), extracted.metadata(), permits,
+                                   () -> process(request, extracted));
+        }
 
-        scheduler.schedule(extracted.metadata());
+        long throttledMicros = scheduler.schedule(request.key(), extracted.metadata(), permits);
+        if (throttledMicros > 0L) {
+            return scheduler.deferThrottled(request.key(), extracted.metadata(), throttledMicros,
+                                            () -> process(request, extracted));
+        }
 
         return process(request, extracted);
     }
 
+    /**
+     * Restores a task which was parked in the delay index by the previous instance.
+     * @param entry an entry read from the delay index.
+     */
+    public void restoreParkedTask(DelayIndex.Entry entry) {
+        scheduler.restore(entry, this::processParked);
+    }
+
+    private CompletableFuture<Void> processParked(DelayIndex.Entry entry) throws InterruptedException {
+        TaskRequest request = new TaskRequest(
+                scope.topicPartition(), entry.recordOffset(), null, entry.key(), entry.rawRequestBytes());
+        return process(request, extract(request));
+    }
+
     // visible for testing
     DecatonTask<T> extract(TaskRequest request) {
+        return trim(extractFully(request));
+    }
+
+    private DecatonTask<T> extractFully(TaskRequest request) {
         final DecatonTask<T> extracted;
         try {
             extracted = taskExtractor.extract(request.rawRequestBytes());
@@ -83,22 +186,61 @@ public class ProcessPipeline<T> implements AutoCloseable {
         }
 
         request.purgeRawRequestBytes();
+        return extracted;
+    }
 
+    private DecatonTask<T> trim(DecatonTask<T> extracted) {
+        if (!retainTaskDataBytes) {
+            return new DecatonTask<>(extracted.metadata(), extracted.taskData(), null);
+        }
         return extracted;
     }
 
+    // visible for testing
+    int permits(DecatonTask<T> task) {
+        if (costFunction == null) {
+            return 1;
+        }
+        return Math.max(1, costFunction.cost(task));
+    }
+
+    /**
+     * Populates MDC with the task, if it's enabled.
+     * As a pipeline is used by the single thread of the partition, the keys of the partition are populated once
+     * and left in MDC of the thread, and only the keys of the task are populated for every task.
+     */
+    private LoggingContext loggingContext(TaskRequest request, TaskMetadata metadata) {
+        if (!mdcEnabled.value()) {
+            if (partitionMdcPopulated) {
+                LoggingContext.removePartitionKeys();
+                partitionMdcPopulated = false;
+            }
+            return null;
+        }
+        partitionMdcPopulated = true;
+        return LoggingContext.reusingPartitionKeys(scope.subscriptionId(), request, metadata);
+    }
+
     // visible for testing
     CompletableFuture<Void> process(TaskRequest request, DecatonTask<T> task) throws InterruptedException {
-        ProcessingContext<T> context =
-                new ProcessingContextImpl<>(scope.subscriptionId(), request, task, processors, retryProcessor);
+        if (quarantine != null && quarantine.isQuarantined(request.key())) {
+            return divert(request, task);
+        }
+
+        ProcessingContextImpl<T> context = headContext != null ? headContext : newHeadContext(false);
+        context.reset(request, task);
 
         Timer timer = Utils.timer();
         final CompletableFuture<Void> processResult;
         final Duration elapsed;
-        try (LoggingContext ignored = context.loggingContext()) {
+        try (LoggingContext ignored = loggingContext(request, task.metadata())) {
             processResult = context.push(task.taskData());
         } catch (Exception e) {
             taskMetrics.tasksError.increment();
+            scheduler.reportCompletion(timer.duration().toNanos(), true);
+            if (quarantine != null) {
+                quarantine.recordFailure(request.key());
+            }
             throw e;
         } finally {
             elapsed = timer.duration();
@@ -117,9 +259,71 @@ public class ProcessPipeline<T> implements AutoCloseable {
                              request.id(), Utils.formatNanos(completeDuration));
             }
             processMetrics.tasksCompleteDuration.record(completeDuration);
+            // A task requested retry is also a failure in terms of the downstream's health
+            scheduler.reportCompletion(completeDuration.toNanos(), e != null || request.retried());
+            if (quarantine != null) {
+                if (e != null) {
+                    quarantine.recordFailure(request.key());
+                } else if (!request.retried()) {
+                    // Retried tasks are recorded as failures when the retry is requested.
+                    quarantine.recordSuccess(request.key());
+                }
+            }
         });
     }
 
+    private ProcessingContextImpl<T> newHeadContext(boolean reuseContexts) {
+        return new ProcessingContextImpl<>(scope.subscriptionId(), processors, -1, retryProcessor, taskSerializer,
+                                           localRetries > 0 || quarantine != null ? this::retryLocally : null,
+                                           stateStore, reuseContexts);
+    }
+
+    /**
+     * Passes the task of a quarantined key to the retry processor without processing it, which sends it to the
+     * dead letter topic.
+     * A dedicated context is used since the head context can't be reused once it deferred its completion.
+     */
+    private CompletableFuture<Void> divert(TaskRequest request, DecatonTask<T> task)
+            throws InterruptedException {
+        ProcessingContextImpl<T> context = new ProcessingContextImpl<>(
+                scope.subscriptionId(), processors, -1, retryProcessor, taskSerializer, null, null, false);
+        context.reset(request, task);
+        return context.retry();
+    }
+
+    /**
+     * Processes the task again in this instance after the local backoff, unless it has exhausted local
+     * retries or retry attempts, or its key is quarantined.
+     * The task is deferred on the unit's thread as a processor may call retry from other threads.
+     */
+    private CompletableFuture<Void> retryLocally(TaskRequest request, DecatonTask<T> task) {
+        if (quarantine != null) {
+            // Every retry request passes here, so it's recorded as a failure of the key.
+            quarantine.recordFailure(request.key());
+            if (quarantine.isQuarantined(request.key())) {
+                return null;
+            }
+        }
+        if (request.localRetryCount() >= localRetries
+            || retryConfig.attemptsExhausted(task.metadata().retryCount())) {
+            return null;
+        }
+        TaskMetadata metadata = task.metadata();
+        TaskMetadata retryMetadata = TaskMetadata.builder()
+                                                 .timestampMillis(metadata.timestampMillis())
+                                                 .sourceApplicationId(metadata.sourceApplicationId())
+                                                 .sourceInstanceId(metadata.sourceInstanceId())
+                                                 .retryCount(metadata.retryCount() + 1)
+                                                 .scheduledTimeMillis(
+                                                         scheduler.currentTimeMillis() + localBackoffMillis)
+                                                 .build();
+        DecatonTask<T> retryTask = new DecatonTask<>(retryMetadata, task.taskData(), task.taskDataBytes());
+        TaskRequest retryRequest = request.forLocalRetry();
+        retryMetrics.retryLocalTasks.increment();
+        return scheduler.deferAsync(request.key(), retryMetadata, permits(retryTask),
+                                    () -> process(retryRequest, retryTask));
+    }
+
     private boolean validateTask(DecatonTask<T> task) {
         return task != null &&
                task.metadata() != null &&
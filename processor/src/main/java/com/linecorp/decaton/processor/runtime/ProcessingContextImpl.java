@@ -14,27 +14,88 @@
  * under the License.
  */
 
+
 package com.linecorp.decaton.processor.runtime;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.linecorp.decaton.common.Serializer;
 import com.linecorp.decaton.processor.DecatonProcessor;
 import com.linecorp.decaton.processor.DecatonTask;
 import com.linecorp.decaton.processor.DeferredCompletion;
 import com.linecorp.decaton.processor.ProcessingContext;
 import com.linecorp.decaton.processor.TaskMetadata;
 
+/**
+ * An implementation of {@link ProcessingContext}.
+ *
+ * A context represents a position in the chain of processors.
+ * By default the context for the next stage is created for every pushed task, as processors are allowed to keep
+ * referring to the given context after {@link DecatonProcessor#process} returns.
+ * If {@link com.linecorp.decaton.processor.ProcessorProperties#CONFIG_PROCESSING_CONTEXT_REUSE_ENABLED} is
+ * enabled, the one for the next stage is created lazily when it's first pushed and then reused for subsequent
+ * tasks. In that case a context is reset to process another task only when it hasn't deferred its completion
+ * because processors are allowed to keep referring to it only after calling {@link #deferCompletion()}.
+ * Once a context deferred its completion, it's detached from its upstream context so that a fresh one is
+ * created for the next task.
+ * Hence, a chain of processors that completes synchronously doesn't allocate any context for each task.
+ */
 public class ProcessingContextImpl<T> implements ProcessingContext<T> {
+    private static final CompletableFuture<Void> COMPLETED_FUTURE = CompletableFuture.completedFuture(null);
+
+    /**
+     * Retries a task in the same instance before queueing it to the retry topic.
+     */
+    @FunctionalInterface
+    interface LocalRetrier<T> {
+        /**
+         * @param request the request of the task to retry.
+         * @param task the task to retry.
+         * @return a {@link CompletableFuture} which completes when the retried processing completes, or null if
+         * the task has to be queued to the retry topic.
+         */
+        CompletableFuture<Void> retry(TaskRequest request, DecatonTask<T> task);
+    }
+
     private final String subscriptionId;
-    private final TaskRequest request;
-    private final DecatonTask<T> task;
-    private final DeferredCompletion completion;
-    private final List<DecatonProcessor<T>> downstreams;
+    private final List<DecatonProcessor<T>> processors;
+    /**
+     * Index of the processor in {@link #processors} that this context is given to.
+     * The context for the head of the chain, which is never given to processors, has -1.
+     */
+    private final int stage;
     private final DecatonProcessor<byte[]> retryQueueingProcessor;
-    AtomicBoolean completionDeferred;
+    private final Serializer<T> taskSerializer;
+    private final LocalRetrier<T> localRetrier;
+    private final FileStateStore stateStore;
+    private final boolean reuseContexts;
+
+    private TaskRequest request;
+    private DecatonTask<T> task;
+    private DeferredCompletion completion;
+    private CompletableFuture<Void> future;
+    boolean completionDeferred;
+    private ProcessingContextImpl<T> next;
+
+    ProcessingContextImpl(String subscriptionId,
+                          List<DecatonProcessor<T>> processors,
+                          int stage,
+                          DecatonProcessor<byte[]> retryQueueingProcessor,
+                          Serializer<T> taskSerializer,
+                          LocalRetrier<T> localRetrier,
+                          FileStateStore stateStore,
+                          boolean reuseContexts) {
+        this.subscriptionId = subscriptionId;
+        this.processors = processors;
+        this.stage = stage;
+        this.retryQueueingProcessor = retryQueueingProcessor;
+        this.taskSerializer = taskSerializer;
+        this.localRetrier = localRetrier;
+        this.stateStore = stateStore;
+        this.reuseContexts = reuseContexts;
+    }
 
     public ProcessingContextImpl(String subscriptionId,
                                  TaskRequest request,
@@ -42,13 +103,10 @@ public class ProcessingContextImpl<T> implements ProcessingContext<T> {
                                  DeferredCompletion completion,
                                  List<DecatonProcessor<T>> downstreams,
                                  DecatonProcessor<byte[]> retryQueueingProcessor) {
-        this.subscriptionId = subscriptionId;
-        this.request = request;
-        this.task = task;
+        this(subscriptionId, Collections.unmodifiableList(downstreams), -1, retryQueueingProcessor, null, null,
+             null, false);
+        reset(request, task);
         this.completion = completion;
-        this.downstreams = Collections.unmodifiableList(downstreams);
-        this.retryQueueingProcessor = retryQueueingProcessor;
-        completionDeferred = new AtomicBoolean();
     }
 
     public ProcessingContextImpl(String subscriptionId, TaskRequest request, DecatonTask<T> task,
@@ -57,6 +115,18 @@ public class ProcessingContextImpl<T> implements ProcessingContext<T> {
         this(subscriptionId, request, task, null, downstreams, retryQueueingProcessor);
     }
 
+    /**
+     * Reset this context to process the given task.
+     * This must not be called for a context which has deferred its completion.
+     */
+    void reset(TaskRequest request, DecatonTask<T> task) {
+        this.request = request;
+        this.task = task;
+        completion = null;
+        future = null;
+        completionDeferred = false;
+    }
+
     @Override
     public TaskMetadata metadata() {
         return task.metadata();
@@ -79,62 +149,115 @@ public class ProcessingContextImpl<T> implements ProcessingContext<T> {
 
     @Override
     public DeferredCompletion deferCompletion() {
-        completionDeferred.set(true);
+        if (!completionDeferred) {
+            completionDeferred = true;
+            if (completion == null) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                this.future = future;
+                completion = () -> future.complete(null);
+            }
+        }
         return completion;
     }
 
-    private <P> CompletableFuture<Void> pushDownStream(List<DecatonProcessor<P>> downstreams, P taskData)
-            throws InterruptedException {
-        if (downstreams.isEmpty()) {
+    /**
+     * This method must be synchronized, as it can call downstream's
+     * {@link DecatonProcessor#process} directly but upstream might call this method from a thread other than
+     * {@link PartitionProcessor}'s internal threads.
+     * In such case, since we don't know if the downstream processor is implemented taking account
+     * thread-safety, we have to guarantee that the only one invocation of
+     * {@link DecatonProcessor#process} occurs at the time from this context.
+     */
+    @Override
+    public synchronized CompletableFuture<Void> push(T taskData) throws InterruptedException {
+        int nextStage = stage + 1;
+        if (nextStage >= processors.size()) {
             // If there's no downstream associated with this processor, just drop the pushed task.
-            return CompletableFuture.completedFuture(null);
+            return COMPLETED_FUTURE;
         }
 
-        CompletableFuture<Void> future = new CompletableFuture<>();
-        DeferredCompletion nextCompletion = () -> future.complete(null);
-
-        DecatonTask<P> task = new DecatonTask<>(
-                this.task.metadata(), taskData, this.task.taskDataBytes());
-        DecatonProcessor<P> nextProcessor = downstreams.get(0);
-        ProcessingContextImpl<P> nextContext = new ProcessingContextImpl<>(
-                subscriptionId, request, task, nextCompletion,
-                downstreams.subList(1, downstreams.size()), retryQueueingProcessor);
+        ProcessingContextImpl<T> nextContext = next;
+        if (nextContext == null) {
+            nextContext = new ProcessingContextImpl<>(
+                    subscriptionId, processors, nextStage, retryQueueingProcessor, taskSerializer, localRetrier,
+                    stateStore, reuseContexts);
+            if (reuseContexts) {
+                next = nextContext;
+            }
+        }
+        // The downstream contexts always refer the DecatonTask originally extracted from the record, so that
+        // retry() re-enqueues the original task regardless of which stage calls it.
+        nextContext.reset(request, task);
 
         try {
-            nextProcessor.process(nextContext, taskData);
+            processors.get(nextStage).process(nextContext, taskData);
         } finally {
-            if (!nextContext.completionDeferred.get()) {
-                // If process didn't requested for deferred completion, we understand it as process
-                // completed synchronously.
-                nextCompletion.complete();
+            if (nextContext.completionDeferred) {
+                // The processor may keep referring the context until it completes, so it can't be reused.
+                next = null;
             }
         }
 
-        return future;
+        if (nextContext.completionDeferred) {
+            return nextContext.future;
+        }
+        // If process didn't requested for deferred completion, we understand it as process
+        // completed synchronously.
+        return COMPLETED_FUTURE;
     }
 
     /**
-     * This method must be synchronized, as it can call downstream's
-     * {@link DecatonProcessor#process} directly but upstream might call this method from a thread other than
-     * {@link PartitionProcessor}'s internal threads.
-     * In such case, since we don't know if the downstream processor is implemented taking account
-     * thread-safety, we have to guarantee that the only one invocation of
-     * {@link DecatonProcessor#process} occurs at the time from this context.
+     * If local retries are configured and remain for the task, the task is processed again in this instance
+     * rather than queued to the retry topic. In that case the returned future completes immediately as the
+     * retry is already scheduled, while the completion of this context is deferred until the retried
+     * processing completes.
      */
-    @Override
-    public synchronized CompletableFuture<Void> push(T task) throws InterruptedException {
-        return pushDownStream(downstreams, task);
-    }
-
     @Override
     public CompletableFuture<Void> retry() throws InterruptedException {
+        request.markRetried();
+        if (localRetrier != null) {
+            CompletableFuture<Void> localResult = localRetrier.retry(request, task);
+            if (localResult != null) {
+                deferCompletion().completeWith(localResult);
+                return COMPLETED_FUTURE;
+            }
+        }
         if (retryQueueingProcessor == null) {
             throw new IllegalStateException("task retry isn't configured for this processor");
         }
 
+        byte[] taskDataBytes = taskDataBytes();
+        DecatonTask<byte[]> retryTask = new DecatonTask<>(task.metadata(), taskDataBytes, taskDataBytes);
+        ProcessingContextImpl<byte[]> retryContext = new ProcessingContextImpl<>(
+                subscriptionId, request, retryTask, Collections.singletonList(retryQueueingProcessor), null);
+
         DeferredCompletion completion = deferCompletion();
-        CompletableFuture<Void> result = pushDownStream(
-                Collections.singletonList(retryQueueingProcessor), task.taskDataBytes());
+        CompletableFuture<Void> result = retryContext.push(taskDataBytes);
         return completion.completeWith(result);
     }
+
+    @Override
+    public StateStore stateStore() {
+        if (stateStore == null) {
+            throw new IllegalStateException("state store isn't configured for this processor");
+        }
+        // Changes are bound to the offset so that they're persisted once the offset gets committed
+        return stateStore.forOffset(request.recordOffset());
+    }
+
+    /**
+     * Returns serialized bytes of the task.
+     * In case the pipeline dropped {@link DecatonTask#taskDataBytes()} right after the extraction to save memory,
+     * the task is serialized again only here, that is, only when it's actually necessary.
+     */
+    private byte[] taskDataBytes() {
+        byte[] taskDataBytes = task.taskDataBytes();
+        if (taskDataBytes != null) {
+            return taskDataBytes;
+        }
+        if (taskSerializer == null) {
+            throw new IllegalStateException("task bytes are neither retained nor serializable");
+        }
+        return taskSerializer.serialize(task.taskData());
+    }
 }
@@ -23,7 +23,6 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -34,6 +33,7 @@ import java.util.stream.Stream;
 import org.apache.kafka.clients.consumer.CommitFailedException;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
@@ -51,6 +51,11 @@ public class ProcessorSubscription extends Thread implements AsyncShutdownable {
     private static final long POLL_TIMEOUT_MILLIS = 100;
 
     private final SubscriptionScope scope;
+    private final Set<String> topics;
+    // The subscription consuming retry topics separately, which runs along with this subscription. may be null.
+    private final ProcessorSubscription retrySubscription;
+    // false if processors are shared with another subscription which destroys the singleton scope instead
+    private final boolean ownsSingletonScope;
     private final Supplier<Consumer<String, byte[]>> consumerSupplier;
     private final AtomicBoolean terminated;
     private final BlacklistedKeysFilter blacklistedKeysFilter;
@@ -58,32 +63,80 @@ public class ProcessorSubscription extends Thread implements AsyncShutdownable {
     private final Processors<?> processors;
     private final Property<Long> commitIntervalMillis;
     private final Property<Long> rebalanceTimeoutMillis;
-
-    public ProcessorSubscription(SubscriptionScope scope,
-                                 Supplier<Consumer<String, byte[]>> consumerSupplier,
-                                 Processors<?> processors,
-                                 ProcessorProperties props) {
+    private final Property<Long> retryPauseThresholdMillis;
+
+    /**
+     * @param scope the scope of the subscription.
+     * @param consumerSupplier the supplier of the consumer.
+     * @param processors processors to process tasks.
+     * @param props properties of the subscription.
+     * @param tokenStore a store to share the rate limit with other instances. may be null.
+     * @param topics topics to subscribe.
+     * @param retrySubscription a subscription which consumes retry topics separately, which is started and
+     * shut down along with this subscription. may be null.
+     * @param ownsSingletonScope whether to destroy singleton processors on shutdown. false for a subscription
+     * sharing processors with another subscription, which has to destroy them after this subscription terminated.
+     */
+    ProcessorSubscription(SubscriptionScope scope,
+                          Supplier<Consumer<String, byte[]>> consumerSupplier,
+                          Processors<?> processors,
+                          ProcessorProperties props,
+                          TokenStore tokenStore,
+                          Set<String> topics,
+                          ProcessorSubscription retrySubscription,
+                          boolean ownsSingletonScope) {
         this.scope = scope;
+        this.topics = topics;
+        this.retrySubscription = retrySubscription;
+        this.ownsSingletonScope = ownsSingletonScope;
         this.consumerSupplier = consumerSupplier;
         this.processors = processors;
         terminated = new AtomicBoolean();
-        contexts = new PartitionContexts(scope, processors);
+        contexts = new PartitionContexts(scope, processors, tokenStore);
 
         blacklistedKeysFilter = new BlacklistedKeysFilter(props);
         commitIntervalMillis = props.get(ProcessorProperties.CONFIG_COMMIT_INTERVAL_MS);
         rebalanceTimeoutMillis = props.get(ProcessorProperties.CONFIG_GROUP_REBALANCE_TIMEOUT_MS);
+        retryPauseThresholdMillis = props.get(ProcessorProperties.CONFIG_RETRY_PAUSE_THRESHOLD_MS);
 
         setName(String.format("DecatonSubscriptionThread-%s", scope));
     }
 
-    private Set<String> subscribeTopics() {
-        return Stream.of(Optional.of(scope.topic()),
-                         scope.retryTopic())
-                     .filter(Optional::isPresent)
-                     .map(Optional::get)
+    public ProcessorSubscription(SubscriptionScope scope,
+                                 Supplier<Consumer<String, byte[]>> consumerSupplier,
+                                 Processors<?> processors,
+                                 ProcessorProperties props,
+                                 TokenStore tokenStore) {
+        this(scope, consumerSupplier, processors, props, tokenStore, subscribeTopics(scope), null, true);
+    }
+
+    public ProcessorSubscription(SubscriptionScope scope,
+                                 Supplier<Consumer<String, byte[]>> consumerSupplier,
+                                 Processors<?> processors,
+                                 ProcessorProperties props) {
+        this(scope, consumerSupplier, processors, props, null);
+    }
+
+    private static Set<String> subscribeTopics(SubscriptionScope scope) {
+        return Stream.concat(Stream.of(scope.topic()), scope.retryTopics().stream())
                      .collect(Collectors.toSet());
     }
 
+    // visible for testing
+    SubscriptionScope scope() {
+        return scope;
+    }
+
+    // visible for testing
+    Set<String> topics() {
+        return topics;
+    }
+
+    // visible for testing
+    ProcessorSubscription retrySubscription() {
+        return retrySubscription;
+    }
+
     private static boolean commitNeeded(Consumer<?, ?> consumer,
                                         Map<TopicPartition, OffsetAndMetadata> committedOffsets) {
         for (Entry<TopicPartition, OffsetAndMetadata> entry : committedOffsets.entrySet()) {
@@ -141,18 +194,18 @@ public class ProcessorSubscription extends Thread implements AsyncShutdownable {
         }
 
         Timer timer = Utils.timer();
-        contexts.dropContexts(partitions);
+        contexts.revokeContexts(partitions);
         logger.info("took {} ms to revoke {} partitions", timer.elapsedMillis(), partitions.size());
     }
 
-    private void partitionsAssigned(Collection<TopicPartition> partitions) {
+    private void partitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
         if (partitions.isEmpty()) {
             return;
         }
 
         Timer timer = Utils.timer();
         for (TopicPartition partition : partitions) {
-            contexts.initContext(partition, false);
+            contexts.initContext(partition, false, consumer.position(partition));
         }
         logger.info("took {} ms to assign {} partitions", timer.elapsedMillis(), partitions.size());
     }
@@ -163,7 +216,10 @@ public class ProcessorSubscription extends Thread implements AsyncShutdownable {
 
         final Collection<TopicPartition> currentAssignment = new HashSet<>();
         try {
-            consumer.subscribe(subscribeTopics(), new ConsumerRebalanceListener() {
+            if (retrySubscription != null) {
+                retrySubscription.start();
+            }
+            consumer.subscribe(topics, new ConsumerRebalanceListener() {
                 @Override
                 public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
                     waitForRemainingTasksCompletion(rebalanceTimeoutMillis.value());
@@ -184,7 +240,7 @@ public class ProcessorSubscription extends Thread implements AsyncShutdownable {
                     newlyAssignedPartitions.removeAll(currentAssignment);
                     logger.debug("newly assigned partitions({}): {}", newlyAssignedPartitions.size(),
                                  newlyAssignedPartitions);
-                    partitionsAssigned(newlyAssignedPartitions);
+                    partitionsAssigned(consumer, newlyAssignedPartitions);
 
                     final Collection<TopicPartition> regressed =
                             partitions.stream()
@@ -192,8 +248,9 @@ public class ProcessorSubscription extends Thread implements AsyncShutdownable {
                                       .collect(toList());
                     if (!regressed.isEmpty()) {
                         logger.debug("regression on {}, so resetting all internal states", regressed);
-                        partitionsRevoked(regressed);
-                        partitionsAssigned(regressed);
+                        // Offsets remembered for deduplication are kept, as the partitions stay assigned
+                        contexts.dropContexts(regressed);
+                        partitionsAssigned(consumer, regressed);
                     }
 
                     // Consumer rebalance resets all pause states of assigned partitions even though they
@@ -225,15 +282,30 @@ public class ProcessorSubscription extends Thread implements AsyncShutdownable {
                          scope, currentAssignment, e);
         } finally {
             Timer timer = Utils.timer();
+            if (retrySubscription != null) {
+                retrySubscription.initiateShutdown();
+            }
             contexts.destroyAllProcessors();
             try {
                 commitCompletedOffsets(consumer);
             } catch (RuntimeException e) {
                 logger.error("failed to commit offset on shutdown", e);
             }
-
-            processors.destroySingletonScope(scope.subscriptionId());
+            contexts.close();
             consumer.close();
+
+            // The retry subscription shares singleton processors, so they can be destroyed only after
+            // it finished processing
+            if (retrySubscription != null) {
+                try {
+                    retrySubscription.awaitShutdown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (ownsSingletonScope) {
+                processors.destroySingletonScope(scope.subscriptionId());
+            }
             logger.info("ProcessorSubscription {} terminated in {} ms", scope,
                         timer.elapsedMillis());
         }
@@ -242,9 +314,18 @@ public class ProcessorSubscription extends Thread implements AsyncShutdownable {
     private void pollOnce(Consumer<String, byte[]> consumer) {
         ConsumerRecords<String, byte[]> records = consumer.poll(POLL_TIMEOUT_MILLIS);
 
+        long nowMillis = System.currentTimeMillis();
         records.forEach(record -> {
             TopicPartition tp = new TopicPartition(record.topic(), record.partition());
             PartitionContext context = contexts.get(tp);
+            if (context.waitingForDue(nowMillis)) {
+                // Following records of the one held until due. They will be fetched again after resume.
+                return;
+            }
+            if (holdUntilDue(context, record, nowMillis)) {
+                consumer.seek(tp, record.offset());
+                return;
+            }
             DeferredCompletion completion = context.registerOffset(record.offset());
 
             if (blacklistedKeysFilter.shouldTake(record)) {
@@ -261,6 +342,26 @@ public class ProcessorSubscription extends Thread implements AsyncShutdownable {
         resumePartitions(consumer);
     }
 
+    /**
+     * Decides whether to pause the retry partition until the record becomes due, rather than deferring the
+     * task in memory.
+     */
+    private boolean holdUntilDue(PartitionContext context, ConsumerRecord<String, byte[]> record,
+                                 long nowMillis) {
+        long thresholdMillis = retryPauseThresholdMillis.value();
+        if (thresholdMillis < 0 || !context.isRetryTopic()) {
+            return false;
+        }
+        long scheduledTimeMillis = TaskMetadataPeeker.scheduledTimeMillis(record.value());
+        if (scheduledTimeMillis - nowMillis <= thresholdMillis) {
+            return false;
+        }
+        logger.debug("pausing {} until the task at {} becomes due at {}",
+                     context.topicPartition(), record.offset(), scheduledTimeMillis);
+        context.pauseUntil(scheduledTimeMillis);
+        return true;
+    }
+
     private void pausePartitions(Consumer<?, ?> consumer) {
         Collection<TopicPartition> pausedPartitions = contexts.partitionsNeedsPause();
         if (pausedPartitions.isEmpty()) {
@@ -17,8 +17,8 @@
 package com.linecorp.decaton.processor.runtime;
 
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.common.TopicPartition;
@@ -35,18 +35,17 @@ public class ProcessorUnit implements AsyncShutdownable {
 
     private final ThreadScope scope;
     private final ProcessPipeline<?> pipeline;
-    private final ExecutorService executor;
+    private final ScheduledExecutorService executor;
 
     private final ResourceUtilizationMetrics metrics;
 
     private volatile boolean terminated;
 
-    public ProcessorUnit(ThreadScope scope, ProcessPipeline<?> pipeline) {
+    public ProcessorUnit(ThreadScope scope, ProcessPipeline<?> pipeline, ScheduledExecutorService executor) {
         this.scope = scope;
         this.pipeline = pipeline;
+        this.executor = executor;
 
-        executor = Executors.newSingleThreadExecutor(
-                Utils.namedThreadFactory("PartitionProcessorThread-" + scope));
         TopicPartition tp = scope.topicPartition();
         metrics = Metrics.withTags("subscription", scope.subscriptionId(),
                                    "topic", tp.topic(),
@@ -55,11 +54,45 @@ public class ProcessorUnit implements AsyncShutdownable {
                 .new ResourceUtilizationMetrics();
     }
 
+    public ProcessorUnit(ThreadScope scope, ProcessPipeline<?> pipeline) {
+        this(scope, pipeline, newExecutor(scope));
+    }
+
+    /**
+     * Creates an executor which runs tasks of a {@link ProcessorUnit}.
+     * Besides the tasks fed through {@link #putTask}, {@link ExecutionScheduler} uses it to dispatch tasks
+     * deferred until their scheduled time, so that they are processed by the same thread.
+     *
+     * @param scope the {@link ThreadScope} of the unit.
+     * @return a single-threaded {@link ScheduledExecutorService}.
+     */
+    public static ScheduledExecutorService newExecutor(ThreadScope scope) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                1, Utils.namedThreadFactory("PartitionProcessorThread-" + scope));
+        // Tasks deferred until far future shouldn't block shutdown. Their offsets just remain uncommitted.
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
     public void putTask(TaskRequest request) {
         metrics.tasksQueued.increment();
         executor.execute(() -> processTask(request));
     }
 
+    /**
+     * Restores a task which was parked in the delay index by the previous instance.
+     * The task gets deferred again until its scheduled time, on this unit's thread.
+     *
+     * @param entry an entry read from the delay index.
+     */
+    public void restoreParkedTask(DelayIndex.Entry entry) {
+        executor.execute(() -> {
+            if (!terminated) {
+                pipeline.restoreParkedTask(entry);
+            }
+        });
+    }
+
     private void processTask(TaskRequest request) {
         if (terminated) {
             // There's a chance that some tasks leftover in executor's queue are still attempted to be processed
@@ -24,7 +24,9 @@ import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.linecorp.decaton.common.Serializer;
 import com.linecorp.decaton.processor.DecatonProcessor;
+import com.linecorp.decaton.processor.TaskCostFunction;
 import com.linecorp.decaton.processor.TaskExtractor;
 import com.linecorp.decaton.processor.metrics.Metrics;
 
@@ -35,15 +37,58 @@ public class Processors<T> {
     private final DecatonProcessorSupplier<byte[]> retryProcessorSupplier;
     private final TaskExtractor<T> taskExtractor;
     private final TaskExtractor<T> retryTaskExtractor;
+    private final Serializer<T> taskSerializer;
+    private final TaskCostFunction<T> costFunction;
+    private final KeyQuarantine quarantine;
 
-    public Processors(List<DecatonProcessorSupplier<T>> suppliers,
-                      DecatonProcessorSupplier<byte[]> retryProcessorSupplier,
-                      TaskExtractor<T> taskExtractor,
-                      TaskExtractor<T> retryTaskExtractor) {
+    private Processors(List<DecatonProcessorSupplier<T>> suppliers,
+                       DecatonProcessorSupplier<byte[]> retryProcessorSupplier,
+                       TaskExtractor<T> taskExtractor,
+                       TaskExtractor<T> retryTaskExtractor,
+                       Serializer<T> taskSerializer,
+                       TaskCostFunction<T> costFunction,
+                       KeyQuarantine quarantine) {
         this.suppliers = Collections.unmodifiableList(suppliers);
         this.retryProcessorSupplier = retryProcessorSupplier;
         this.taskExtractor = taskExtractor;
         this.retryTaskExtractor = retryTaskExtractor;
+        this.taskSerializer = taskSerializer;
+        this.costFunction = costFunction;
+        this.quarantine = quarantine;
+    }
+
+    public Processors(List<DecatonProcessorSupplier<T>> suppliers,
+                      DecatonProcessorSupplier<byte[]> retryProcessorSupplier,
+                      TaskExtractor<T> taskExtractor,
+                      TaskExtractor<T> retryTaskExtractor,
+                      Serializer<T> taskSerializer,
+                      TaskCostFunction<T> costFunction) {
+        this(suppliers, retryProcessorSupplier, taskExtractor, retryTaskExtractor, taskSerializer, costFunction,
+             null);
+    }
+
+    public Processors(List<DecatonProcessorSupplier<T>> suppliers,
+                      DecatonProcessorSupplier<byte[]> retryProcessorSupplier,
+                      TaskExtractor<T> taskExtractor,
+                      TaskExtractor<T> retryTaskExtractor,
+                      Serializer<T> taskSerializer) {
+        this(suppliers, retryProcessorSupplier, taskExtractor, retryTaskExtractor, taskSerializer, null);
+    }
+
+    public Processors(List<DecatonProcessorSupplier<T>> suppliers,
+                      DecatonProcessorSupplier<byte[]> retryProcessorSupplier,
+                      TaskExtractor<T> taskExtractor,
+                      TaskExtractor<T> retryTaskExtractor) {
+        this(suppliers, retryProcessorSupplier, taskExtractor, retryTaskExtractor, null);
+    }
+
+    /**
+     * Returns processors which track failures of keys with the given {@link KeyQuarantine} to send tasks of
+     * quarantined keys to the retry processor without processing them.
+     */
+    Processors<T> withQuarantine(KeyQuarantine quarantine) {
+        return new Processors<>(suppliers, retryProcessorSupplier, taskExtractor, retryTaskExtractor,
+                                taskSerializer, costFunction, quarantine);
     }
 
     private DecatonProcessor<byte[]> retryProcessor(ThreadScope scope) {
@@ -66,6 +111,16 @@ public class Processors<T> {
     public ProcessPipeline<T> newPipeline(ThreadScope scope,
                                           ExecutionScheduler scheduler,
                                           Metrics metrics) {
+        return newPipeline(scope, scheduler, metrics, null);
+    }
+
+    /**
+     * @param stateStore the store of the partition which processors access through the context. may be null.
+     */
+    ProcessPipeline<T> newPipeline(ThreadScope scope,
+                                   ExecutionScheduler scheduler,
+                                   Metrics metrics,
+                                   FileStateStore stateStore) {
         DecatonProcessor<byte[]> retryProcessor = retryProcessor(scope);
 
         TaskExtractor<T> taskExtractor = extractorFromTopic(scope);
@@ -77,7 +132,8 @@ public class Processors<T> {
                                                       scope.threadId()))
                              .collect(Collectors.toList());
             logger.info("Creating partition processor core: {}", scope);
-            return new ProcessPipeline<>(scope, processors, retryProcessor, taskExtractor, scheduler, metrics);
+            return new ProcessPipeline<>(scope, processors, retryProcessor, taskExtractor, taskSerializer,
+                                         costFunction, quarantine, stateStore, scheduler, metrics);
         } catch (RuntimeException e) {
             // If exception occurred in the middle of instantiating processors, we have to make sure
             // all the previously created processors are destroyed before bubbling up the exception.
@@ -30,6 +30,27 @@ public interface RateLimiter extends AutoCloseable {
 
     long acquire(int permits) throws InterruptedException;
 
+    /**
+     * Reserves permits without blocking, so that the caller can wait for them by itself.
+     * Once reserved, the permits are considered as consumed at the time returned by this method.
+     *
+     * @param permits the number of permits to reserve.
+     * @return microseconds to wait until the reserved permits become available, or a negative value if this
+     * limiter can't tell it in advance, in which case the caller has to call {@link #acquire(int)} instead.
+     */
+    default long reserve(int permits) {
+        return -1L;
+    }
+
+    /**
+     * Reports the result of a task processed under this limiter, which is used by limiters adjusting their
+     * rate by the feedback.
+     *
+     * @param latencyNanos the time taken to complete the task.
+     * @param failed whether the task failed.
+     */
+    default void report(long latencyNanos, boolean failed) {}
+
     @Override
     default void close() throws Exception {}
 
@@ -39,7 +60,7 @@ public interface RateLimiter extends AutoCloseable {
         }
 
         if (permitsPerSecond < 0L || permitsPerSecond > MAX_RATE) {
-            return permits -> 0L;
+            return new UnlimitedRateLimiter();
         }
 
         return new AveragingRateLimiter(permitsPerSecond, 1.0d, System::nanoTime);
@@ -17,6 +17,8 @@
 package com.linecorp.decaton.processor.runtime;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.kafka.clients.producer.KafkaProducer;
@@ -25,6 +27,7 @@ import org.apache.kafka.clients.producer.ProducerConfig;
 
 import com.linecorp.decaton.client.DecatonClientBuilder.DefaultKafkaProducerSupplier;
 import com.linecorp.decaton.client.KafkaProducerSupplier;
+import com.linecorp.decaton.processor.TaskMetadata;
 
 import lombok.Builder;
 import lombok.Value;
@@ -38,8 +41,42 @@ public class RetryConfig {
 
     /**
      * Time to backoff before retry processing of queued tasks.
+     * If {@link #maxBackoff} is set, this is the backoff of the first retry.
      */
     Duration backoff;
+    /**
+     * Upper limit of the backoff, which enables exponential backoff.
+     * When set, the backoff doubles for every retry starting from {@link #backoff}, up to this value.
+     */
+    Duration maxBackoff;
+    /**
+     * Ratio of the random jitter added to the backoff, which has to be between 0 and 1.
+     * e.g. with 0.5, the backoff is chosen randomly from [backoff, backoff * 1.5], so that tasks failed at the
+     * same time don't come back at the same time.
+     * 0 by default, which adds no jitter.
+     */
+    double jitter;
+    /**
+     * The number of times a task can be retried, counted by {@link TaskMetadata#retryCount()}.
+     * Once a task is retried this many times, further retry requests send it to {@link #deadLetterTopic}, or
+     * discard it if the topic isn't set.
+     * 0 by default, which means unlimited.
+     */
+    int maxAttempts;
+    /**
+     * Optionally supplied topic name to queue tasks which exhausted {@link #maxAttempts}.
+     * The topic isn't consumed by the subscription.
+     */
+    String deadLetterTopic;
+    /**
+     * Optionally supplied thresholds of the backoff to use additional retry topics for longer backoffs.
+     * Tasks whose backoff is at least the i-th threshold (1-origin) and below the next one are queued to the
+     * topic named the retry topic + "-" + i, while tasks whose backoff is below the first threshold are queued
+     * to the retry topic.
+     * All of these topics are consumed by the subscription, so tasks having long backoff don't occupy the
+     * partitions processing tasks having short backoff.
+     */
+    List<Duration> tierThresholds;
     /**
      * Optionally supplied custom retry topic name. Unless specified, the name adding "-retry" suffix to the
      * original topic name is used as the default.
@@ -48,15 +85,35 @@ public class RetryConfig {
     /**
      * Optionally supplied custom configuration for the {@link Producer} used to produce retry tasks into retry
      * topic. See {@link ProducerConfig}.
+     * Unless overwritten, the producer enables idempotence and pipelines up to 5 requests per connection.
+     * The consumer config of the subscription is used if omitted.
+     *
+     * Producers are shared among subscriptions in the JVM which have the same config and
+     * {@link #producerSupplier}.
      */
     Properties producerConfig;
     /**
      * A {@link KafkaProducerSupplier} that can be used to inject arbitrary implementation of Kafka
      * {@link Producer} rather than the default {@link KafkaProducer}.
-     * The supplied producer is closed along with {@link ProcessorSubscription}'s shutdown.
+     * The supplied producer is closed when all {@link ProcessorSubscription}s sharing it are shut down.
      * If omitted, {@link DefaultKafkaProducerSupplier} is used.
      */
     KafkaProducerSupplier producerSupplier;
+    /**
+     * The number of times to retry a task in the same instance before queueing it to the retry topic.
+     * A local retry processes the task again after {@link #localBackoff} without producing it to the retry
+     * topic, while the offset of the task is held uncommitted. Hence it's suitable for transient errors that
+     * are likely to be recovered shortly.
+     * Note that ordering of tasks of the same key isn't preserved across a local retry. Tasks following the
+     * retried task which are already queued or dispatched can be processed before the retry, as the key isn't
+     * held back while the retry is waiting for the backoff.
+     * 0 by default, which disables local retries.
+     */
+    int localRetries;
+    /**
+     * Time to backoff before each local retry. Retried immediately if omitted.
+     */
+    Duration localBackoff;
 
     /**
      * Create an instance of {@link RetryConfig} only with {@link #backoff} set.
@@ -70,6 +127,48 @@ public class RetryConfig {
         return builder().backoff(backoff).build();
     }
 
+    /**
+     * Validates the combination of the configured values, so that a bad config fails on building the
+     * subscription rather than on the first partition assignment.
+     *
+     * @throws IllegalArgumentException when any of the values is invalid.
+     */
+    void validate() {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1: " + jitter);
+        }
+        if (backoff != null && backoff.isNegative()) {
+            throw new IllegalArgumentException("backoff must not be negative: " + backoff);
+        }
+        if (maxBackoff != null && (backoff == null || maxBackoff.compareTo(backoff) < 0)) {
+            throw new IllegalArgumentException(
+                    "maxBackoff must not be shorter than backoff: " + maxBackoff + " < " + backoff);
+        }
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts must not be negative: " + maxAttempts);
+        }
+        if (tierThresholds != null) {
+            Duration prev = Duration.ZERO;
+            for (Duration threshold : tierThresholds) {
+                if (threshold.compareTo(prev) <= 0) {
+                    throw new IllegalArgumentException(
+                            "tierThresholds must be positive and ascending: " + tierThresholds);
+                }
+                prev = threshold;
+            }
+        }
+        if (localRetries < 0) {
+            throw new IllegalArgumentException("localRetries must not be negative: " + localRetries);
+        }
+        if (localBackoff != null && localBackoff.isNegative()) {
+            throw new IllegalArgumentException("localBackoff must not be negative: " + localBackoff);
+        }
+    }
+
+    Duration localBackoffOrDefault() {
+        return localBackoff == null ? Duration.ZERO : localBackoff;
+    }
+
     String retryTopicOrDefault(String originalTopic) {
         if (retryTopic == null) {
             return originalTopic + DEFAULT_RETRY_TOPIC_SUFFIX;
@@ -77,4 +176,55 @@ public class RetryConfig {
             return retryTopic;
         }
     }
+
+    /**
+     * Returns all retry topics including ones for the tiers of {@link #tierThresholds}.
+     */
+    List<String> retryTopicsOrDefault(String originalTopic) {
+        String baseTopic = retryTopicOrDefault(originalTopic);
+        int tiers = tierThresholds == null ? 0 : tierThresholds.size();
+        List<String> topics = new ArrayList<>(tiers + 1);
+        topics.add(baseTopic);
+        for (int i = 1; i <= tiers; i++) {
+            topics.add(baseTopic + '-' + i);
+        }
+        return topics;
+    }
+
+    /**
+     * Returns the retry topic to queue a task having the given backoff.
+     */
+    String retryTopicFor(String originalTopic, long backoffMillis) {
+        String baseTopic = retryTopicOrDefault(originalTopic);
+        if (tierThresholds == null) {
+            return baseTopic;
+        }
+        int tier = 0;
+        while (tier < tierThresholds.size() && backoffMillis >= tierThresholds.get(tier).toMillis()) {
+            tier++;
+        }
+        return tier == 0 ? baseTopic : baseTopic + '-' + tier;
+    }
+
+    /**
+     * Returns the backoff in milliseconds for the retry of a task.
+     *
+     * @param retryCount the number of times the task has been retried so far.
+     * @param random a random number in [0, 1) to compute the jitter.
+     */
+    long backoffMillis(long retryCount, double random) {
+        long backoffMillis = backoff.toMillis();
+        if (maxBackoff != null) {
+            long maxBackoffMillis = maxBackoff.toMillis();
+            for (long i = 0; i < retryCount && 0 < backoffMillis && backoffMillis < maxBackoffMillis; i++) {
+                backoffMillis *= 2;
+            }
+            backoffMillis = Math.min(backoffMillis, maxBackoffMillis);
+        }
+        return backoffMillis + (long) (backoffMillis * jitter * random);
+    }
+
+    boolean attemptsExhausted(long retryCount) {
+        return maxAttempts > 0 && retryCount >= maxAttempts;
+    }
 }
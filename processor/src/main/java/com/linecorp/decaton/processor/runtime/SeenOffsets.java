@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A bounded set of offsets of the partition whose tasks have completed recently, to skip tasks delivered again
+ * after rebalance or offset regression.
+ * The set holds up to the given number of offsets, and forgets the oldest one when adding more.
+ *
+ * Offsets are kept off-heap in a ring in order of adding and an open addressing hash table with linear probing,
+ * so the set costs no GC overhead regardless of its capacity.
+ * Both buffers hold offset + 1 so that 0 represents an empty slot.
+ */
+class SeenOffsets {
+    private static final long EMPTY = 0L;
+
+    private final LongBuffer ring;
+    private final LongBuffer table;
+    private final int mask;
+    private int head;
+    private int size;
+
+    SeenOffsets(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        ring = ByteBuffer.allocateDirect(capacity * Long.BYTES).asLongBuffer();
+        // Keep the load factor at most 0.5 for short probe sequences
+        int tableSize = Integer.highestOneBit(capacity) << 2;
+        table = ByteBuffer.allocateDirect(tableSize * Long.BYTES).asLongBuffer();
+        mask = tableSize - 1;
+    }
+
+    private int home(long entry) {
+        // Spread sequential offsets over the table
+        long h = entry * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the slot of the entry in the table, or the empty slot where it should be inserted.
+     */
+    private int slot(long entry) {
+        int i = home(entry);
+        long current;
+        while ((current = table.get(i)) != EMPTY && current != entry) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    synchronized boolean contains(long offset) {
+        return table.get(slot(offset + 1)) != EMPTY;
+    }
+
+    /**
+     * Adds the offset to the set, forgetting the oldest one if the set is full.
+     */
+    synchronized void add(long offset) {
+        long entry = offset + 1;
+        int i = slot(entry);
+        if (table.get(i) != EMPTY) {
+            return;
+        }
+        if (size == ring.capacity()) {
+            remove(ring.get(head));
+            // The slot might have been shifted by the removal
+            i = slot(entry);
+        } else {
+            size++;
+        }
+        table.put(i, entry);
+        ring.put(head, entry);
+        head = (head + 1) % ring.capacity();
+    }
+
+    /**
+     * Removes the entry from the table, shifting following entries back so that probe sequences are kept
+     * without tombstones.
+     */
+    private void remove(long entry) {
+        int i = slot(entry);
+        if (table.get(i) == EMPTY) {
+            return;
+        }
+        table.put(i, EMPTY);
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long current = table.get(j);
+            if (current == EMPTY) {
+                return;
+            }
+            int k = home(current);
+            // Move the entry back unless its home lies cyclically in (i, j]
+            boolean inRange = i <= j ? i < k && k <= j : i < k || k <= j;
+            if (!inRange) {
+                table.put(i, current);
+                table.put(j, EMPTY);
+                i = j;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+import com.linecorp.decaton.client.KafkaProducerSupplier;
+import com.linecorp.decaton.protocol.Decaton.DecatonTaskRequest;
+
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A {@link KafkaProducerSupplier} which shares a {@link Producer} among all callers asking for the same config
+ * through the same delegate supplier in the JVM, so that retry producers of subscriptions are pooled.
+ * Producers returned by this supplier are reference counted, and the underlying producer is closed when all of
+ * them are closed.
+ */
+@RequiredArgsConstructor
+class SharedProducerSupplier implements KafkaProducerSupplier {
+    private static final Map<PoolKey, PooledProducer> pool = new HashMap<>();
+
+    private final KafkaProducerSupplier delegate;
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static class PoolKey {
+        private final KafkaProducerSupplier supplier;
+        private final Properties config;
+    }
+
+    private static class PooledProducer {
+        private final Producer<String, DecatonTaskRequest> producer;
+        private int refCount;
+
+        PooledProducer(Producer<String, DecatonTaskRequest> producer) {
+            this.producer = producer;
+        }
+    }
+
+    @Override
+    public Producer<String, DecatonTaskRequest> getProducer(Properties config) {
+        PoolKey key = new PoolKey(delegate, (Properties) config.clone());
+        synchronized (pool) {
+            PooledProducer pooled = pool.computeIfAbsent(
+                    key, k -> new PooledProducer(delegate.getProducer(k.config)));
+            pooled.refCount++;
+            return new SharedProducer(key, pooled.producer);
+        }
+    }
+
+    private static void release(PoolKey key, Duration timeout) {
+        Producer<String, DecatonTaskRequest> producer;
+        synchronized (pool) {
+            PooledProducer pooled = pool.get(key);
+            if (--pooled.refCount > 0) {
+                return;
+            }
+            pool.remove(key);
+            producer = pooled.producer;
+        }
+        if (timeout == null) {
+            producer.close();
+        } else {
+            producer.close(timeout);
+        }
+    }
+
+    // visible for testing
+    static int pooledProducers() {
+        synchronized (pool) {
+            return pool.size();
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class SharedProducer implements Producer<String, DecatonTaskRequest> {
+        private final PoolKey key;
+        private final Producer<String, DecatonTaskRequest> producer;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public void initTransactions() {
+            throw new UnsupportedOperationException("transactions aren't supported by shared producer");
+        }
+
+        @Override
+        public void beginTransaction() {
+            throw new UnsupportedOperationException("transactions aren't supported by shared producer");
+        }
+
+        @Override
+        public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets,
+                                             String consumerGroupId) {
+            throw new UnsupportedOperationException("transactions aren't supported by shared producer");
+        }
+
+        @Override
+        public void commitTransaction() {
+            throw new UnsupportedOperationException("transactions aren't supported by shared producer");
+        }
+
+        @Override
+        public void abortTransaction() {
+            throw new UnsupportedOperationException("transactions aren't supported by shared producer");
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<String, DecatonTaskRequest> record) {
+            return producer.send(record);
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<String, DecatonTaskRequest> record,
+                                           Callback callback) {
+            return producer.send(record, callback);
+        }
+
+        @Override
+        public void flush() {
+            producer.flush();
+        }
+
+        @Override
+        public List<PartitionInfo> partitionsFor(String topic) {
+            return producer.partitionsFor(topic);
+        }
+
+        @Override
+        public Map<MetricName, ? extends Metric> metrics() {
+            return producer.metrics();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(key, null);
+            }
+        }
+
+        @Override
+        public void close(Duration timeout) {
+            if (closed.compareAndSet(false, true)) {
+                release(key, timeout);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import com.linecorp.decaton.processor.ProcessingContext;
+import com.linecorp.decaton.processor.ProcessorProperties;
+
+/**
+ * A local key-value store bound to a partition, which processors can access through
+ * {@link ProcessingContext#stateStore()} to keep states surviving restarts, e.g. for deduplication or
+ * aggregation.
+ * See {@link ProcessorProperties#CONFIG_STATE_STORE_DIR}.
+ *
+ * Changes made by tasks up to the offset to be committed are flushed to the storage along with the offset before
+ * committing it, so the store reflects exactly the tasks up to the committed offset once it's restored.
+ * As the store is local to the instance, it's restored only when the partition is assigned to the same instance
+ * again after restart or rebalance, and discarded if the partition has been processed by another instance since.
+ *
+ * Implementations must be thread-safe, as the store is shared by all processor threads of the partition.
+ */
+public interface StateStore {
+    /**
+     * Returns the value of the key.
+     * @param key the key to look up.
+     * @return the value of the key, or null if the key doesn't exist. must not be modified.
+     */
+    byte[] get(String key);
+
+    /**
+     * Sets the value of the key.
+     * @param key the key to set.
+     * @param value the value to set, which must not be modified after calling this method.
+     */
+    void put(String key, byte[] value);
+
+    /**
+     * Removes the key.
+     * @param key the key to remove.
+     */
+    void delete(String key);
+}
@@ -16,12 +16,18 @@
 
 package com.linecorp.decaton.processor.runtime;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.ProducerConfig;
 
 import com.linecorp.decaton.client.DecatonClientBuilder.DefaultKafkaProducerSupplier;
 import com.linecorp.decaton.client.DecatonTaskProducer;
@@ -32,6 +38,7 @@ import com.linecorp.decaton.processor.ProcessorProperties;
 import com.linecorp.decaton.processor.ProcessorsBuilder;
 import com.linecorp.decaton.processor.PropertySupplier;
 import com.linecorp.decaton.processor.TaskMetadata;
+import com.linecorp.decaton.processor.metrics.Metrics;
 
 import lombok.AccessLevel;
 import lombok.Setter;
@@ -40,8 +47,23 @@ import lombok.experimental.Accessors;
 @Setter
 @Accessors(fluent = true)
 public class SubscriptionBuilder {
+    private static final String RETRY_SUBSCRIPTION_SUFFIX = "-retry";
+    // Retry producers are pooled by the supplier and config, so the default one has to be the same instance
+    private static final KafkaProducerSupplier DEFAULT_RETRY_PRODUCER_SUPPLIER =
+            new DefaultKafkaProducerSupplier();
+    private static final Map<String, String> presetRetryProducerConfig;
+
+    static {
+        presetRetryProducerConfig = new HashMap<>();
+        // Idempotent delivery keeps retried tasks in order and free of duplicates with pipelined requests
+        presetRetryProducerConfig.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
+        presetRetryProducerConfig.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, "5");
+    }
+
     @Setter(AccessLevel.NONE)
-    private ProcessorProperties.Builder<ProcessorProperties> propertiesBuilder;
+    private PropertySupplier[] propertySuppliers;
+    @Setter(AccessLevel.NONE)
+    private PropertySupplier[] retryPropertySuppliers;
 
     /**
      * A unique identifier for this subscription. This ID is used mainly for identifying logs, metrics and
@@ -60,12 +82,19 @@ public class SubscriptionBuilder {
      */
     private ProcessorsBuilder<?> processorsBuilder;
 
+    /**
+     * A {@link TokenStore} to share the rate limit with other instances, which is applied according to
+     * {@link ProcessorProperties#CONFIG_PROCESSING_RATE_PER_CLUSTER}.
+     * Optional. The rate limit is applied only within the instance if omitted.
+     */
+    private TokenStore tokenStore;
+
     @Setter(AccessLevel.NONE)
     private RetryConfig retryConfig;
 
     public SubscriptionBuilder(String subscriptionId) {
         this.subscriptionId = Objects.requireNonNull(subscriptionId, "subscriptionId");
-        propertiesBuilder = ProcessorProperties.builder();
+        propertySuppliers = new PropertySupplier[0];
     }
 
     public static SubscriptionBuilder newBuilder(String subscriptionId) {
@@ -83,12 +112,43 @@ public class SubscriptionBuilder {
      * @return updated instance of {@link SubscriptionBuilder}.
      */
     public SubscriptionBuilder properties(PropertySupplier... suppliers) {
+        propertySuppliers = suppliers.clone();
+        return this;
+    }
+
+    /**
+     * Configure subscription to consume retry topics by an isolated consumer, which has its own thread,
+     * partition processors and properties, so that a burst of retrying tasks doesn't slow down processing
+     * of fresh tasks and vice versa.
+     *
+     * The given {@link PropertySupplier}s take precedence over ones given through
+     * {@link #properties(PropertySupplier...)} for the retry subscription. That is, the share of resources
+     * consumed by retrying tasks can be weighted through tunables like
+     * {@link ProcessorProperties#CONFIG_PARTITION_CONCURRENCY} and
+     * {@link ProcessorProperties#CONFIG_PROCESSING_RATE_PER_SUBSCRIPTION} without affecting fresh tasks.
+     *
+     * The retry subscription uses the same consumer config (hence the same consumer group) and its ID is
+     * suffixed with "-retry". As both consumers join the same group, a rebalance caused by either of them
+     * makes the other rebalance as well. Processors of {@link ProcessorScope#SINGLETON} scope, including the
+     * retry producer, are shared by the two subscriptions and destroyed once after both terminated.
+     * {@link #enableRetry(RetryConfig)} is required to be called as well.
+     *
+     * @param suppliers {@link PropertySupplier} instances for the retry subscription
+     * @return updated instance of {@link SubscriptionBuilder}.
+     */
+    public SubscriptionBuilder isolateRetry(PropertySupplier... suppliers) {
+        retryPropertySuppliers = suppliers.clone();
+        return this;
+    }
+
+    private static ProcessorProperties buildProperties(PropertySupplier[]... supplierGroups) {
         ProcessorProperties.Builder<ProcessorProperties> builder = ProcessorProperties.builder();
-        for (PropertySupplier supplier : suppliers) {
-            builder.setBySupplier(supplier);
+        for (PropertySupplier[] suppliers : supplierGroups) {
+            for (PropertySupplier supplier : suppliers) {
+                builder.setBySupplier(supplier);
+            }
         }
-        propertiesBuilder = builder;
-        return this;
+        return builder.build();
     }
 
     /**
@@ -97,7 +157,8 @@ public class SubscriptionBuilder {
      * Some prerequisites needs to be confirm in order to enable retry function:
      * - For re-queueing tasks for retry, an another topic needs to be prepared on the same Kafka cluster.
      *   The topic should be named as {@link ProcessorsBuilder#topic()} + "-retry" or customized through
-     *   {@link RetryConfig#retryTopic()}.
+     *   {@link RetryConfig#retryTopic()}. If {@link RetryConfig#tierThresholds()} is set, topics for each tier
+     *   need to be prepared as well.
      * - By enabling retry, processing order of tasks is no longer guaranteed. When task1 of particular key
      *   scheduled for retrying, and task2 of the same key arrived before task1 gets processed again, task2
      *   processing might be completed in prior to task1's.
@@ -109,6 +170,7 @@ public class SubscriptionBuilder {
      * The number of attempts to retry processing is controlled by {@link DecatonProcessor}, by deciding
      * whether to call {@link ProcessingContext#retry()}, maybe accordingly to
      * {@link TaskMetadata#retryCount()} for reference how many times did the task attempted to be processed.
+     * {@link RetryConfig#maxAttempts()} additionally limits it regardless of processors.
      *
      * @param config a {@link RetryConfig} instance representing configs for retry.
      * @return updated instance of {@link SubscriptionBuilder}.
@@ -118,8 +180,31 @@ public class SubscriptionBuilder {
         return this;
     }
 
+    /**
+     * Returns the config for the retry producer. When the consumer config is used as a fallback, only entries
+     * known to the producer are taken so that subscriptions of different consumer groups can share a producer.
+     */
+    private static Properties retryProducerConfig(RetryConfig retryConfig, Properties consumerConfig) {
+        Properties producerConfig = new Properties();
+        producerConfig.putAll(presetRetryProducerConfig);
+        if (retryConfig.producerConfig() != null) {
+            producerConfig.putAll(retryConfig.producerConfig()); // intentional overwrite
+        } else {
+            Set<String> producerConfigNames = ProducerConfig.configNames();
+            for (String name : consumerConfig.stringPropertyNames()) {
+                if (producerConfigNames.contains(name)) {
+                    producerConfig.setProperty(name, consumerConfig.getProperty(name));
+                }
+            }
+        }
+        return producerConfig;
+    }
+
     public ProcessorSubscription build() {
-        ProcessorProperties props = propertiesBuilder.build();
+        if (retryConfig != null) {
+            retryConfig.validate();
+        }
+        ProcessorProperties props = buildProperties(propertySuppliers);
         String topic = processorsBuilder.topic();
         SubscriptionScope scope = new SubscriptionScope(Objects.requireNonNull(subscriptionId),
                                                         topic,
@@ -130,21 +215,52 @@ public class SubscriptionBuilder {
         ConsumerSupplier consumerSupplier = new ConsumerSupplier(consumerConfig);
 
         DecatonProcessorSupplier<byte[]> retryProcessorSupplier = null;
+        KeyQuarantine quarantine = null;
         if (retryConfig != null) {
-            Properties producerConfig = Optional.ofNullable(retryConfig.producerConfig())
-                                                .orElse(consumerConfig);
-            KafkaProducerSupplier producerSupplier = Optional.ofNullable(retryConfig.producerSupplier())
-                                                             .orElseGet(DefaultKafkaProducerSupplier::new);
+            // Shared by the retry processor and pipelines, also with the retry subscription if isolated
+            KeyQuarantine keyQuarantine = new KeyQuarantine(
+                    props, Metrics.withTags("subscription", subscriptionId).new RetryMetrics());
+            quarantine = keyQuarantine;
+            Properties producerConfig = retryProducerConfig(retryConfig, consumerConfig);
+            KafkaProducerSupplier producerSupplier = new SharedProducerSupplier(
+                    Optional.ofNullable(retryConfig.producerSupplier()).orElse(DEFAULT_RETRY_PRODUCER_SUPPLIER));
             retryProcessorSupplier = new DecatonProcessorSupplierImpl<>(() -> {
 
                 DecatonTaskProducer producer = new DecatonTaskProducer(
                         scope.retryTopic().get(), producerConfig, producerSupplier);
-                return new DecatonTaskRetryQueueingProcessor(scope, producer);
+                return new DecatonTaskRetryQueueingProcessor(scope, producer, keyQuarantine);
             }, ProcessorScope.SINGLETON);
         }
 
-        return new ProcessorSubscription(scope, consumerSupplier,
-                                         processorsBuilder.build(retryProcessorSupplier), props);
+        Processors<?> processors = processorsBuilder.build(retryProcessorSupplier);
+        if (quarantine != null) {
+            processors = processors.withQuarantine(quarantine);
+        }
+        if (retryPropertySuppliers == null) {
+            return new ProcessorSubscription(scope, consumerSupplier, processors, props, tokenStore);
+        }
+        if (retryConfig == null) {
+            throw new IllegalStateException("isolateRetry requires enableRetry to be configured");
+        }
+
+        ProcessorProperties retryProps = buildProperties(retryPropertySuppliers, propertySuppliers);
+        SubscriptionScope retryScope = new SubscriptionScope(subscriptionId + RETRY_SUBSCRIPTION_SUFFIX,
+                                                             topic,
+                                                             Optional.of(retryConfig),
+                                                             retryProps);
+        Properties retryConsumerConfig = new Properties();
+        retryConsumerConfig.putAll(consumerConfig);
+        String clientId = consumerConfig.getProperty(ConsumerConfig.CLIENT_ID_CONFIG);
+        if (clientId != null) {
+            retryConsumerConfig.setProperty(ConsumerConfig.CLIENT_ID_CONFIG,
+                                            clientId + RETRY_SUBSCRIPTION_SUFFIX);
+        }
+        ProcessorSubscription retrySubscription = new ProcessorSubscription(
+                retryScope, new ConsumerSupplier(retryConsumerConfig), processors, retryProps, tokenStore,
+                new HashSet<>(retryScope.retryTopics()), null, false);
+
+        return new ProcessorSubscription(scope, consumerSupplier, processors, props, tokenStore,
+                                         Collections.singleton(topic), retrySubscription, true);
     }
 
     public ProcessorSubscription buildAndStart() {
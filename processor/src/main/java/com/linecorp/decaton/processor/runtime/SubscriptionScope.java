@@ -16,6 +16,8 @@
 
 package com.linecorp.decaton.processor.runtime;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 import com.linecorp.decaton.processor.ProcessorProperties;
@@ -39,6 +41,13 @@ class SubscriptionScope {
         return retryConfig.map(conf -> conf.retryTopicOrDefault(topic));
     }
 
+    /**
+     * Returns all retry topics to subscribe, including ones for tiers of backoff.
+     */
+    List<String> retryTopics() {
+        return retryConfig.map(conf -> conf.retryTopicsOrDefault(topic)).orElse(Collections.emptyList());
+    }
+
     @Override
     public String toString() {
         return subscriptionId;
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import com.linecorp.decaton.protocol.Decaton.DecatonTaskRequest;
+import com.linecorp.decaton.protocol.Decaton.TaskMetadataProto;
+
+/**
+ * Reads the metadata of a serialized {@link DecatonTaskRequest} without parsing the task, which is usually much
+ * larger than the metadata.
+ */
+final class TaskMetadataPeeker {
+    private TaskMetadataPeeker() {}
+
+    /**
+     * @param requestBytes the bytes of a serialized {@link DecatonTaskRequest}.
+     * @return the scheduled time of the task, or 0 if the bytes can't be read as a {@link DecatonTaskRequest}.
+     */
+    static long scheduledTimeMillis(byte[] requestBytes) {
+        if (requestBytes == null) {
+            return 0L;
+        }
+        try {
+            CodedInputStream input = CodedInputStream.newInstance(requestBytes);
+            while (true) {
+                int tag = input.readTag();
+                if (tag == 0) {
+                    return 0L;
+                }
+                if (WireFormat.getTagFieldNumber(tag) != DecatonTaskRequest.METADATA_FIELD_NUMBER) {
+                    input.skipField(tag);
+                    continue;
+                }
+                int oldLimit = input.pushLimit(input.readRawVarint32());
+                TaskMetadataProto metadata = TaskMetadataProto.parseFrom(input);
+                input.popLimit(oldLimit);
+                return metadata.getScheduledTimeMillis();
+            }
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+}
@@ -32,25 +32,57 @@ class TaskRequest {
     private final long recordOffset;
     private final DeferredCompletion completion;
     private final String key;
-    private final String id;
+    // The number of times the task has been retried in this instance
+    private final int localRetryCount;
     private byte[] rawRequestBytes;
+    // Whether a processor requested to retry the task. Set possibly by a thread other than the unit's thread
+    private volatile boolean retried;
 
-    public TaskRequest(TopicPartition topicPartition,
-                       long recordOffset,
-                       DeferredCompletion completion,
-                       String key,
-                       byte[] rawRequestBytes) {
+    private TaskRequest(TopicPartition topicPartition,
+                        long recordOffset,
+                        DeferredCompletion completion,
+                        String key,
+                        byte[] rawRequestBytes,
+                        int localRetryCount) {
         this.topicPartition = topicPartition;
         this.recordOffset = recordOffset;
         this.completion = completion;
         this.key = key;
         this.rawRequestBytes = rawRequestBytes;
+        this.localRetryCount = localRetryCount;
+    }
 
+    public TaskRequest(TopicPartition topicPartition,
+                       long recordOffset,
+                       DeferredCompletion completion,
+                       String key,
+                       byte[] rawRequestBytes) {
+        this(topicPartition, recordOffset, completion, key, rawRequestBytes, 0);
+    }
+
+    /**
+     * Returns a request to retry the same task in this instance.
+     */
+    TaskRequest forLocalRetry() {
+        return new TaskRequest(topicPartition, recordOffset, completion, key, rawRequestBytes,
+                               localRetryCount + 1);
+    }
+
+    void markRetried() {
+        retried = true;
+    }
+
+    /**
+     * Returns a string which identifies this request, which is mainly for logging.
+     * This is built every time it's called rather than in advance since it's rarely needed in most cases
+     * where no error happens.
+     */
+    public String id() {
         StringBuilder idBuilder = new StringBuilder();
         idBuilder.append("topic=").append(topicPartition.topic());
         idBuilder.append(" partition=").append(topicPartition.partition());
         idBuilder.append(" offset=").append(recordOffset);
-        id = idBuilder.toString();
+        return idBuilder.toString();
     }
 
     /**
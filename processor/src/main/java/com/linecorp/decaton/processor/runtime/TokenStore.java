@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import com.linecorp.decaton.processor.ProcessorProperties;
+
+/**
+ * A store of tokens shared by multiple subscription instances, typically the instances of the same consumer
+ * group running on different hosts, to limit their total processing rate.
+ * See {@link ProcessorProperties#CONFIG_PROCESSING_RATE_PER_CLUSTER}.
+ *
+ * An implementation is expected to keep a token bucket for each name, which is refilled at the given rate and
+ * can hold tokens up to the amount of one second.
+ * Each subscription instance leases tokens in chunks and hands them out locally, so the store is accessed only
+ * once per {@link ProcessorProperties#CONFIG_PROCESSING_RATE_LEASE_PERMITS} tasks.
+ *
+ * Implementations must be thread-safe.
+ */
+@FunctionalInterface
+public interface TokenStore {
+    /**
+     * Leases tokens from the bucket.
+     * Tokens are always granted, but they might be the ones to be refilled in the future, in which case the
+     * caller has to wait until then before using them.
+     *
+     * @param bucket the name of the bucket.
+     * @param permitsPerSecond the rate the bucket is refilled at.
+     * @param tokens the number of tokens to lease.
+     * @return microseconds to wait until the leased tokens become available. 0 if they're available now.
+     */
+    long lease(String bucket, long permitsPerSecond, int tokens);
+
+    /**
+     * Returns leased tokens which are left unused to the bucket.
+     * The default implementation discards them, which is safe but makes the bucket refill slower by them.
+     *
+     * @param bucket the name of the bucket.
+     * @param permitsPerSecond the rate the bucket is refilled at.
+     * @param tokens the number of tokens to return.
+     */
+    default void release(String bucket, long permitsPerSecond, int tokens) {}
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.linecorp.decaton.processor.DecatonProcessor;
+import com.linecorp.decaton.processor.DeferredCompletion;
+import com.linecorp.decaton.processor.ProcessingContext;
+import com.linecorp.decaton.processor.metrics.Metrics;
+
+import io.micrometer.core.instrument.Counter;
+import lombok.Value;
+import lombok.experimental.Accessors;
+
+/**
+ * A {@link DecatonProcessor} to aggregate tasks of each key within time windows, and push the result of each
+ * window to downstream processor when the window closes.
+ * Tasks are assigned to windows by {@link com.linecorp.decaton.processor.TaskMetadata#timestampMillis()}.
+ * Given the window size S and the advance A, windows start at every A milliseconds and last S milliseconds,
+ * so a task belongs to S / A windows. Windows are tumbling when A equals to S.
+ *
+ * A window closes once the wall clock passes the end of the window by graceMillis, and tasks arriving after
+ * their windows closed are completed without being aggregated.
+ * Only an aggregate is held for each key and window, and tasks aggregated into a window are completed when
+ * the results of all windows they belong to complete in downstream processor.
+ *
+ * This processor should be instantiated with {@link ProcessorScope#PARTITION} so that all tasks of a key in the
+ * partition are aggregated into the same window.
+ *
+ * @param <T> type of task to aggregate
+ * @param <A> type of aggregate
+ */
+public class WindowedAggregationProcessor<T, A> implements DecatonProcessor<T> {
+    private static final Logger logger = LoggerFactory.getLogger(WindowedAggregationProcessor.class);
+
+    // The number of ticks to check closed windows in an advance of windows.
+    private static final long TICKS_PER_ADVANCE = 32;
+
+    /**
+     * The function to aggregate tasks within a window.
+     * @param <T> type of task to aggregate
+     * @param <A> type of aggregate
+     */
+    public interface Aggregator<T, A> {
+        /**
+         * Returns the initial aggregate of a window, which no task is aggregated yet.
+         */
+        A initialize();
+
+        /**
+         * Aggregates the task into the aggregate.
+         * @param aggregate the current aggregate of the window.
+         * @param task the task to aggregate.
+         * @return the new aggregate of the window, which can be the given aggregate updated in place.
+         */
+        A aggregate(A aggregate, T task);
+
+        /**
+         * Returns the result of the window, which is pushed to downstream processor.
+         * @param key the key of tasks aggregated.
+         * @param window the closed window.
+         * @param aggregate the aggregate of the window.
+         * @return the task pushed to downstream processor.
+         */
+        T result(String key, TimeWindow window, A aggregate);
+    }
+
+    /**
+     * A time window of [startMillis, endMillis).
+     */
+    @Value
+    @Accessors(fluent = true)
+    public static class TimeWindow {
+        long startMillis;
+        long endMillis;
+    }
+
+    // The subscription isn't known until the first task comes since processors are instantiated by suppliers
+    // without it, so meters are resolved at that time and reused as long as the subscription is the same.
+    private static class AggregationMetrics {
+        private final String subscriptionId;
+        private final Counter emittedWindows;
+        private final Counter lateTasks;
+
+        private AggregationMetrics(String subscriptionId) {
+            this.subscriptionId = subscriptionId;
+            emittedWindows = Counter.builder("processor.aggregation.emitted.windows")
+                                    .description("Counter of the number of windows pushed to downstream")
+                                    .tags("subscription", subscriptionId)
+                                    .register(Metrics.registry());
+            lateTasks = Counter.builder("processor.aggregation.late.tasks")
+                               .description("Counter of the number of tasks arrived after their windows closed")
+                               .tags("subscription", subscriptionId)
+                               .register(Metrics.registry());
+        }
+    }
+
+    /**
+     * A completion of a task which belongs to multiple windows, which completes when all of them complete.
+     */
+    private static class WindowsCompletion implements DeferredCompletion {
+        private final DeferredCompletion completion;
+        private final AtomicInteger remainingWindows;
+
+        private WindowsCompletion(DeferredCompletion completion, int windows) {
+            this.completion = completion;
+            remainingWindows = new AtomicInteger(windows);
+        }
+
+        @Override
+        public void complete() {
+            if (remainingWindows.decrementAndGet() == 0) {
+                completion.complete();
+            }
+        }
+    }
+
+    private class Aggregation {
+        private final String key;
+        private final TimeWindow window;
+        private final List<DeferredCompletion> completions = new ArrayList<>();
+        private A aggregate = aggregator.initialize();
+        // The context of the latest task, which the result is pushed along with
+        private ProcessingContext<T> context;
+
+        private Aggregation(String key, TimeWindow window) {
+            this.key = key;
+            this.window = window;
+        }
+    }
+
+    private final long sizeMillis;
+    private final long advanceMillis;
+    private final long graceMillis;
+    private final Aggregator<T, A> aggregator;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService executor;
+    // Open windows ordered by their ends, guarded by this
+    private final NavigableMap<Long, Map<String, Aggregation>> windows = new TreeMap<>();
+    private volatile AggregationMetrics metrics;
+
+    // visible for testing
+    WindowedAggregationProcessor(long sizeMillis, long advanceMillis, long graceMillis,
+                                 Aggregator<T, A> aggregator, LongSupplier clock,
+                                 ScheduledThreadPoolExecutor scheduledExecutor) {
+        if (sizeMillis <= 0) {
+            throw new IllegalArgumentException("sizeMillis must be positive: " + sizeMillis);
+        }
+        if (advanceMillis <= 0 || advanceMillis > sizeMillis) {
+            throw new IllegalArgumentException(
+                    "advanceMillis must be positive and not larger than sizeMillis: " + advanceMillis);
+        }
+        if (graceMillis < 0) {
+            throw new IllegalArgumentException("graceMillis must not be negative: " + graceMillis);
+        }
+        this.sizeMillis = sizeMillis;
+        this.advanceMillis = advanceMillis;
+        this.graceMillis = graceMillis;
+        this.aggregator = aggregator;
+        this.clock = clock;
+
+        if (scheduledExecutor == null) {
+            scheduledExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread th = new Thread(r);
+                th.setName("Decaton" + WindowedAggregationProcessor.class.getSimpleName()
+                           + '/' + System.identityHashCode(this));
+                return th;
+            });
+        }
+        // Same as CompactionProcessor, open windows are discarded on shutdown and their tasks are re-processed
+        // rather than pushing incomplete results.
+        scheduledExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor = scheduledExecutor;
+
+        long tickMillis = Math.max(1L, advanceMillis / TICKS_PER_ADVANCE);
+        executor.scheduleAtFixedRate(this::closeExpired, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Instantiate {@link WindowedAggregationProcessor} with hopping windows.
+     * @param sizeMillis the size of windows.
+     * @param advanceMillis the interval of windows to start, which must not be larger than sizeMillis.
+     * @param graceMillis time to wait for tasks arriving late after the end of windows.
+     * @param aggregator function to aggregate tasks within a window.
+     */
+    public WindowedAggregationProcessor(long sizeMillis, long advanceMillis, long graceMillis,
+                                        Aggregator<T, A> aggregator) {
+        this(sizeMillis, advanceMillis, graceMillis, aggregator, System::currentTimeMillis, null);
+    }
+
+    /**
+     * Instantiate {@link WindowedAggregationProcessor} with tumbling windows.
+     * @param sizeMillis the size of windows.
+     * @param graceMillis time to wait for tasks arriving late after the end of windows.
+     * @param aggregator function to aggregate tasks within a window.
+     */
+    public WindowedAggregationProcessor(long sizeMillis, long graceMillis, Aggregator<T, A> aggregator) {
+        this(sizeMillis, sizeMillis, graceMillis, aggregator);
+    }
+
+    private AggregationMetrics metrics(ProcessingContext<?> context) {
+        AggregationMetrics metrics = this.metrics;
+        if (metrics == null || !metrics.subscriptionId.equals(context.subscriptionId())) {
+            metrics = new AggregationMetrics(context.subscriptionId());
+            this.metrics = metrics;
+        }
+        return metrics;
+    }
+
+    private boolean isClosed(long windowEnd, long nowMillis) {
+        return windowEnd + graceMillis <= nowMillis;
+    }
+
+    @Override
+    public void process(ProcessingContext<T> context, T task) throws InterruptedException {
+        long timestamp = context.metadata().timestampMillis();
+        long now = clock.getAsLong();
+        if (timestamp <= 0) {
+            // The producer didn't record the timestamp
+            timestamp = now;
+        }
+
+        List<TimeWindow> openWindows = new ArrayList<>();
+        long lastStart = Math.floorDiv(timestamp, advanceMillis) * advanceMillis;
+        for (long start = lastStart; start > timestamp - sizeMillis; start -= advanceMillis) {
+            if (!isClosed(start + sizeMillis, now)) {
+                openWindows.add(new TimeWindow(start, start + sizeMillis));
+            }
+        }
+        AggregationMetrics metrics = metrics(context);
+        if (openWindows.isEmpty()) {
+            metrics.lateTasks.increment();
+            if (logger.isTraceEnabled()) {
+                logger.trace("task ({}) arrived after its windows closed", task);
+            }
+            return;
+        }
+
+        DeferredCompletion completion = new WindowsCompletion(context.deferCompletion(), openWindows.size());
+        synchronized (this) {
+            for (TimeWindow window : openWindows) {
+                Aggregation aggregation =
+                        windows.computeIfAbsent(window.endMillis(), end -> new HashMap<>())
+                               .computeIfAbsent(context.key(), key -> new Aggregation(key, window));
+                aggregation.aggregate = aggregator.aggregate(aggregation.aggregate, task);
+                aggregation.context = context;
+                aggregation.completions.add(completion);
+            }
+        }
+    }
+
+    // visible for testing
+    void closeExpired() {
+        List<Aggregation> closed = new ArrayList<>();
+        long now = clock.getAsLong();
+        synchronized (this) {
+            Entry<Long, Map<String, Aggregation>> entry;
+            while ((entry = windows.firstEntry()) != null && isClosed(entry.getKey(), now)) {
+                windows.pollFirstEntry();
+                closed.addAll(entry.getValue().values());
+            }
+        }
+
+        for (Aggregation aggregation : closed) {
+            try {
+                emit(aggregation);
+            } catch (InterruptedException e) {
+                logger.error("interrupted while emitting aggregated result", e);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("emitting aggregated result threw an exception", e);
+            }
+        }
+    }
+
+    private void emit(Aggregation aggregation) throws InterruptedException {
+        T result = aggregator.result(aggregation.key, aggregation.window, aggregation.aggregate);
+        aggregation.context.push(result).whenComplete((r, e) -> {
+            for (DeferredCompletion completion : aggregation.completions) {
+                completion.complete();
+            }
+        });
+        metrics(aggregation.context).emittedWindows.increment();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
+import com.linecorp.decaton.processor.runtime.CircuitBreaker.State;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class CircuitBreakerTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final Counter openedCounter = new SimpleMeterRegistry().counter("opened");
+    private CircuitBreaker breaker;
+
+    private static PartitionScope scope(int errorPercent) {
+        ProcessorProperties props =
+                ProcessorProperties.builder()
+                                   .set(Property.ofStatic(ProcessorProperties.CONFIG_CIRCUIT_BREAKER_ERROR_PERCENT,
+                                                          errorPercent))
+                                   .set(Property.ofStatic(ProcessorProperties.CONFIG_CIRCUIT_BREAKER_WINDOW_TASKS,
+                                                          10))
+                                   .set(Property.ofStatic(ProcessorProperties.CONFIG_CIRCUIT_BREAKER_OPEN_MS,
+                                                          1000L))
+                                   .set(Property.ofStatic(ProcessorProperties.CONFIG_CIRCUIT_BREAKER_PROBE_TASKS,
+                                                          2))
+                                   .build();
+        return new PartitionScope(new SubscriptionScope("subscription", "topic", Optional.empty(), props),
+                                  new TopicPartition("topic", 0));
+    }
+
+    @Before
+    public void setUp() {
+        breaker = new CircuitBreaker(scope(50), openedCounter, clock::get);
+    }
+
+    private void report(int succeeded, int failed) {
+        for (int i = 0; i < succeeded; i++) {
+            breaker.report(false);
+        }
+        for (int i = 0; i < failed; i++) {
+            breaker.report(true);
+        }
+    }
+
+    @Test
+    public void testOpen() {
+        report(6, 4);
+        assertEquals(State.CLOSED, breaker.state());
+        assertFalse(breaker.shouldPause(0));
+
+        report(5, 5);
+        assertEquals(State.OPEN, breaker.state());
+        assertTrue(breaker.shouldPause(0));
+        assertEquals(1, (long) openedCounter.count());
+    }
+
+    @Test
+    public void testHalfOpenThenClose() {
+        report(0, 10);
+        clock.set(1000);
+        assertEquals(State.HALF_OPEN, breaker.state());
+        // Only probe tasks are let in
+        assertFalse(breaker.shouldPause(1));
+        assertTrue(breaker.shouldPause(2));
+
+        report(2, 0);
+        assertEquals(State.CLOSED, breaker.state());
+        assertFalse(breaker.shouldPause(100));
+    }
+
+    @Test
+    public void testHalfOpenThenReopen() {
+        report(0, 10);
+        clock.set(1000);
+        report(1, 1);
+        assertEquals(State.OPEN, breaker.state());
+        clock.set(1999);
+        assertTrue(breaker.shouldPause(0));
+        clock.set(2000);
+        assertFalse(breaker.shouldPause(0));
+        assertEquals(2, (long) openedCounter.count());
+    }
+
+    @Test
+    public void testDisabled() {
+        breaker = new CircuitBreaker(scope(0), openedCounter, clock::get);
+        assertFalse(breaker.enabled());
+        report(0, 100);
+        assertEquals(State.CLOSED, breaker.state());
+    }
+}
@@ -19,13 +19,17 @@ package com.linecorp.decaton.processor.runtime;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -142,7 +146,7 @@ public class CompactionProcessorTest {
                 original.run();
                 completeFlush.countDown();
             };
-        }).when(processor).flushTask(any());
+        }).when(processor).flushTask(any(), anyLong());
 
         TaskInput youngYuto = put("yuto", 10);
         TaskInput dyingYuto = put("yuto", 90);
@@ -178,7 +182,7 @@ public class CompactionProcessorTest {
                 original.run();
                 completeFlush.countDown();
             };
-        }).when(processor).flushTask(any());
+        }).when(processor).flushTask(any(), anyLong());
 
         long firstPutTime = System.nanoTime();
         put("yuto", 10);
@@ -239,7 +243,7 @@ public class CompactionProcessorTest {
                 original.run();
                 completeFlush.countDown();
             };
-        }).when(processor).flushTask(any());
+        }).when(processor).flushTask(any(), anyLong());
 
         TaskInput youngYuto = put("yuto", 10);
         verify(youngYuto.completion, never()).complete();
@@ -279,7 +283,7 @@ public class CompactionProcessorTest {
                     return CompactChoice.PICK_RIGHT;
                 };
         CompactionProcessor<HelloTask> processor = spy(
-                new CompactionProcessor<>(1, compactor, scheduledExecutor));
+                new CompactionProcessor<>(1, Integer.MAX_VALUE, compactor, null, scheduledExecutor));
 
         AtomicInteger flushCount = new AtomicInteger();
         doAnswer(invocation -> {
@@ -299,16 +303,75 @@ public class CompactionProcessorTest {
                     secondFlushComplete.countDown();
                 }
             };
-        }).when(processor).flushTask(any());
+        }).when(processor).flushTask(any(), anyLong());
 
         TaskInput task1 = put(processor, "key", 1, null);
         TaskInput task2 = put(processor, "key", 2, null);
 
         verify(task1.completion, times(1)).complete();
-        // There must have been two separate tasks scheduled for each task.
-        assertEquals(2, scheduledExecutor.getTaskCount());
+        // There must have been two separate flushes scheduled for each task.
+        assertEquals(2, flushCount.get());
 
         secondFlushComplete.await();
         verify(task2.completion, times(1)).complete();
     }
+
+    @Test(timeout = 5000)
+    public void testEarlyFlushOnFullWindow() throws Exception {
+        CompactionProcessor<HelloTask> processor = new CompactionProcessor<>(
+                TimeUnit.HOURS.toMillis(1), 2, (t1, t2) -> CompactChoice.PICK_RIGHT);
+        try {
+            TaskInput yuto = put(processor, "yuto", 10, null);
+            TaskInput kohei = put(processor, "kohei", 20, null);
+            // Replacing a task of the key in the window doesn't need any room
+            TaskInput olderKohei = put(processor, "kohei", 30, null);
+            verify(kohei.completion, times(1)).complete();
+            verify(yuto.context, never()).push(any());
+
+            // The oldest key is flushed to make room for the new one
+            TaskInput haruki = put(processor, "haruki", 40, null);
+            verify(yuto.context, times(1)).push(yuto.task);
+            verify(olderKohei.context, never()).push(any());
+            verify(haruki.context, never()).push(any());
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testMerging() throws Exception {
+        CompactionProcessor<HelloTask> processor = CompactionProcessor.merging(
+                100, (t1, t2) -> t1.toBuilder().setAge(t1.getAge() + t2.getAge()).build());
+        CompletableFuture<Void> pushFuture = new CompletableFuture<>();
+        CompletableFuture<HelloTask> pushedTask = new CompletableFuture<>();
+        try {
+            List<TaskInput> inputs = new ArrayList<>();
+            for (int i = 1; i <= 3; i++) {
+                inputs.add(put(processor, "yuto", i, input -> {
+                    try {
+                        doAnswer(invocation -> {
+                            pushedTask.complete(invocation.getArgument(0));
+                            return pushFuture;
+                        }).when(input.context).push(any());
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            assertEquals(HelloTask.newBuilder().setName("yuto").setAge(6).build(), pushedTask.get());
+            for (TaskInput input : inputs) {
+                verify(input.completion, never()).complete();
+                verify(input.context, never()).push(input.task);
+            }
+
+            // All merged tasks complete along with the merged one
+            pushFuture.complete(null);
+            processor.close(); // Wait for the flush to finish
+            for (TaskInput input : inputs) {
+                verify(input.completion, times(1)).complete();
+            }
+        } finally {
+            processor.close();
+        }
+    }
 }
@@ -17,10 +17,12 @@
 package com.linecorp.decaton.processor.runtime;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -29,23 +31,30 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.time.Duration;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.kafka.common.KafkaException;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
 import com.linecorp.decaton.client.DecatonTaskProducer;
+import com.linecorp.decaton.client.PutTaskResult;
 import com.linecorp.decaton.processor.DeferredCompletion;
 import com.linecorp.decaton.processor.ProcessingContext;
 import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
 import com.linecorp.decaton.processor.TaskMetadata;
+import com.linecorp.decaton.processor.metrics.Metrics;
 import com.linecorp.decaton.protocol.Decaton.DecatonTaskRequest;
 import com.linecorp.decaton.protocol.Sample.HelloTask;
 
@@ -66,12 +75,15 @@ public class DecatonTaskRetryQueueingProcessorTest {
     @Mock
     private DecatonTaskProducer producer;
 
+    @Captor
+    private ArgumentCaptor<CompletableFuture<PutTaskResult>> futureCaptor;
+
     private DecatonTaskRetryQueueingProcessor processor;
 
     @Before
     public void setUp() {
         processor = new DecatonTaskRetryQueueingProcessor(scope, producer);
-        doReturn(CompletableFuture.completedFuture(null)).when(producer).sendRequest(any(), any());
+        doReturn(CompletableFuture.completedFuture(null)).when(producer).sendRequest(any(), any(), any());
         doReturn(mock(DeferredCompletion.class)).when(context).deferCompletion();
         doReturn("key").when(context).key();
         doReturn(TaskMetadata.builder().build()).when(context).metadata();
@@ -97,7 +109,7 @@ public class DecatonTaskRetryQueueingProcessorTest {
         processor.process(context, task.toByteArray());
 
         ArgumentCaptor<DecatonTaskRequest> captor = ArgumentCaptor.forClass(DecatonTaskRequest.class);
-        verify(producer, times(1)).sendRequest(eq(key), captor.capture());
+        verify(producer, times(1)).sendRequest(eq("topic-retry"), eq(key), captor.capture());
 
         DecatonTaskRequest request = captor.getValue();
         assertEquals(task.toByteString(), request.getSerializedTask());
@@ -116,7 +128,7 @@ public class DecatonTaskRetryQueueingProcessorTest {
         DeferredCompletion completion = mock(DeferredCompletion.class);
 
         doReturn(completion).when(context).deferCompletion();
-        doReturn(future).when(producer).sendRequest(any(), any());
+        doReturn(future).when(producer).sendRequest(any(), any(), any());
 
         processor.process(context, HelloTask.getDefaultInstance().toByteArray());
 
@@ -126,7 +138,7 @@ public class DecatonTaskRetryQueueingProcessorTest {
 
     @Test
     public void testDeferCompletion_EXCEPTION() throws InterruptedException {
-        doThrow(new KafkaException("kafka")).when(producer).sendRequest(any(), any());
+        doThrow(new KafkaException("kafka")).when(producer).sendRequest(any(), any(), any());
 
         try {
             processor.process(context, HelloTask.getDefaultInstance().toByteArray());
@@ -136,4 +148,177 @@ public class DecatonTaskRetryQueueingProcessorTest {
 
         verify(context, never()).deferCompletion();
     }
+
+    @Test
+    public void testTieredRetryWithExponentialBackoff() throws InterruptedException {
+        RetryConfig config = RetryConfig.builder()
+                                        .backoff(Duration.ofMillis(100))
+                                        .maxBackoff(Duration.ofSeconds(10))
+                                        .tierThresholds(Arrays.asList(Duration.ofSeconds(1),
+                                                                      Duration.ofSeconds(10)))
+                                        .build();
+        processor = new DecatonTaskRetryQueueingProcessor(
+                new SubscriptionScope("subscription", "topic", Optional.of(config),
+                                      ProcessorProperties.builder().build()), producer);
+
+        // 100ms, 200ms, 400ms, 800ms, 1.6s, 3.2s, 6.4s, 10s
+        String[] expectedTopics = {
+                "topic-retry", "topic-retry", "topic-retry", "topic-retry",
+                "topic-retry-1", "topic-retry-1", "topic-retry-1", "topic-retry-2"
+        };
+        for (int i = 0; i < expectedTopics.length; i++) {
+            doReturn(TaskMetadata.builder().retryCount(i).build()).when(context).metadata();
+            processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+            verify(producer, times(1)).sendRequest(eq(expectedTopics[i]), eq("key"), any());
+            clearInvocations(producer);
+        }
+    }
+
+    @Test
+    public void testBackoffMillis() {
+        RetryConfig config = RetryConfig.builder()
+                                        .backoff(Duration.ofMillis(100))
+                                        .maxBackoff(Duration.ofMillis(1000))
+                                        .jitter(0.5)
+                                        .build();
+        assertEquals(100L, config.backoffMillis(0, 0));
+        assertEquals(149L, config.backoffMillis(0, 0.999));
+        assertEquals(400L, config.backoffMillis(2, 0));
+        assertEquals(1000L, config.backoffMillis(Long.MAX_VALUE, 0));
+        assertEquals(1500L, config.backoffMillis(10, 1));
+    }
+
+    @Test
+    public void testDeadLetter() throws InterruptedException {
+        RetryConfig config = RetryConfig.builder()
+                                        .backoff(RETRY_BACKOFF)
+                                        .maxAttempts(3)
+                                        .deadLetterTopic("topic-dlq")
+                                        .build();
+        processor = new DecatonTaskRetryQueueingProcessor(
+                new SubscriptionScope("subscription", "topic", Optional.of(config),
+                                      ProcessorProperties.builder().build()), producer);
+
+        doReturn(TaskMetadata.builder().retryCount(2).build()).when(context).metadata();
+        processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        verify(producer, times(1)).sendRequest(eq("topic-retry"), eq("key"), any());
+
+        doReturn(TaskMetadata.builder().retryCount(3).build()).when(context).metadata();
+        processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        verify(producer, times(1)).sendRequest(eq("topic-dlq"), eq("key"), any());
+    }
+
+    @Test
+    public void testDiscardExhausted() throws InterruptedException {
+        RetryConfig config = RetryConfig.builder().backoff(RETRY_BACKOFF).maxAttempts(1).build();
+        processor = new DecatonTaskRetryQueueingProcessor(
+                new SubscriptionScope("subscription", "topic", Optional.of(config),
+                                      ProcessorProperties.builder().build()), producer);
+
+        doReturn(TaskMetadata.builder().retryCount(1).build()).when(context).metadata();
+        processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        verify(producer, never()).sendRequest(any(), any(), any());
+        verify(context, never()).deferCompletion();
+    }
+
+    @Test
+    public void testInFlightTasksLimited() throws Exception {
+        processor = new DecatonTaskRetryQueueingProcessor(
+                new SubscriptionScope("subscription", "topic", scope.retryConfig(),
+                                      ProcessorProperties.builder().set(Property.ofStatic(
+                                              ProcessorProperties.CONFIG_RETRY_MAX_IN_FLIGHT_TASKS, 1))
+                                                         .build()), producer);
+        CompletableFuture<PutTaskResult> firstResult = new CompletableFuture<>();
+        PutTaskResult secondResult = new PutTaskResult("id");
+        doReturn(firstResult, CompletableFuture.completedFuture(secondResult))
+                .when(producer).sendRequest(any(), any(), any());
+        DeferredCompletion completion = mock(DeferredCompletion.class);
+        doReturn(completion).when(context).deferCompletion();
+
+        processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        assertEquals(1, processor.inFlightTasks());
+
+        // The second one is queued without blocking the caller
+        processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        verify(producer, times(1)).sendRequest(any(), any(), any());
+        verify(completion, times(2)).completeWith(futureCaptor.capture());
+        CompletableFuture<PutTaskResult> secondFuture = futureCaptor.getAllValues().get(1);
+        assertFalse(secondFuture.isDone());
+
+        firstResult.complete(null);
+        assertEquals(secondResult, secondFuture.get(10, TimeUnit.SECONDS));
+        verify(producer, times(2)).sendRequest(any(), any(), any());
+        assertEquals(0, processor.inFlightTasks());
+        processor.close();
+    }
+
+    @Test
+    public void testPendingRequestsFailedToSend() throws Exception {
+        processor = new DecatonTaskRetryQueueingProcessor(
+                new SubscriptionScope("subscription", "topic", scope.retryConfig(),
+                                      ProcessorProperties.builder().set(Property.ofStatic(
+                                              ProcessorProperties.CONFIG_RETRY_MAX_IN_FLIGHT_TASKS, 1))
+                                                         .build()), producer);
+        CompletableFuture<PutTaskResult> firstResult = new CompletableFuture<>();
+        doReturn(firstResult).when(producer).sendRequest(any(), any(), any());
+        DeferredCompletion completion = mock(DeferredCompletion.class);
+        doReturn(completion).when(context).deferCompletion();
+
+        for (int i = 0; i < 4; i++) {
+            processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        }
+        verify(completion, times(4)).completeWith(futureCaptor.capture());
+
+        doThrow(new KafkaException("buffer exhausted")).when(producer).sendRequest(any(), any(), any());
+        firstResult.complete(null);
+        for (CompletableFuture<PutTaskResult> pending : futureCaptor.getAllValues().subList(1, 4)) {
+            try {
+                pending.get(10, TimeUnit.SECONDS);
+                fail("pending request must fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof KafkaException);
+            }
+        }
+        verify(producer, times(4)).sendRequest(any(), any(), any());
+        assertEquals(0, processor.inFlightTasks());
+        processor.close();
+    }
+
+    @Test
+    public void testPendingRequestsFailedOnClose() throws Exception {
+        processor = new DecatonTaskRetryQueueingProcessor(
+                new SubscriptionScope("subscription", "topic", scope.retryConfig(),
+                                      ProcessorProperties.builder().set(Property.ofStatic(
+                                              ProcessorProperties.CONFIG_RETRY_MAX_IN_FLIGHT_TASKS, 1))
+                                                         .build()), producer);
+        doReturn(new CompletableFuture<>()).when(producer).sendRequest(any(), any(), any());
+        DeferredCompletion completion = mock(DeferredCompletion.class);
+        doReturn(completion).when(context).deferCompletion();
+
+        processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        verify(completion, times(2)).completeWith(futureCaptor.capture());
+
+        processor.close();
+        assertTrue(futureCaptor.getAllValues().get(1).isCompletedExceptionally());
+        verify(producer, times(1)).sendRequest(any(), any(), any());
+    }
+
+    @Test
+    public void testQuarantinedKeyDeadLettered() throws InterruptedException {
+        RetryConfig config = RetryConfig.builder().backoff(RETRY_BACKOFF).deadLetterTopic("topic-dlq").build();
+        ProcessorProperties props = ProcessorProperties.builder().set(Property.ofStatic(
+                ProcessorProperties.CONFIG_RETRY_QUARANTINE_FAILURES, 1)).build();
+        KeyQuarantine quarantine = new KeyQuarantine(
+                props, Metrics.withTags("subscription", "subscription").new RetryMetrics());
+        processor = new DecatonTaskRetryQueueingProcessor(
+                new SubscriptionScope("subscription", "topic", Optional.of(config), props), producer, quarantine);
+
+        processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        verify(producer, times(1)).sendRequest(eq("topic-retry"), eq("key"), any());
+
+        quarantine.recordFailure("key");
+        processor.process(context, HelloTask.getDefaultInstance().toByteArray());
+        verify(producer, times(1)).sendRequest(eq("topic-dlq"), eq("key"), any());
+    }
 }
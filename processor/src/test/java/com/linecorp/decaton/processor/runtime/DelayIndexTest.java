@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DelayIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().toPath().resolve("subscription").resolve("topic-0");
+    }
+
+    @Test
+    public void testAppendRead() throws Exception {
+        try (DelayIndex index = DelayIndex.open(path, 1024)) {
+            long id1 = index.append(1, 100, "key", new byte[] { 1, 2, 3 });
+            long id2 = index.append(2, 200, null, new byte[0]);
+
+            DelayIndex.Entry entry1 = index.read(id1);
+            assertEquals(1, entry1.recordOffset());
+            assertEquals(100, entry1.scheduledTimeMillis());
+            assertEquals("key", entry1.key());
+            assertArrayEquals(new byte[] { 1, 2, 3 }, entry1.rawRequestBytes());
+
+            DelayIndex.Entry entry2 = index.read(id2);
+            assertEquals(2, entry2.recordOffset());
+            assertNull(entry2.key());
+            assertArrayEquals(new byte[0], entry2.rawRequestBytes());
+            assertEquals(2, index.size());
+        }
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        try (DelayIndex index = DelayIndex.open(path, 1024)) {
+            long id1 = index.append(1, 100, "key1", new byte[] { 1 });
+            index.append(2, 200, "key2", new byte[] { 2 });
+            index.append(3, 300, "key3", new byte[] { 3 });
+            index.remove(id1);
+        }
+
+        try (DelayIndex index = DelayIndex.open(path, 1024)) {
+            List<DelayIndex.Entry> entries = index.liveEntries();
+            assertEquals(2, entries.size());
+            assertEquals(2, entries.get(0).recordOffset());
+            assertEquals("key2", entries.get(0).key());
+            assertEquals(3, entries.get(1).recordOffset());
+            assertArrayEquals(new byte[] { 3 }, index.read(entries.get(1).id()).rawRequestBytes());
+
+            // New entries are appended after recovered ones
+            long id = index.append(4, 400, "key4", new byte[] { 4 });
+            assertEquals(4, index.read(id).recordOffset());
+            assertEquals(3, index.liveEntries().size());
+        }
+    }
+
+    @Test
+    public void testReuseSpaceOnceAllRemoved() throws Exception {
+        try (DelayIndex index = DelayIndex.open(path, 1024)) {
+            long id1 = index.append(1, 100, "key1", new byte[] { 1 });
+            long id2 = index.append(2, 200, "key2", new byte[] { 2 });
+            index.remove(id1);
+            index.remove(id2);
+            assertEquals(0, index.size());
+
+            // The whole space is available again
+            assertTrue(index.append(3, 300, "key3", new byte[] { 3 }) >= 0);
+        }
+
+        // Entries of previous generation aren't recognized even though they're still in the file
+        try (DelayIndex index = DelayIndex.open(path, 1024)) {
+            List<DelayIndex.Entry> entries = index.liveEntries();
+            assertEquals(1, entries.size());
+            assertEquals(3, entries.get(0).recordOffset());
+        }
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        try (DelayIndex index = DelayIndex.open(path, 1024)) {
+            long id = index.append(1, 100, "key", new byte[900]);
+            assertTrue(id >= 0);
+            assertEquals(-1, index.append(2, 200, "key", new byte[900]));
+            assertEquals(1, index.size());
+
+            index.remove(id);
+            assertTrue(index.append(2, 200, "key", new byte[900]) >= 0);
+        }
+    }
+
+    @Test
+    public void testCompactWhenFull() throws Exception {
+        try (DelayIndex index = DelayIndex.open(path, 1024)) {
+            long id1 = index.append(1, 100, "key1", new byte[300]);
+            long id2 = index.append(2, 200, "key2", new byte[] { 2 });
+            long id3 = index.append(3, 300, "key3", new byte[300]);
+            index.remove(id1);
+
+            // No space is left at the tail, but the space of the removed entry can be reclaimed
+            long id4 = index.append(4, 400, "key4", new byte[400]);
+            assertTrue(id4 >= 0);
+            assertEquals(3, index.size());
+            // Entries stay accessible by their ids after compaction
+            assertArrayEquals(new byte[] { 2 }, index.read(id2).rawRequestBytes());
+            assertEquals(300, index.read(id3).scheduledTimeMillis());
+            assertEquals(400, index.read(id4).rawRequestBytes().length);
+
+            // Live entries fill the space
+            assertEquals(-1, index.append(5, 500, "key5", new byte[400]));
+            index.remove(id3);
+            index.flush();
+        }
+
+        try (DelayIndex index = DelayIndex.open(path, 1024)) {
+            List<DelayIndex.Entry> entries = index.liveEntries();
+            assertEquals(2, entries.size());
+            assertEquals(2, entries.get(0).recordOffset());
+            assertEquals(4, entries.get(1).recordOffset());
+            assertEquals(400, index.read(entries.get(1).id()).rawRequestBytes().length);
+        }
+    }
+}
@@ -14,29 +14,44 @@
  * under the License.
  */
 
+
 package com.linecorp.decaton.processor.runtime;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
-import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
-import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
 import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
 import com.linecorp.decaton.processor.TaskMetadata;
 
 public class ExecutionSchedulerTest {
@@ -50,37 +65,312 @@ public class ExecutionSchedulerTest {
     @Rule
     public MockitoRule rule = MockitoJUnit.rule();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Mock
     private Supplier<Long> currentTimeMillis;
 
     @Mock
     private RateLimiter rateLimiter;
 
-    private ExecutionScheduler scheduler;
+    private ScheduledExecutorService executor;
 
     @Before
     public void setUp() {
-        scheduler = spy(new ExecutionScheduler(scope, rateLimiter, currentTimeMillis));
+        executor = Executors.newSingleThreadScheduledExecutor();
     }
 
-    @Test(timeout = 5000)
-    public void testScheduledProcess_IMMEDIATE() throws InterruptedException {
-        doReturn(1L).when(currentTimeMillis).get();
-        scheduler.waitOnScheduledTime(TaskMetadata.builder().scheduledTimeMillis(0).build());
-        verify(scheduler, never()).sleep(anyLong());
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static TaskMetadata delayedMetadata(long delayMillis) {
+        return TaskMetadata.builder().scheduledTimeMillis(System.currentTimeMillis() + delayMillis).build();
+    }
 
-        scheduler.waitOnScheduledTime(TaskMetadata.builder().scheduledTimeMillis(1).build());
-        verify(scheduler, never()).sleep(anyLong());
+    // ExecutionScheduler has to be accessed only from the unit's thread
+    private <T> T onExecutor(Callable<T> callable) throws ExecutionException, InterruptedException {
+        return executor.submit(callable).get();
     }
 
     @Test(timeout = 5000)
-    public void testScheduledProcess_DELAYED() throws InterruptedException {
+    public void testShouldDefer() {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor, null, currentTimeMillis);
+
         doReturn(1L).when(currentTimeMillis).get();
+        assertFalse(scheduler.shouldDefer("key", TaskMetadata.builder().scheduledTimeMillis(0).build()));
+        assertFalse(scheduler.shouldDefer("key", TaskMetadata.builder().scheduledTimeMillis(1).build()));
+        assertTrue(scheduler.shouldDefer("key", TaskMetadata.builder().scheduledTimeMillis(500).build()));
+    }
+
+    @Test(timeout = 5000)
+    public void testDefer() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+
         long t0 = System.nanoTime();
-        scheduler.waitOnScheduledTime(TaskMetadata.builder().scheduledTimeMillis(500).build());
-        long elapsed = System.nanoTime() - t0;
+        CompletableFuture<Void> result = onExecutor(
+                () -> scheduler.defer("key", delayedMetadata(500),
+                                      () -> CompletableFuture.completedFuture(null)));
+        // The thread isn't blocked while the task is deferred
+        onExecutor(() -> null);
+        assertFalse(result.isDone());
+        verify(rateLimiter, never()).reserve(1);
 
-        verify(scheduler, times(1)).sleep(499);
+        result.get();
+        long elapsed = System.nanoTime() - t0;
         assertTrue(TimeUnit.NANOSECONDS.toMillis(elapsed) >= 499);
+        verify(rateLimiter, times(1)).reserve(1);
+    }
+
+    @Test(timeout = 5000)
+    public void testDefer_HoldSameKey() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+        CompletableFuture<Void> result1 = onExecutor(() -> scheduler.defer(
+                "key", delayedMetadata(300), () -> {
+                    processed.add("1");
+                    return CompletableFuture.completedFuture(null);
+                }));
+
+        TaskMetadata dueMetadata = delayedMetadata(0);
+        // Tasks of other keys aren't held
+        assertFalse(onExecutor(() -> scheduler.shouldDefer("key2", dueMetadata)));
+        // Subsequent task of the same key is held even though it's already due
+        assertTrue(onExecutor(() -> scheduler.shouldDefer("key", dueMetadata)));
+        CompletableFuture<Void> result2 = onExecutor(() -> scheduler.defer(
+                "key", dueMetadata, () -> {
+                    processed.add("2");
+                    return CompletableFuture.completedFuture(null);
+                }));
+        assertFalse(result2.isDone());
+
+        CompletableFuture.allOf(result1, result2).get();
+        assertEquals(Arrays.asList("1", "2"), processed);
+        // Key is released once all deferred tasks are dispatched
+        assertFalse(onExecutor(() -> scheduler.shouldDefer("key", dueMetadata)));
+    }
+
+    @Test(timeout = 5000)
+    public void testDefer_NullKey() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+
+        CompletableFuture<Void> result = onExecutor(() -> scheduler.defer(
+                null, delayedMetadata(300), () -> CompletableFuture.completedFuture(null)));
+        assertFalse(onExecutor(() -> scheduler.shouldDefer(null, delayedMetadata(0))));
+
+        result.get();
+    }
+
+    @Test(timeout = 5000)
+    public void testDefer_ProcessCompletesAsynchronously() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+        CompletableFuture<Void> processResult = new CompletableFuture<>();
+
+        CompletableFuture<Void> result = onExecutor(
+                () -> scheduler.defer("key", delayedMetadata(0), () -> processResult));
+        onExecutor(() -> null);
+        assertFalse(result.isDone());
+
+        processResult.complete(null);
+        assertTrue(result.isDone());
+    }
+
+    @Test(timeout = 5000)
+    public void testDefer_ProcessThrows() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+
+        CompletableFuture<Void> result = onExecutor(() -> scheduler.defer(
+                "key", delayedMetadata(0), () -> {
+                    throw new RuntimeException("processor failure");
+                }));
+        CompletableFuture<Void> result2 = onExecutor(
+                () -> scheduler.defer("key", delayedMetadata(0), () -> CompletableFuture.completedFuture(null)));
+
+        // Failure of the preceding task doesn't prevent subsequent tasks from being processed
+        result2.get();
+        assertTrue(result.isCompletedExceptionally());
+    }
+
+    @Test(timeout = 5000)
+    public void testClose() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+        CompletableFuture<Void> result = onExecutor(() -> scheduler.defer(
+                "key", delayedMetadata(100), () -> {
+                    processed.add("1");
+                    return CompletableFuture.completedFuture(null);
+                }));
+        scheduler.close();
+
+        Thread.sleep(200);
+        onExecutor(() -> null);
+        assertFalse(result.isDone());
+        assertTrue(processed.isEmpty());
+    }
+
+    @Test(timeout = 5000)
+    public void testDeferAsync() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+        Thread unitThread = onExecutor(Thread::currentThread);
+        List<Thread> processedBy = Collections.synchronizedList(new ArrayList<>());
+
+        // Called from other than the unit's thread
+        CompletableFuture<Void> result = scheduler.deferAsync("key", delayedMetadata(100), 1, () -> {
+            processedBy.add(Thread.currentThread());
+            return CompletableFuture.completedFuture(null);
+        });
+        assertTrue(onExecutor(() -> scheduler.shouldDefer("key", delayedMetadata(0))));
+
+        result.get();
+        assertEquals(Collections.singletonList(unitThread), processedBy);
+    }
+
+    @Test(timeout = 5000)
+    public void testSchedule() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+
+        doReturn(0L).when(rateLimiter).reserve(1);
+        assertEquals(0L, scheduler.schedule(delayedMetadata(0)));
+        doReturn(300_000L).when(rateLimiter).reserve(1);
+        assertEquals(300_000L, scheduler.schedule(delayedMetadata(0)));
+        verify(rateLimiter, never()).acquire(1);
+
+        // Fall back to blocking acquisition if the limiter can't tell the time to wait
+        doReturn(-1L).when(rateLimiter).reserve(1);
+        assertEquals(0L, scheduler.schedule(delayedMetadata(0)));
+        verify(rateLimiter, times(1)).acquire(1);
+
+        // Weighted permits
+        doReturn(0L).when(rateLimiter).reserve(100);
+        assertEquals(0L, scheduler.schedule(delayedMetadata(0), 100));
+        verify(rateLimiter, times(1)).reserve(100);
+    }
+
+    @Test(timeout = 5000)
+    public void testSchedule_PerKey() throws Exception {
+        ThreadScope scope = new ThreadScope(
+                new PartitionScope(
+                        new SubscriptionScope("subscription", "topic", Optional.empty(),
+                                              ProcessorProperties.builder().set(Property.ofStatic(
+                                                      ProcessorProperties.CONFIG_PROCESSING_RATE_PER_KEY, 1L))
+                                                                 .build()),
+                        new TopicPartition("topic", 0)),
+                0);
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor, null, currentTimeMillis);
+        doReturn(0L).when(currentTimeMillis).get();
+        doReturn(0L).when(rateLimiter).reserve(1);
+
+        // Burst of a second is allowed
+        assertEquals(0L, scheduler.schedule("key", delayedMetadata(0), 1));
+        assertEquals(0L, scheduler.schedule("key", delayedMetadata(0), 1));
+        assertEquals(1_000_000L, scheduler.schedule("key", delayedMetadata(0), 1));
+        // Other keys aren't affected
+        assertEquals(0L, scheduler.schedule("key2", delayedMetadata(0), 1));
+        assertEquals(0L, scheduler.schedule(null, delayedMetadata(0), 1));
+
+        // Longer one of waits for the key and the partition is taken
+        doReturn(3_000_000L).when(rateLimiter).reserve(1);
+        assertEquals(3_000_000L, scheduler.schedule("key3", delayedMetadata(0), 1));
+    }
+
+    @Test(timeout = 5000)
+    public void testDeferThrottled() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+
+        long t0 = System.nanoTime();
+        CompletableFuture<Void> result1 = onExecutor(() -> scheduler.deferThrottled(
+                "key", delayedMetadata(0), 300_000L, () -> {
+                    processed.add("1");
+                    return CompletableFuture.completedFuture(null);
+                }));
+        // Following task of the same key is held
+        assertTrue(onExecutor(() -> scheduler.shouldDefer("key", delayedMetadata(0))));
+        CompletableFuture<Void> result2 = onExecutor(() -> scheduler.defer(
+                "key", delayedMetadata(0), () -> {
+                    processed.add("2");
+                    return CompletableFuture.completedFuture(null);
+                }));
+        assertFalse(result1.isDone());
+
+        CompletableFuture.allOf(result1, result2).get();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) >= 299);
+        assertEquals(Arrays.asList("1", "2"), processed);
+        // Permit is reserved only for the 2nd task as the 1st one has reserved it already
+        verify(rateLimiter, times(1)).reserve(1);
+    }
+
+    @Test(timeout = 5000)
+    public void testPark() throws Exception {
+        DelayIndex index = DelayIndex.open(folder.getRoot().toPath().resolve("index"), 4096);
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor, index);
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        ExecutionScheduler.ParkedTask task = entry -> {
+            processed.add(new String(entry.rawRequestBytes(), StandardCharsets.UTF_8));
+            return CompletableFuture.completedFuture(null);
+        };
+
+        TaskRequest request1 = new TaskRequest(scope.topicPartition(), 1, null, "key", null);
+        TaskRequest request2 = new TaskRequest(scope.topicPartition(), 2, null, "key", null);
+        TaskRequest request3 = new TaskRequest(scope.topicPartition(), 3, null, "key2", null);
+        byte[] bytes1 = "1".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes2 = "2".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes3 = "3".getBytes(StandardCharsets.UTF_8);
+
+        // Delayed longer than the threshold
+        assertTrue(onExecutor(() -> scheduler.park(request1, delayedMetadata(60500), bytes1, task)));
+        // Held behind the parked task of the same key
+        assertTrue(onExecutor(() -> scheduler.park(request2, delayedMetadata(0), bytes2, task)));
+        // Delayed shorter than the threshold
+        assertFalse(onExecutor(() -> scheduler.park(request3, delayedMetadata(500), bytes3, task)));
+        assertEquals(2, index.size());
+        assertTrue(processed.isEmpty());
+        index.close();
+
+        // Restore parked tasks in the reopened index
+        index = DelayIndex.open(folder.getRoot().toPath().resolve("index"), 4096);
+        List<DelayIndex.Entry> entries = index.liveEntries();
+        assertEquals(Arrays.asList(1L, 2L),
+                     Arrays.asList(entries.get(0).recordOffset(), entries.get(1).recordOffset()));
+
+        ExecutionScheduler restored = new ExecutionScheduler(scope, rateLimiter, executor, index);
+        long now = System.currentTimeMillis();
+        List<DelayIndex.Entry> dueEntries = Arrays.asList(
+                new DelayIndex.Entry(entries.get(0).id(), 1, now, "key", null),
+                new DelayIndex.Entry(entries.get(1).id(), 2, now, "key", null));
+        onExecutor(() -> {
+            dueEntries.forEach(entry -> restored.restore(entry, task));
+            return null;
+        });
+        onExecutor(() -> null);
+        assertEquals(Arrays.asList("1", "2"), processed);
+        assertEquals(0, index.size());
+    }
+
+    @Test(timeout = 5000)
+    public void testPark_Disabled() throws Exception {
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor);
+        TaskRequest request = new TaskRequest(scope.topicPartition(), 1, null, "key", null);
+
+        assertFalse(onExecutor(() -> scheduler.park(request, delayedMetadata(60500), new byte[0],
+                                                    entry -> CompletableFuture.completedFuture(null))));
+    }
+
+    @Test
+    public void testReportCompletion_CircuitBreakerDisabled() {
+        CircuitBreaker circuitBreaker = mock(CircuitBreaker.class);
+        ExecutionScheduler scheduler = new ExecutionScheduler(scope, rateLimiter, executor, null, circuitBreaker);
+
+        doReturn(false).when(circuitBreaker).enabled();
+        scheduler.reportCompletion(1000L, true);
+        verify(circuitBreaker, never()).report(true);
+
+        doReturn(true).when(circuitBreaker).enabled();
+        scheduler.reportCompletion(1000L, true);
+        verify(circuitBreaker, times(1)).report(true);
     }
 }
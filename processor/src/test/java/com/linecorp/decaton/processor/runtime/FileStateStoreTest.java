@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileStateStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().toPath().resolve("subscription").resolve("topic-0");
+    }
+
+    private FileStateStore open(long startOffset) throws Exception {
+        return FileStateStore.open(path, startOffset);
+    }
+
+    @Test
+    public void testPutGetDelete() throws Exception {
+        try (FileStateStore store = open(FileStateStore.UNKNOWN_OFFSET)) {
+            StateStore view = store.forOffset(1);
+            assertNull(view.get("key"));
+            view.put("key", new byte[] { 1 });
+            assertArrayEquals(new byte[] { 1 }, view.get("key"));
+            store.forOffset(2).put("key", new byte[] { 2 });
+            assertArrayEquals(new byte[] { 2 }, view.get("key"));
+            view.delete("key");
+            assertNull(view.get("key"));
+        }
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        try (FileStateStore store = open(FileStateStore.UNKNOWN_OFFSET)) {
+            store.forOffset(1).put("key1", new byte[] { 1 });
+            store.forOffset(2).put("key2", new byte[] { 2 });
+            store.flush(3);
+            store.forOffset(3).delete("key1");
+            store.forOffset(3).put("key3", new byte[0]);
+            store.flush(4);
+            // Not committed yet
+            store.forOffset(4).put("key4", new byte[] { 4 });
+        }
+
+        try (FileStateStore store = open(4)) {
+            assertNull(store.get("key1"));
+            assertArrayEquals(new byte[] { 2 }, store.get("key2"));
+            assertArrayEquals(new byte[0], store.get("key3"));
+            assertNull(store.get("key4"));
+
+            // Changes after restoring are appended to the log
+            store.forOffset(4).put("key4", new byte[] { 4 });
+            store.flush(5);
+        }
+
+        try (FileStateStore store = open(FileStateStore.UNKNOWN_OFFSET)) {
+            assertArrayEquals(new byte[] { 2 }, store.get("key2"));
+            assertArrayEquals(new byte[] { 4 }, store.get("key4"));
+        }
+    }
+
+    @Test
+    public void testFlushCommittedChangesOnly() throws Exception {
+        try (FileStateStore store = open(FileStateStore.UNKNOWN_OFFSET)) {
+            // The task at the offset 5 completed earlier than the one at 1
+            store.forOffset(5).put("key5", new byte[] { 5 });
+            store.forOffset(1).put("key1", new byte[] { 1 });
+            store.flush(2);
+            assertArrayEquals(new byte[] { 5 }, store.get("key5"));
+        }
+
+        try (FileStateStore store = open(2)) {
+            assertArrayEquals(new byte[] { 1 }, store.get("key1"));
+            assertNull(store.get("key5"));
+        }
+    }
+
+    @Test
+    public void testRestoreUpToStartOffset() throws Exception {
+        try (FileStateStore store = open(FileStateStore.UNKNOWN_OFFSET)) {
+            store.forOffset(1).put("key", new byte[] { 1 });
+            store.flush(2);
+            store.forOffset(2).put("key", new byte[] { 2 });
+            store.flush(3);
+        }
+
+        // The commit of the offset 3 failed after the flush
+        try (FileStateStore store = open(2)) {
+            assertArrayEquals(new byte[] { 1 }, store.get("key"));
+        }
+    }
+
+    @Test
+    public void testDiscardStaleLog() throws Exception {
+        try (FileStateStore store = open(FileStateStore.UNKNOWN_OFFSET)) {
+            store.forOffset(1).put("key", new byte[] { 1 });
+            store.flush(2);
+        }
+
+        // The partition has been processed by another instance up to the offset 10
+        try (FileStateStore store = open(10)) {
+            assertNull(store.get("key"));
+            store.forOffset(10).put("key2", new byte[] { 2 });
+            store.flush(11);
+        }
+
+        try (FileStateStore store = open(11)) {
+            assertNull(store.get("key"));
+            assertArrayEquals(new byte[] { 2 }, store.get("key2"));
+        }
+    }
+
+    @Test
+    public void testRestoreTruncatedLog() throws Exception {
+        try (FileStateStore store = open(FileStateStore.UNKNOWN_OFFSET)) {
+            store.forOffset(1).put("key1", new byte[] { 1 });
+            store.flush(2);
+            store.forOffset(2).put("key2", new byte[] { 2 });
+            store.flush(3);
+        }
+        // Simulate the crash in the middle of writing the last offset
+        long size = Files.size(path);
+        Files.newByteChannel(path, StandardOpenOption.WRITE).truncate(size - 1).close();
+
+        try (FileStateStore store = open(FileStateStore.UNKNOWN_OFFSET)) {
+            assertArrayEquals(new byte[] { 1 }, store.get("key1"));
+            assertNull(store.get("key2"));
+            store.forOffset(2).put("key3", new byte[] { 3 });
+            store.flush(3);
+        }
+
+        try (FileStateStore store = open(3)) {
+            assertArrayEquals(new byte[] { 1 }, store.get("key1"));
+            assertArrayEquals(new byte[] { 3 }, store.get("key3"));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        byte[] value = new byte[1024];
+        try (FileStateStore store = open(FileStateStore.UNKNOWN_OFFSET)) {
+            // Not committed while compacting
+            store.forOffset(10000).put("key2", new byte[] { 2 });
+            for (int i = 0; i < 2048; i++) {
+                value[0] = (byte) i;
+                store.forOffset(i).put("key", value.clone());
+                store.flush(i + 1);
+            }
+            // Rewritten with the last value only
+            assertTrue(Files.size(path) < 1024 * 1024);
+            assertArrayEquals(new byte[] { 2 }, store.get("key2"));
+        }
+
+        try (FileStateStore store = open(2048)) {
+            value[0] = (byte) 2047;
+            assertArrayEquals(value, store.get("key"));
+            assertNull(store.get("key2"));
+        }
+    }
+}
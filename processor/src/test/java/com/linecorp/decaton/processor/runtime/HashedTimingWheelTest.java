@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HashedTimingWheelTest {
+    private final HashedTimingWheel<String> wheel = new HashedTimingWheel<>(10, 100, 1000);
+
+    private List<String> advance(long nowMillis) {
+        List<String> expired = new ArrayList<>();
+        wheel.advance(nowMillis, expired::add);
+        return expired;
+    }
+
+    @Test
+    public void testExpireByDeadline() {
+        wheel.add("a", 1100);
+        wheel.add("b", 1050);
+        wheel.add("c", 1055);
+
+        assertEquals(emptyList(), advance(1049));
+        assertEquals(asList("b"), advance(1050));
+        // Deadlines are rounded up to the tick
+        assertEquals(emptyList(), advance(1059));
+        assertEquals(asList("c"), advance(1060));
+        assertEquals(asList("a"), advance(2000));
+        assertEquals(emptyList(), advance(3000));
+    }
+
+    @Test
+    public void testExpireInOrderOfDeadlines() {
+        wheel.add("a", 1030);
+        wheel.add("b", 1010);
+        wheel.add("c", 1020);
+        assertEquals(asList("b", "c", "a"), advance(1100));
+    }
+
+    @Test
+    public void testPastDeadline() {
+        advance(1100);
+        wheel.add("a", 1000);
+        assertEquals(asList("a"), advance(1110));
+    }
+
+    @Test
+    public void testWrapAround() {
+        for (long now = 1000; now < 2000; now += 10) {
+            wheel.add("t" + now, now + 100);
+            if (now >= 1100) {
+                assertEquals(asList("t" + (now - 100)), advance(now));
+            } else {
+                assertEquals(emptyList(), advance(now));
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
+import com.linecorp.decaton.processor.metrics.Metrics;
+import com.linecorp.decaton.processor.metrics.Metrics.RetryMetrics;
+
+public class KeyQuarantineTest {
+    private static final RetryMetrics METRICS =
+            Metrics.withTags("subscription", "subscription").new RetryMetrics();
+
+    private final AtomicLong clock = new AtomicLong();
+    private KeyQuarantine quarantine;
+
+    private static ProcessorProperties props(int failures, int maxTrackedKeys) {
+        return ProcessorProperties.builder()
+                                  .set(Property.ofStatic(ProcessorProperties.CONFIG_RETRY_QUARANTINE_FAILURES,
+                                                         failures))
+                                  .set(Property.ofStatic(ProcessorProperties.CONFIG_RETRY_QUARANTINE_COOLDOWN_MS,
+                                                         1000L))
+                                  .set(Property.ofStatic(
+                                          ProcessorProperties.CONFIG_RETRY_QUARANTINE_MAX_TRACKED_KEYS,
+                                          maxTrackedKeys))
+                                  .build();
+    }
+
+    private static ProcessorProperties props(int failures) {
+        return props(failures, 10_000);
+    }
+
+    @Before
+    public void setUp() {
+        quarantine = new KeyQuarantine(props(3), METRICS, clock::get);
+    }
+
+    @Test
+    public void testQuarantineAfterConsecutiveFailures() {
+        quarantine.recordFailure("key");
+        quarantine.recordFailure("key");
+        assertFalse(quarantine.isQuarantined("key"));
+        quarantine.recordFailure("key");
+        assertTrue(quarantine.isQuarantined("key"));
+        assertFalse(quarantine.isQuarantined("other"));
+
+        // Success doesn't lift the quarantine
+        quarantine.recordSuccess("key");
+        assertTrue(quarantine.isQuarantined("key"));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        quarantine.recordFailure("key");
+        quarantine.recordFailure("key");
+        quarantine.recordSuccess("key");
+        quarantine.recordFailure("key");
+        quarantine.recordFailure("key");
+        assertFalse(quarantine.isQuarantined("key"));
+    }
+
+    @Test
+    public void testCooldown() {
+        for (int i = 0; i < 3; i++) {
+            quarantine.recordFailure("key");
+        }
+        clock.set(999);
+        assertTrue(quarantine.isQuarantined("key"));
+        clock.set(1000);
+        assertFalse(quarantine.isQuarantined("key"));
+
+        // Failures are counted afresh
+        quarantine.recordFailure("key");
+        assertFalse(quarantine.isQuarantined("key"));
+    }
+
+    @Test
+    public void testDisabled() {
+        quarantine = new KeyQuarantine(props(0), METRICS, clock::get);
+        for (int i = 0; i < 10; i++) {
+            quarantine.recordFailure("key");
+        }
+        assertFalse(quarantine.isQuarantined("key"));
+    }
+
+    @Test
+    public void testQuarantinedKeysKeptOnEviction() {
+        quarantine = new KeyQuarantine(props(2, 2), METRICS, clock::get);
+        quarantine.recordFailure("quarantined");
+        quarantine.recordFailure("quarantined");
+        assertTrue(quarantine.isQuarantined("quarantined"));
+
+        quarantine.recordFailure("key1");
+        quarantine.recordFailure("key2");
+        // key1 is evicted rather than the quarantined key
+        assertTrue(quarantine.isQuarantined("quarantined"));
+        quarantine.recordFailure("key1");
+        assertFalse(quarantine.isQuarantined("key1"));
+    }
+
+    @Test
+    public void testLeastRecentlyFailedKeyEvicted() {
+        quarantine = new KeyQuarantine(props(2, 2), METRICS, clock::get);
+        quarantine.recordFailure("key1");
+        quarantine.recordFailure("key2");
+        quarantine.recordFailure("key1");
+        assertTrue(quarantine.isQuarantined("key1"));
+        // key2 is evicted as it failed less recently than key3
+        quarantine.recordFailure("key3");
+        quarantine.recordFailure("key2");
+        assertFalse(quarantine.isQuarantined("key2"));
+    }
+
+    @Test
+    public void testNullKey() {
+        for (int i = 0; i < 3; i++) {
+            quarantine.recordFailure(null);
+        }
+        assertFalse(quarantine.isQuarantined(null));
+    }
+}
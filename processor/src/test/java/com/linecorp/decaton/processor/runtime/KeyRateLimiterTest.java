@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
+
+public class KeyRateLimiterTest {
+    private static KeyRateLimiter limiter(long rate, int capacity) {
+        return new KeyRateLimiter(Property.ofStatic(ProcessorProperties.CONFIG_PROCESSING_RATE_PER_KEY, rate),
+                                  capacity);
+    }
+
+    @Test
+    public void testReserve() {
+        KeyRateLimiter limiter = limiter(2L, 16);
+
+        // Permits of a second are stored for new keys
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, limiter.reserve("a", 1, 0L));
+        }
+        assertEquals(500_000L, limiter.reserve("a", 1, 0L));
+        assertEquals(1_000_000L, limiter.reserve("a", 1, 0L));
+        assertEquals(0L, limiter.reserve("b", 1, 0L));
+
+        // Permits are restored over time
+        assertEquals(0L, limiter.reserve("a", 1, 1_500_000L));
+        assertEquals(500_000L, limiter.reserve("a", 2, 1_500_000L));
+        assertEquals(1_500_000L, limiter.reserve("a", 1, 1_500_000L));
+    }
+
+    @Test
+    public void testUnlimited() {
+        KeyRateLimiter limiter = limiter(RateLimiter.UNLIMITED, 16);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0L, limiter.reserve("a", 1, 0L));
+        }
+    }
+
+    @Test
+    public void testBoundedKeys() {
+        KeyRateLimiter limiter = limiter(1L, 1);
+        for (int i = 0; i < 1000; i++) {
+            limiter.reserve(String.valueOf(i), 1, 0L);
+        }
+        // The state of a key throttled recently survives evictions of idle keys
+        assertEquals(0L, limiter.reserve("a", 2, 10_000_000L));
+        for (int i = 0; i < 1000; i++) {
+            limiter.reserve(String.valueOf(i), 1, 10_000_000L);
+        }
+        assertEquals(1_000_000L, limiter.reserve("a", 1, 10_000_000L));
+    }
+}
@@ -18,11 +18,14 @@ package com.linecorp.decaton.processor.runtime;
 
 import static com.linecorp.decaton.processor.ProcessorProperties.CONFIG_PARTITION_CONCURRENCY;
 import static com.linecorp.decaton.processor.ProcessorProperties.CONFIG_PROCESSING_RATE;
+import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -87,7 +90,7 @@ public class PartitionContextsTest {
             TopicPartition tp = new TopicPartition("topic", i);
             PartitionContext context = mock(PartitionContext.class);
             doReturn(tp).when(context).topicPartition();
-            doReturn(context).when(contexts).instantiateContext(tp);
+            doReturn(context).when(contexts).instantiateContext(eq(tp), anyLong());
             cts.add(contexts.initContext(tp, false));
         }
         return cts;
@@ -169,6 +172,39 @@ public class PartitionContextsTest {
         assertEquals(cts.get(0).topicPartition(), needPause.iterator().next());
     }
 
+    @Test
+    public void testPartitionsWaitingForDue() {
+        List<PartitionContext> cts = putContexts(2);
+        doReturn(0).when(cts.get(0)).pendingTasksCount();
+        doReturn(0).when(cts.get(1)).pendingTasksCount();
+
+        doReturn(true).when(cts.get(0)).waitingForDue(anyLong());
+        assertEquals(singletonList(cts.get(0).topicPartition()), contexts.partitionsNeedsPause());
+
+        // Kept paused until the head task becomes due
+        doReturn(true).when(cts.get(0)).paused();
+        assertTrue(contexts.partitionsNeedsResume().isEmpty());
+
+        doReturn(false).when(cts.get(0)).waitingForDue(anyLong());
+        assertEquals(singletonList(cts.get(0).topicPartition()), contexts.partitionsNeedsResume());
+    }
+
+    @Test
+    public void testPartitionsCircuitOpen() {
+        List<PartitionContext> cts = putContexts(2);
+        doReturn(0).when(cts.get(0)).pendingTasksCount();
+        doReturn(0).when(cts.get(1)).pendingTasksCount();
+
+        doReturn(true).when(cts.get(1)).circuitOpen();
+        assertEquals(singletonList(cts.get(1).topicPartition()), contexts.partitionsNeedsPause());
+
+        doReturn(true).when(cts.get(1)).paused();
+        assertTrue(contexts.partitionsNeedsResume().isEmpty());
+
+        doReturn(false).when(cts.get(1)).circuitOpen();
+        assertEquals(singletonList(cts.get(1).topicPartition()), contexts.partitionsNeedsResume());
+    }
+
     @Test
     public void testPartitionsNeedsResume() {
         List<PartitionContext> cts = putContexts(2);
@@ -243,24 +279,71 @@ public class PartitionContextsTest {
         clearInvocations(contexts);
 
         PartitionContext context = mock(PartitionContext.class);
-        doReturn(context).when(contexts).instantiateContext(any());
+        doReturn(context).when(contexts).instantiateContext(any(), anyLong());
 
         // there are some pending tasks
         doReturn(100).when(contexts).totalPendingTasks();
 
         contexts.maybeHandlePropertyReload();
         // property reload is not requested yet
-        verify(contexts, never()).instantiateContext(any());
+        verify(contexts, never()).instantiateContext(any(), anyLong());
 
         partitionConcurrencyProperty.set(42);
         contexts.maybeHandlePropertyReload();
         // property reload is requested, but there are pending tasks
-        verify(contexts, never()).instantiateContext(any());
+        verify(contexts, never()).instantiateContext(any(), anyLong());
 
         // pending tasks done
         doReturn(0).when(contexts).totalPendingTasks();
         contexts.maybeHandlePropertyReload();
 
-        verify(contexts, times(12)).instantiateContext(any());
+        verify(contexts, times(12)).instantiateContext(any(), anyLong());
+    }
+
+    private PartitionContexts deduplicatingContexts() {
+        doReturn(mock(ProcessPipeline.class)).when(processors).newPipeline(any(), any(), any(), any());
+        ProcessorProperties props = ProcessorProperties
+                .builder()
+                .set(Property.ofStatic(ProcessorProperties.CONFIG_DEDUPLICATION_CAPACITY, 10))
+                .build();
+        return new PartitionContexts(
+                new SubscriptionScope("subscription", "topic", Optional.empty(), props), processors);
+    }
+
+    @Test(timeout = 5000)
+    public void testDeduplicationAcrossReinitialization() throws Exception {
+        PartitionContexts contexts = deduplicatingContexts();
+        TopicPartition tp = new TopicPartition("topic", 0);
+
+        PartitionContext context = contexts.initContext(tp, false);
+        context.registerOffset(1L).complete();
+        context.registerOffset(2L); // Offset regressed before completing
+        contexts.dropContexts(singletonList(tp));
+
+        context = contexts.initContext(tp, false);
+        for (long offset = 1L; offset <= 2L; offset++) {
+            context.addRequest(new TaskRequest(tp, offset, context.registerOffset(offset), "key", null));
+        }
+        context.updateHighWatermark();
+        // Only the task completed before reinitialization is skipped
+        assertEquals(1L, context.commitReadyOffset());
+        assertEquals(1, context.pendingTasksCount());
+        contexts.destroyAllProcessors();
+    }
+
+    @Test(timeout = 5000)
+    public void testForgetSeenOffsetsOnRevocation() throws Exception {
+        PartitionContexts contexts = deduplicatingContexts();
+        TopicPartition tp = new TopicPartition("topic", 0);
+
+        PartitionContext context = contexts.initContext(tp, false);
+        context.registerOffset(1L).complete();
+        contexts.revokeContexts(singletonList(tp));
+
+        context = contexts.initContext(tp, false);
+        context.addRequest(new TaskRequest(tp, 1L, context.registerOffset(1L), "key", null));
+        context.updateHighWatermark();
+        assertEquals(1, context.pendingTasksCount());
+        contexts.destroyAllProcessors();
     }
 }
@@ -20,10 +20,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -61,7 +65,7 @@ public class PartitionProcessorTest {
                 throw new RuntimeException("exception");
             }
             return null;
-        }).when(processors).newPipeline(any(), any(), any());
+        }).when(processors).newPipeline(any(), any(), any(), any());
 
         List<ProcessorUnit> units = new ArrayList<>();
 
@@ -82,4 +86,28 @@ public class PartitionProcessorTest {
         verify(units.get(0), times(1)).close();
         verify(units.get(1), times(1)).close();
     }
+
+    @Test
+    @SuppressWarnings("try")
+    public void testCleanupOpenedDelayIndex() throws Exception {
+        DelayIndex delayIndex = mock(DelayIndex.class);
+        try {
+            new PartitionProcessor(scope, processors) {
+                @Override
+                DelayIndex openDelayIndex() {
+                    return delayIndex;
+                }
+
+                @Override
+                FileStateStore openStateStore(long startOffset) {
+                    throw new UncheckedIOException(new IOException("exception"));
+                }
+            };
+            fail("Successful call w/o exception");
+        } catch (UncheckedIOException ignored) {
+        }
+
+        verify(delayIndex, times(1)).close();
+        verify(processors, never()).newPipeline(any(), any(), any(), any());
+    }
 }
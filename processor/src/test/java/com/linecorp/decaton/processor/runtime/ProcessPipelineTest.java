@@ -16,16 +16,30 @@
 
 package com.linecorp.decaton.processor.runtime;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
@@ -39,7 +53,10 @@ import org.mockito.junit.MockitoRule;
 
 import com.linecorp.decaton.processor.DecatonProcessor;
 import com.linecorp.decaton.processor.DecatonTask;
+import com.linecorp.decaton.processor.ProcessingContext;
 import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
+import com.linecorp.decaton.processor.TaskCostFunction;
 import com.linecorp.decaton.processor.TaskExtractor;
 import com.linecorp.decaton.processor.TaskMetadata;
 import com.linecorp.decaton.processor.metrics.Metrics;
@@ -82,6 +99,9 @@ public class ProcessPipelineTest {
     @Mock
     private DecatonProcessor<HelloTask> processorMock;
 
+    @Mock
+    private DecatonProcessor<byte[]> retryProcessorMock;
+
     @Mock
     private ExecutionScheduler schedulerMock;
 
@@ -99,10 +119,49 @@ public class ProcessPipelineTest {
                 .thenReturn(new DecatonTask<>(TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray()));
 
         CompletableFuture<Void> future = pipeline.scheduleThenProcess(taskRequest());
-        verify(schedulerMock, times(1)).schedule(eq(TaskMetadata.fromProto(REQUEST.getMetadata())));
+        verify(schedulerMock, times(1)).schedule(eq("TEST"), eq(TaskMetadata.fromProto(REQUEST.getMetadata())), eq(1));
         verify(processorMock, times(1)).process(any(), eq(TASK));
 
         assertTrue(future.isDone());
+        verify(schedulerMock, times(1)).reportCompletion(anyLong(), eq(false));
+    }
+
+    @Test
+    public void testScheduleThenProcess_Deferred() throws InterruptedException {
+        TaskMetadata metadata = TaskMetadata.fromProto(REQUEST.getMetadata());
+        when(extractorMock.extract(any()))
+                .thenReturn(new DecatonTask<>(metadata, TASK, TASK.toByteArray()));
+        when(schedulerMock.shouldDefer("TEST", metadata)).thenReturn(true);
+        CompletableFuture<Void> deferred = new CompletableFuture<>();
+        when(schedulerMock.defer(eq("TEST"), eq(metadata), eq(1), any())).thenReturn(deferred);
+
+        CompletableFuture<Void> future = pipeline.scheduleThenProcess(taskRequest());
+        verify(schedulerMock, never()).schedule(any(), any(), anyInt());
+        verify(processorMock, never()).process(any(), any());
+
+        assertSame(deferred, future);
+    }
+
+    @Test
+    public void testScheduleThenProcess_CostFunction() throws InterruptedException {
+        TaskMetadata metadata = TaskMetadata.fromProto(REQUEST.getMetadata());
+        when(extractorMock.extract(any()))
+                .thenReturn(new DecatonTask<>(metadata, TASK, new byte[10]));
+        // Task data bytes are available to the cost function even though they aren't retained
+        pipeline = new ProcessPipeline<>(scope, Collections.singletonList(processorMock), null, extractorMock,
+                                         null, TaskCostFunction.ofTaskDataBytes(), null, null, schedulerMock,
+                                         METRICS);
+
+        pipeline.scheduleThenProcess(taskRequest());
+        verify(schedulerMock, times(1)).schedule(eq("TEST"), eq(metadata), eq(10));
+    }
+
+    @Test
+    public void testPermits() {
+        pipeline = new ProcessPipeline<>(scope, Collections.singletonList(processorMock), null, extractorMock,
+                                         null, task -> 0, null, null, schedulerMock, METRICS);
+        // At least one permit is taken
+        assertEquals(1, pipeline.permits(new DecatonTask<>(TaskMetadata.builder().build(), TASK, null)));
     }
 
     @Test(expected = RuntimeException.class)
@@ -136,6 +195,41 @@ public class ProcessPipelineTest {
         verify(requestSpy, times(1)).purgeRawRequestBytes();
     }
 
+    @Test
+    public void testExtract_DropTaskDataBytesWithoutRetry() {
+        when(extractorMock.extract(any()))
+                .thenReturn(new DecatonTask<>(TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray()));
+
+        DecatonTask<HelloTask> extracted = pipeline.extract(taskRequest());
+
+        assertNull(extracted.taskDataBytes());
+    }
+
+    @Test
+    public void testExtract_RetainTaskDataBytesForRetry() {
+        when(extractorMock.extract(any()))
+                .thenReturn(new DecatonTask<>(TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray()));
+
+        pipeline = new ProcessPipeline<>(scope, Collections.singletonList(processorMock), retryProcessorMock,
+                                         extractorMock, schedulerMock, METRICS);
+        DecatonTask<HelloTask> extracted = pipeline.extract(taskRequest());
+
+        assertArrayEquals(TASK.toByteArray(), extracted.taskDataBytes());
+    }
+
+    @Test
+    public void testExtract_DropTaskDataBytesWithSerializer() {
+        when(extractorMock.extract(any()))
+                .thenReturn(new DecatonTask<>(TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray()));
+
+        pipeline = new ProcessPipeline<>(scope, Collections.singletonList(processorMock), retryProcessorMock,
+                                         extractorMock, HelloTask::toByteArray, null, null, null, schedulerMock,
+                                         METRICS);
+        DecatonTask<HelloTask> extracted = pipeline.extract(taskRequest());
+
+        assertNull(extracted.taskDataBytes());
+    }
+
     static class ProcessException extends RuntimeException {
     }
 
@@ -150,4 +244,124 @@ public class ProcessPipelineTest {
 
         pipeline.process(taskRequest(), task);
     }
+
+    @Test
+    public void testProcess_SynchronousFailureReported() throws InterruptedException {
+        DecatonTask<HelloTask> task = new DecatonTask<>(TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray());
+        doThrow(new ProcessException()).when(processorMock).process(any(), eq(TASK));
+
+        try {
+            pipeline.process(taskRequest(), task);
+            fail("should throw");
+        } catch (ProcessException ignored) {
+            // expected
+        }
+        verify(schedulerMock, times(1)).reportCompletion(anyLong(), eq(true));
+    }
+
+    @Test
+    public void testRetryLocally() throws InterruptedException {
+        ThreadScope scope = new ThreadScope(
+                new PartitionScope(
+                        new SubscriptionScope("subscription", "topic",
+                                              Optional.of(RetryConfig.builder()
+                                                                     .backoff(Duration.ofSeconds(10))
+                                                                     .localRetries(2)
+                                                                     .localBackoff(Duration.ofMillis(100))
+                                                                     .build()),
+                                              ProcessorProperties.builder().build()),
+                        new TopicPartition("topic", 0)),
+                0);
+        pipeline = new ProcessPipeline<>(scope, Collections.singletonList(processorMock), retryProcessorMock,
+                                         extractorMock, HelloTask::toByteArray, null, null, null, schedulerMock,
+                                         METRICS);
+        List<Long> retryCounts = new ArrayList<>();
+        doAnswer(invocation -> {
+            ProcessingContext<HelloTask> context = invocation.getArgument(0);
+            retryCounts.add(context.metadata().retryCount());
+            context.retry();
+            return null;
+        }).when(processorMock).process(any(), eq(TASK));
+        // Run deferred task immediately
+        when(schedulerMock.deferAsync(eq("TEST"), any(), eq(1), any())).thenAnswer(
+                invocation -> invocation.<ExecutionScheduler.DeferredTask>getArgument(3).run());
+        CompletableFuture<Void> retryQueued = new CompletableFuture<>();
+        doAnswer(invocation -> {
+            invocation.<ProcessingContext<byte[]>>getArgument(0).deferCompletion().completeWith(retryQueued);
+            return null;
+        }).when(retryProcessorMock).process(any(), any());
+
+        DecatonTask<HelloTask> task = new DecatonTask<>(
+                TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray());
+        CompletableFuture<Void> result = pipeline.process(taskRequest(), task);
+
+        // Retried in this instance twice, then queued to the retry topic
+        assertEquals(Arrays.asList(0L, 1L, 2L), retryCounts);
+        verify(schedulerMock, times(2)).deferAsync(eq("TEST"), any(), eq(1), any());
+        verify(retryProcessorMock, times(1)).process(any(), any());
+        // Offset is held until the final retry is queued
+        assertFalse(result.isDone());
+        retryQueued.complete(null);
+        assertTrue(result.isDone());
+        // Retried tasks are reported as failures
+        verify(schedulerMock, never()).reportCompletion(anyLong(), eq(false));
+    }
+
+    @Test
+    public void testQuarantine() throws InterruptedException {
+        ProcessorProperties props = ProcessorProperties.builder().set(Property.ofStatic(
+                ProcessorProperties.CONFIG_RETRY_QUARANTINE_FAILURES, 2)).build();
+        KeyQuarantine quarantine = new KeyQuarantine(props, METRICS.new RetryMetrics());
+        pipeline = new ProcessPipeline<>(scope, Collections.singletonList(processorMock), retryProcessorMock,
+                                         extractorMock, HelloTask::toByteArray, null, quarantine, null,
+                                         schedulerMock, METRICS);
+        doAnswer(invocation -> {
+            invocation.<ProcessingContext<HelloTask>>getArgument(0).retry();
+            return null;
+        }).when(processorMock).process(any(), eq(TASK));
+        DecatonTask<HelloTask> task = new DecatonTask<>(
+                TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray());
+
+        pipeline.process(taskRequest(), task);
+        assertFalse(quarantine.isQuarantined("TEST"));
+        pipeline.process(taskRequest(), task);
+        assertTrue(quarantine.isQuarantined("TEST"));
+        verify(processorMock, times(2)).process(any(), eq(TASK));
+        verify(retryProcessorMock, times(2)).process(any(), any());
+
+        // Diverted to the retry processor without being processed
+        CompletableFuture<Void> result = pipeline.process(taskRequest(), task);
+        assertTrue(result.isDone());
+        verify(processorMock, times(2)).process(any(), eq(TASK));
+        verify(retryProcessorMock, times(3)).process(any(), any());
+    }
+
+    @Test
+    public void testQuarantine_SuccessResetsFailures() throws InterruptedException {
+        ProcessorProperties props = ProcessorProperties.builder().set(Property.ofStatic(
+                ProcessorProperties.CONFIG_RETRY_QUARANTINE_FAILURES, 2)).build();
+        KeyQuarantine quarantine = new KeyQuarantine(props, METRICS.new RetryMetrics());
+        pipeline = new ProcessPipeline<>(scope, Collections.singletonList(processorMock), retryProcessorMock,
+                                         extractorMock, HelloTask::toByteArray, null, quarantine, null,
+                                         schedulerMock, METRICS);
+        DecatonTask<HelloTask> task = new DecatonTask<>(
+                TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray());
+
+        doThrow(new RuntimeException("failed")).when(processorMock).process(any(), eq(TASK));
+        try {
+            pipeline.process(taskRequest(), task);
+            fail("Successful call w/o exception");
+        } catch (RuntimeException ignored) {
+        }
+        doAnswer(invocation -> null).when(processorMock).process(any(), eq(TASK));
+        pipeline.process(taskRequest(), task);
+        doThrow(new RuntimeException("failed")).when(processorMock).process(any(), eq(TASK));
+        try {
+            pipeline.process(taskRequest(), task);
+            fail("Successful call w/o exception");
+        } catch (RuntimeException ignored) {
+        }
+
+        assertFalse(quarantine.isQuarantined("TEST"));
+    }
 }
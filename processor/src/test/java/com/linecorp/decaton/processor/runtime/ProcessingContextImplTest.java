@@ -16,18 +16,24 @@
 
 package com.linecorp.decaton.processor.runtime;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -87,6 +93,18 @@ public class ProcessingContextImplTest {
         return new ProcessingContextImpl<>("subscription", request, task, Arrays.asList(processors), null);
     }
 
+    @SafeVarargs
+    private static ProcessingContextImpl<HelloTask> reusingContext(DecatonProcessor<HelloTask>... processors) {
+        TaskRequest request = new TaskRequest(
+                new TopicPartition("topic", 1), 1, null, "TEST", REQUEST.toByteArray());
+        DecatonTask<HelloTask> task = new DecatonTask<>(
+                TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray());
+        ProcessingContextImpl<HelloTask> context = new ProcessingContextImpl<>(
+                "subscription", Arrays.asList(processors), -1, null, null, null, null, true);
+        context.reset(request, task);
+        return context;
+    }
+
     private static void safeAwait(CountDownLatch latch) {
         try {
             latch.await();
@@ -295,6 +313,84 @@ public class ProcessingContextImplTest {
         assertTrue(fAll.isDone());
     }
 
+    @Test(timeout = 5000)
+    public void testPush_ReuseSyncContext() throws InterruptedException {
+        List<ProcessingContext<HelloTask>> contexts = new ArrayList<>();
+        ProcessingContextImpl<HelloTask> context = reusingContext((ctx, task) -> {
+            contexts.add(ctx);
+            ctx.push(task);
+        }, (ctx, task) -> contexts.add(ctx));
+
+        assertTrue(context.push(TASK).isDone());
+        assertTrue(context.push(TASK).isDone());
+
+        assertSame(contexts.get(0), contexts.get(2));
+        assertSame(contexts.get(1), contexts.get(3));
+        assertNotSame(contexts.get(0), contexts.get(1));
+    }
+
+    @Test(timeout = 5000)
+    public void testPush_NotReuseContextByDefault() throws InterruptedException {
+        List<ProcessingContext<HelloTask>> contexts = new ArrayList<>();
+        ProcessingContextImpl<HelloTask> context = context((ctx, task) -> {
+            contexts.add(ctx);
+            ctx.push(task);
+        }, (ctx, task) -> contexts.add(ctx));
+
+        assertTrue(context.push(TASK).isDone());
+        assertTrue(context.push(TASK).isDone());
+
+        assertNotSame(contexts.get(0), contexts.get(2));
+        assertNotSame(contexts.get(1), contexts.get(3));
+    }
+
+    @Test(timeout = 5000)
+    public void testPush_NotReuseDeferredContext() throws InterruptedException {
+        List<ProcessingContext<HelloTask>> contexts = new ArrayList<>();
+        List<DeferredCompletion> completions = new ArrayList<>();
+        ProcessingContextImpl<HelloTask> context = reusingContext((ctx, task) -> {
+            contexts.add(ctx);
+            ctx.push(task);
+        }, (ctx, task) -> {
+            contexts.add(ctx);
+            completions.add(ctx.deferCompletion());
+        });
+
+        CompletableFuture<Void> f1 = context.push(TASK);
+        CompletableFuture<Void> f2 = context.push(TASK);
+
+        assertSame(contexts.get(0), contexts.get(2));
+        assertNotSame(contexts.get(1), contexts.get(3));
+        // The first stage completed synchronously regardless of the second stage's completion
+        assertTrue(f1.isDone());
+        assertTrue(f2.isDone());
+    }
+
+    @Test(timeout = 5000)
+    public void testPush_DeferredContextKeepsDownstream() throws InterruptedException {
+        List<ProcessingContext<HelloTask>> contexts = new ArrayList<>();
+        List<ProcessingContext<HelloTask>> deferredContexts = new ArrayList<>();
+        ProcessingContextImpl<HelloTask> context = reusingContext((ctx, task) -> {
+            ctx.deferCompletion();
+            deferredContexts.add(ctx);
+        }, (ctx, task) -> contexts.add(ctx));
+
+        CompletableFuture<Void> f1 = context.push(TASK);
+        CompletableFuture<Void> f2 = context.push(TASK);
+        assertNotSame(deferredContexts.get(0), deferredContexts.get(1));
+        assertFalse(f1.isDone());
+        assertFalse(f2.isDone());
+
+        // Contexts escaped to async processing are still usable to push tasks to downstream
+        assertTrue(deferredContexts.get(0).push(TASK).isDone());
+        assertTrue(deferredContexts.get(1).push(TASK).isDone());
+        assertNotSame(contexts.get(0), contexts.get(1));
+
+        deferredContexts.get(0).deferCompletion().complete();
+        assertTrue(f1.isDone());
+        assertFalse(f2.isDone());
+    }
+
     @Test
     public void testRetry() throws InterruptedException {
         @SuppressWarnings("unchecked")
@@ -318,8 +414,54 @@ public class ProcessingContextImplTest {
         assertTrue(produceFuture.isDone());
     }
 
+    @Test
+    public void testRetry_SerializeOnRetry() throws InterruptedException {
+        @SuppressWarnings("unchecked")
+        DecatonProcessor<byte[]> retryProcessor = mock(DecatonProcessor.class);
+
+        TaskRequest request = new TaskRequest(
+                new TopicPartition("topic", 1), 1, null, "TEST", REQUEST.toByteArray());
+        DecatonTask<HelloTask> task = new DecatonTask<>(
+                TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, null);
+
+        ProcessingContextImpl<HelloTask> context = new ProcessingContextImpl<>(
+                "subscription", Collections.emptyList(), -1, retryProcessor, HelloTask::toByteArray, null, null,
+                false);
+        context.reset(request, task);
+
+        CompletableFuture<Void> produceFuture = context.retry();
+
+        verify(retryProcessor, times(1)).process(any(), eq(TASK.toByteArray()));
+        assertTrue(produceFuture.isDone());
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testRetry_NOT_CONFIGURED() throws InterruptedException {
         context().retry();
     }
+
+    @Test(timeout = 5000)
+    public void testStateStoreSharedByDownstreams() throws InterruptedException {
+        FileStateStore stateStore = mock(FileStateStore.class);
+        StateStore storeForOffset = mock(StateStore.class);
+        doReturn(storeForOffset).when(stateStore).forOffset(1L);
+        TaskRequest request = new TaskRequest(
+                new TopicPartition("topic", 1), 1, null, "TEST", REQUEST.toByteArray());
+        DecatonTask<HelloTask> task = new DecatonTask<>(
+                TaskMetadata.fromProto(REQUEST.getMetadata()), TASK, TASK.toByteArray());
+        List<StateStore> stores = new ArrayList<>();
+        DecatonProcessor<HelloTask> processor = (ctx, t) -> stores.add(ctx.stateStore());
+        ProcessingContextImpl<HelloTask> context = new ProcessingContextImpl<>(
+                "subscription", Collections.singletonList(processor), -1, null, null, null, stateStore, false);
+        context.reset(request, task);
+
+        context.push(TASK);
+        // Changes made by downstream processors are bound to the offset of the task as well
+        assertEquals(Collections.singletonList(storeForOffset), stores);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStateStore_NOT_CONFIGURED() {
+        context().stateStore();
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.junit.Test;
+
+import com.linecorp.decaton.processor.ProcessorProperties;
+
+public class ProcessorSubscriptionTest {
+    @SuppressWarnings("unchecked")
+    private static Consumer<String, byte[]> consumer() {
+        // Answers every poll overload so that the test doesn't depend on the deprecated one
+        return mock(Consumer.class, invocation -> {
+            if ("poll".equals(invocation.getMethod().getName())) {
+                return ConsumerRecords.empty();
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        });
+    }
+
+    private static SubscriptionScope scope(String subscriptionId) {
+        return new SubscriptionScope(subscriptionId, "topic", Optional.of(RetryConfig.builder().build()),
+                                     ProcessorProperties.builder().build());
+    }
+
+    @Test(timeout = 10000)
+    public void testDestroySharedSingletonScopeAfterRetrySubscription() throws Exception {
+        Processors<?> processors = mock(Processors.class);
+        ProcessorProperties props = ProcessorProperties.builder().build();
+        Consumer<String, byte[]> retryConsumer = consumer();
+        ProcessorSubscription retrySubscription = new ProcessorSubscription(
+                scope("subscription-retry"), () -> retryConsumer, processors, props, null,
+                Collections.singleton("topic-retry"), null, false);
+        ProcessorSubscription subscription = new ProcessorSubscription(
+                scope("subscription"), () -> consumer(), processors, props, null,
+                Collections.singleton("topic"), retrySubscription, true);
+
+        AtomicBoolean retryAliveOnDestroy = new AtomicBoolean();
+        doAnswer(invocation -> {
+            retryAliveOnDestroy.set(retrySubscription.isAlive());
+            return null;
+        }).when(processors).destroySingletonScope("subscription");
+
+        subscription.start();
+        subscription.close();
+
+        verify(processors, never()).destroySingletonScope("subscription-retry");
+        verify(processors, times(1)).destroySingletonScope("subscription");
+        verify(retryConsumer).close();
+        assertFalse(retryAliveOnDestroy.get());
+    }
+}
@@ -22,16 +22,27 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.LongSupplier;
 import java.util.function.LongUnaryOperator;
 
@@ -41,6 +52,11 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import com.linecorp.decaton.processor.DynamicProperty;
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.Property;
+import com.linecorp.decaton.processor.metrics.Metrics;
+
 public class RateLimiterTest {
     @Rule
     public MockitoRule rule = MockitoJUnit.rule();
@@ -48,6 +64,9 @@ public class RateLimiterTest {
     @Mock
     private LongSupplier timeSupplier;
 
+    @Mock
+    private TokenStore tokenStore;
+
     @Test(timeout = 2000)
     public void testBasic() throws InterruptedException {
         RateLimiter limiter = RateLimiter.create(1L);
@@ -216,4 +235,226 @@ public class RateLimiterTest {
         // the throttle starts again
         assertNotEquals(0L, limiter.acquire());
     }
+
+    @Test(timeout = 2000)
+    public void testReserve() throws Exception {
+        final long rate = 10L;
+        AveragingRateLimiter limiter = new AveragingRateLimiter(rate, 0.0d, timeSupplier);
+
+        doReturn(0L).when(timeSupplier).getAsLong();
+        assertEquals(0L, limiter.reserve(1));
+        assertEquals(100_000L, limiter.reserve(1));
+        assertEquals(200_000L, limiter.reserve(3));
+        assertEquals(500_000L, limiter.reserve(1));
+
+        doReturn(MILLISECONDS.toNanos(550L)).when(timeSupplier).getAsLong();
+        assertEquals(50_000L, limiter.reserve(1));
+    }
+
+    @Test(timeout = 5000)
+    public void testReserveConcurrently() throws Exception {
+        doReturn(0L).when(timeSupplier).getAsLong();
+        AveragingRateLimiter limiter = new AveragingRateLimiter(1000L, 0.0d, timeSupplier);
+
+        final int threadsCount = 8;
+        final int reservations = 1000;
+        ExecutorService es = Executors.newFixedThreadPool(threadsCount);
+        for (int i = 0; i < threadsCount; ++i) {
+            es.execute(() -> {
+                for (int j = 0; j < reservations; j++) {
+                    limiter.reserve(1);
+                }
+            });
+        }
+        es.shutdown();
+        es.awaitTermination(Long.MAX_VALUE, SECONDS);
+
+        // No reservation is lost
+        assertEquals(MILLISECONDS.toMicros(threadsCount * reservations), limiter.reserve(1));
+    }
+
+    @Test(timeout = 2000)
+    public void testSharedParentLimiter() throws Exception {
+        doReturn(0L).when(timeSupplier).getAsLong();
+        RateLimiter parent = new AveragingRateLimiter(10L, 0.0d, timeSupplier);
+        Property<Long> unlimited = Property.ofStatic(ProcessorProperties.CONFIG_PROCESSING_RATE,
+                                                     RateLimiter.UNLIMITED);
+        RateLimiter limiter1 = new DynamicRateLimiter(unlimited, parent);
+        RateLimiter limiter2 = new DynamicRateLimiter(unlimited, parent);
+
+        // Budget of the parent is shared by children
+        assertEquals(0L, limiter1.reserve(1));
+        assertEquals(100_000L, limiter2.reserve(1));
+        assertEquals(200_000L, limiter1.reserve(1));
+
+        // Closing a child doesn't close the parent
+        limiter1.close();
+        assertEquals(300_000L, limiter2.reserve(1));
+    }
+
+    @Test(timeout = 2000)
+    public void testParentCantReserve() throws Exception {
+        doReturn(0L).when(timeSupplier).getAsLong();
+        RateLimiter parent = spy(new UnlimitedRateLimiter() {
+            @Override
+            public long reserve(int permits) {
+                return -1L;
+            }
+        });
+        RateLimiter limiter = new DynamicRateLimiter(
+                Property.ofStatic(ProcessorProperties.CONFIG_PROCESSING_RATE, 10L),
+                rate -> new AveragingRateLimiter(rate, 0.0d, timeSupplier), parent);
+
+        // Permits of this limiter are reserved only once, while the parent's are acquired
+        assertEquals(0L, limiter.reserve(1));
+        verify(parent, times(1)).acquire(1);
+        assertEquals(100_000L, limiter.reserve(1));
+        verify(parent, times(2)).acquire(1);
+    }
+
+    @Test(timeout = 2000)
+    public void testIgnoreRateUpdateAfterClose() throws Exception {
+        DynamicProperty<Long> rateProperty = new DynamicProperty<>(ProcessorProperties.CONFIG_PROCESSING_RATE);
+        List<RateLimiter> created = new ArrayList<>();
+        RateLimiter limiter = new DynamicRateLimiter(rateProperty, rate -> {
+            RateLimiter l = mock(RateLimiter.class);
+            created.add(l);
+            return l;
+        }, null);
+        RateLimiter current = created.get(created.size() - 1);
+
+        limiter.close();
+        verify(current, times(1)).close();
+
+        int createdCount = created.size();
+        rateProperty.set(10L);
+        assertEquals(createdCount, created.size());
+    }
+
+    @Test(timeout = 2000)
+    public void testStricterChildLimiter() throws Exception {
+        RateLimiter limiter = new DynamicRateLimiter(
+                Property.ofStatic(ProcessorProperties.CONFIG_PROCESSING_RATE, 1L), new UnlimitedRateLimiter());
+
+        assertEquals(0L, limiter.reserve(1));
+        assertTrue(limiter.reserve(1) > SECONDS.toMicros(1L) / 2);
+    }
+
+    @Test(timeout = 2000)
+    public void testLeasingRateLimiter() throws Exception {
+        doReturn(0L).when(timeSupplier).getAsLong();
+        RateLimiter limiter = new LeasingRateLimiter(tokenStore, "bucket", 10L, 5, timeSupplier);
+
+        doReturn(0L).when(tokenStore).lease("bucket", 10L, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0L, limiter.reserve(1));
+        }
+        // Tokens are leased in chunks
+        verify(tokenStore, times(1)).lease("bucket", 10L, 5);
+
+        // Tokens of the next lease become available later
+        doReturn(500_000L).when(tokenStore).lease("bucket", 10L, 5);
+        assertEquals(500_000L, limiter.reserve(1));
+        doReturn(MILLISECONDS.toNanos(100L)).when(timeSupplier).getAsLong();
+        assertEquals(400_000L, limiter.reserve(1));
+        verify(tokenStore, times(2)).lease("bucket", 10L, 5);
+
+        // Requesting more than left, in which case leftover tokens are kept along with newly leased ones
+        doReturn(0L).when(tokenStore).lease("bucket", 10L, 5);
+        assertEquals(400_000L, limiter.reserve(8));
+        verify(tokenStore, times(3)).lease("bucket", 10L, 5);
+
+        // Requesting more than a chunk
+        doReturn(0L).when(tokenStore).lease("bucket", 10L, 10);
+        assertEquals(0L, limiter.reserve(10));
+        verify(tokenStore, times(1)).lease("bucket", 10L, 10);
+    }
+
+    @Test(timeout = 2000)
+    public void testLeasingRateLimiterReleaseOnClose() throws Exception {
+        RateLimiter limiter = new LeasingRateLimiter(tokenStore, "bucket", 10L, 5, timeSupplier);
+        doReturn(0L).when(tokenStore).lease("bucket", 10L, 5);
+        limiter.reserve(2);
+
+        limiter.close();
+        verify(tokenStore, times(1)).release("bucket", 10L, 3);
+    }
+
+    @Test(timeout = 2000)
+    public void testLeasingRateLimiterStoreFailure() throws Exception {
+        RateLimiter limiter = new LeasingRateLimiter(tokenStore, "bucket", 10L, 5, timeSupplier);
+        doThrow(new RuntimeException()).when(tokenStore).lease(anyString(), anyLong(), anyInt());
+
+        assertEquals(0L, limiter.reserve(1));
+    }
+
+    @Test(timeout = 2000)
+    public void testAdaptiveRateLimiter() throws Exception {
+        ProcessorProperties props = ProcessorProperties.builder().set(Property.ofStatic(
+                ProcessorProperties.CONFIG_PROCESSING_RATE_ADAPTIVE_LATENCY_TARGET_MS, 100L)).set(Property.ofStatic(
+                ProcessorProperties.CONFIG_PROCESSING_RATE_ADAPTIVE_INCREASE_STEP, 10L)).build();
+        AtomicLong rateGauge = Metrics.withTags("subscription", "test", "topic", "topic", "partition", "0")
+                                      .new RateLimiterMetrics().processingRate;
+        doReturn(0L).when(timeSupplier).getAsLong();
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100L, props, rateGauge, timeSupplier);
+        assertEquals(100L, limiter.rate());
+
+        // Latency exceeds the target, so the rate is decreased from the observed throughput
+        for (int i = 0; i < 50; i++) {
+            limiter.report(MILLISECONDS.toNanos(500L), false);
+        }
+        doReturn(SECONDS.toNanos(1L)).when(timeSupplier).getAsLong();
+        assertEquals(0L, limiter.reserve(1));
+        assertEquals(35L, limiter.rate());
+        assertEquals(35L, rateGauge.get());
+
+        // The rate is increased while it's limiting processing without degradation
+        assertTrue(limiter.reserve(1) > 0L);
+        for (int i = 0; i < 10; i++) {
+            limiter.report(MILLISECONDS.toNanos(10L), false);
+        }
+        doReturn(SECONDS.toNanos(2L)).when(timeSupplier).getAsLong();
+        limiter.reserve(1);
+        assertEquals(45L, limiter.rate());
+
+        // Error ratio exceeds the target
+        for (int i = 0; i < 10; i++) {
+            limiter.report(MILLISECONDS.toNanos(10L), i == 0);
+        }
+        doReturn(SECONDS.toNanos(3L)).when(timeSupplier).getAsLong();
+        limiter.reserve(1);
+        assertEquals(7L, limiter.rate());
+    }
+
+    @Test(timeout = 2000)
+    public void testAdaptiveRateLimiterNotIncreasedUnlessLimiting() throws Exception {
+        ProcessorProperties props = ProcessorProperties.builder().build();
+        AtomicLong rateGauge = Metrics.withTags("subscription", "test", "topic", "topic", "partition", "1")
+                                      .new RateLimiterMetrics().processingRate;
+        doReturn(0L).when(timeSupplier).getAsLong();
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100L, props, rateGauge, timeSupplier);
+
+        limiter.report(MILLISECONDS.toNanos(2000L), false);
+        doReturn(SECONDS.toNanos(1L)).when(timeSupplier).getAsLong();
+        limiter.reserve(1);
+        assertEquals(1L, limiter.rate());
+
+        // Completions keep up with the rate, which doesn't need to be increased
+        limiter.report(MILLISECONDS.toNanos(10L), false);
+        doReturn(SECONDS.toNanos(2L)).when(timeSupplier).getAsLong();
+        limiter.reserve(1);
+        assertEquals(1L, limiter.rate());
+    }
+
+    @Test(timeout = 2000)
+    public void testAdaptiveRateLimiterRateBeyondInt() throws Exception {
+        AtomicLong rateGauge = new AtomicLong();
+        long maxRate = Integer.MAX_VALUE * 2L;
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(
+                maxRate, ProcessorProperties.builder().build(), rateGauge, timeSupplier);
+
+        assertEquals(maxRate, rateGauge.get());
+        assertEquals(0L, limiter.acquire(1));
+        limiter.close();
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SeenOffsetsTest {
+    @Test
+    public void testAddContains() {
+        SeenOffsets seen = new SeenOffsets(3);
+        assertFalse(seen.contains(0L));
+        seen.add(0L);
+        seen.add(1L);
+        seen.add(1L);
+        assertTrue(seen.contains(0L));
+        assertTrue(seen.contains(1L));
+        assertFalse(seen.contains(2L));
+        assertEquals(2, seen.size());
+    }
+
+    @Test
+    public void testForgetOldest() {
+        SeenOffsets seen = new SeenOffsets(3);
+        for (long offset = 0L; offset < 5L; offset++) {
+            seen.add(offset);
+        }
+        assertFalse(seen.contains(0L));
+        assertFalse(seen.contains(1L));
+        for (long offset = 2L; offset < 5L; offset++) {
+            assertTrue(seen.contains(offset));
+        }
+        assertEquals(3, seen.size());
+    }
+
+    @Test
+    public void testRandomOffsets() {
+        // Offsets completing out of order, compared against a straightforward implementation
+        int capacity = 100;
+        SeenOffsets seen = new SeenOffsets(capacity);
+        Deque<Long> expectedOrder = new ArrayDeque<>();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(0L);
+        for (int i = 0; i < 100_000; i++) {
+            long offset = i + random.nextInt(1000);
+            if (expected.add(offset)) {
+                expectedOrder.addLast(offset);
+                if (expectedOrder.size() > capacity) {
+                    expected.remove(expectedOrder.removeFirst());
+                }
+            }
+            seen.add(offset);
+
+            long probe = i + random.nextInt(1000);
+            assertEquals(expected.contains(probe), seen.contains(probe));
+        }
+        for (long offset : expected) {
+            assertTrue(seen.contains(offset));
+        }
+        assertEquals(capacity, seen.size());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Properties;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import com.linecorp.decaton.client.KafkaProducerSupplier;
+import com.linecorp.decaton.protocol.Decaton.DecatonTaskRequest;
+
+public class SharedProducerSupplierTest {
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock
+    private KafkaProducerSupplier delegate;
+
+    private static Properties config(String clientId) {
+        Properties config = new Properties();
+        config.setProperty("client.id", clientId);
+        return config;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSharedByConfig() throws Exception {
+        Producer<String, DecatonTaskRequest> producer1 = mock(Producer.class);
+        Producer<String, DecatonTaskRequest> producer2 = mock(Producer.class);
+        doReturn(producer1).when(delegate).getProducer(config("a"));
+        doReturn(producer2).when(delegate).getProducer(config("b"));
+
+        Producer<String, DecatonTaskRequest> a1 = new SharedProducerSupplier(delegate).getProducer(config("a"));
+        Producer<String, DecatonTaskRequest> a2 = new SharedProducerSupplier(delegate).getProducer(config("a"));
+        Producer<String, DecatonTaskRequest> b = new SharedProducerSupplier(delegate).getProducer(config("b"));
+        verify(delegate, times(2)).getProducer(any());
+        assertEquals(2, SharedProducerSupplier.pooledProducers());
+
+        a1.send(new ProducerRecord<>("topic", DecatonTaskRequest.getDefaultInstance()));
+        a2.send(new ProducerRecord<>("topic", DecatonTaskRequest.getDefaultInstance()));
+        verify(producer1, times(2)).send(any());
+
+        a1.close();
+        a1.close();
+        verify(producer1, never()).close();
+        a2.close();
+        verify(producer1, times(1)).close();
+        b.close();
+        verify(producer2, times(1)).close();
+        assertEquals(0, SharedProducerSupplier.pooledProducers());
+    }
+}
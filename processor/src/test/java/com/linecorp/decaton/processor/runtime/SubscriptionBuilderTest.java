@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.junit.Test;
+
+import com.linecorp.decaton.common.Deserializer;
+import com.linecorp.decaton.processor.ProcessorProperties;
+import com.linecorp.decaton.processor.ProcessorsBuilder;
+import com.linecorp.decaton.processor.Property;
+import com.linecorp.decaton.processor.StaticPropertySupplier;
+
+public class SubscriptionBuilderTest {
+    private static final String TOPIC = "topic";
+
+    private static SubscriptionBuilder builder() {
+        Properties consumerConfig = new Properties();
+        consumerConfig.setProperty(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+        consumerConfig.setProperty(ConsumerConfig.GROUP_ID_CONFIG, "group");
+        return SubscriptionBuilder.newBuilder("subscription")
+                                  .consumerConfig(consumerConfig)
+                                  .processorsBuilder(ProcessorsBuilder.consuming(
+                                          TOPIC, (Deserializer<byte[]>) bytes -> bytes));
+    }
+
+    @Test
+    public void testBuild() {
+        ProcessorSubscription subscription = builder().enableRetry(RetryConfig.builder().build()).build();
+
+        assertEquals(new HashSet<>(Arrays.asList(TOPIC, TOPIC + "-retry")), subscription.topics());
+        assertNull(subscription.retrySubscription());
+    }
+
+    @Test
+    public void testIsolateRetry() {
+        ProcessorSubscription subscription =
+                builder().enableRetry(RetryConfig.builder().build())
+                         .properties(StaticPropertySupplier.of(
+                                 Property.ofStatic(ProcessorProperties.CONFIG_PARTITION_CONCURRENCY, 8),
+                                 Property.ofStatic(ProcessorProperties.CONFIG_MAX_PENDING_RECORDS, 100)))
+                         .isolateRetry(StaticPropertySupplier.of(
+                                 Property.ofStatic(ProcessorProperties.CONFIG_PARTITION_CONCURRENCY, 2)))
+                         .build();
+        ProcessorSubscription retrySubscription = subscription.retrySubscription();
+
+        assertEquals(Collections.singleton(TOPIC), subscription.topics());
+        assertEquals(Collections.singleton(TOPIC + "-retry"), retrySubscription.topics());
+        assertEquals("subscription-retry", retrySubscription.scope().subscriptionId());
+
+        ProcessorProperties retryProps = retrySubscription.scope().props();
+        assertEquals(2, retryProps.get(ProcessorProperties.CONFIG_PARTITION_CONCURRENCY).value().intValue());
+        assertEquals(100, retryProps.get(ProcessorProperties.CONFIG_MAX_PENDING_RECORDS).value().intValue());
+        assertEquals(8, subscription.scope().props()
+                                    .get(ProcessorProperties.CONFIG_PARTITION_CONCURRENCY).value().intValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIsolateRetryWithoutRetry() {
+        builder().isolateRetry().build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJitter() {
+        builder().enableRetry(RetryConfig.builder().backoff(Duration.ofSeconds(1)).jitter(1.5).build()).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxBackoff() {
+        builder().enableRetry(RetryConfig.builder()
+                                         .backoff(Duration.ofSeconds(10))
+                                         .maxBackoff(Duration.ofSeconds(1))
+                                         .build())
+                 .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTierThresholds() {
+        builder().enableRetry(RetryConfig.builder()
+                                         .backoff(Duration.ofSeconds(1))
+                                         .tierThresholds(Arrays.asList(Duration.ofMinutes(10),
+                                                                       Duration.ofMinutes(1)))
+                                         .build())
+                 .build();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import com.linecorp.decaton.protocol.Decaton.DecatonTaskRequest;
+import com.linecorp.decaton.protocol.Decaton.TaskMetadataProto;
+
+public class TaskMetadataPeekerTest {
+    @Test
+    public void testScheduledTimeMillis() {
+        DecatonTaskRequest request =
+                DecatonTaskRequest.newBuilder()
+                                  .setSerializedTask(ByteString.copyFromUtf8("task"))
+                                  .setMetadata(TaskMetadataProto.newBuilder()
+                                                                .setRetryCount(3)
+                                                                .setScheduledTimeMillis(12345L))
+                                  .build();
+        assertEquals(12345L, TaskMetadataPeeker.scheduledTimeMillis(request.toByteArray()));
+    }
+
+    @Test
+    public void testMetadataAfterTask() {
+        // Fields may come in any order
+        byte[] task = DecatonTaskRequest.newBuilder()
+                                        .setSerializedTask(ByteString.copyFromUtf8("task"))
+                                        .build().toByteArray();
+        byte[] metadata = DecatonTaskRequest.newBuilder()
+                                            .setMetadata(TaskMetadataProto.newBuilder()
+                                                                          .setScheduledTimeMillis(12345L))
+                                            .build().toByteArray();
+        byte[] bytes = new byte[task.length + metadata.length];
+        System.arraycopy(task, 0, bytes, 0, task.length);
+        System.arraycopy(metadata, 0, bytes, task.length, metadata.length);
+        assertEquals(12345L, TaskMetadataPeeker.scheduledTimeMillis(bytes));
+    }
+
+    @Test
+    public void testInvalidBytes() {
+        assertEquals(0L, TaskMetadataPeeker.scheduledTimeMillis(null));
+        assertEquals(0L, TaskMetadataPeeker.scheduledTimeMillis(new byte[0]));
+        assertEquals(0L, TaskMetadataPeeker.scheduledTimeMillis(new byte[] { 0x0a, 0x7f }));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TokenStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void assertSharedBucket(TokenStore store1, TokenStore store2) {
+        // 10 tokens per second, so tokens leased next are refilled a second later
+        assertEquals(0L, store1.lease("bucket", 10L, 10));
+        long waitMicros = store2.lease("bucket", 10L, 10);
+        assertTrue(waitMicros > TimeUnit.MILLISECONDS.toMicros(500L));
+        // Other buckets are independent
+        assertEquals(0L, store2.lease("bucket2", 10L, 10));
+    }
+
+    private static void assertReleasedTokens(TokenStore store) {
+        assertEquals(0L, store.lease("bucket3", 10L, 10));
+        assertTrue(store.lease("bucket3", 10L, 10) > 0L);
+        // Returning unused tokens makes them available to others again
+        store.release("bucket3", 10L, 20);
+        assertEquals(0L, store.lease("bucket3", 10L, 10));
+    }
+
+    @Test(timeout = 5000)
+    public void testInMemoryTokenStore() {
+        TokenStore store = new InMemoryTokenStore();
+        assertSharedBucket(store, store);
+        assertReleasedTokens(store);
+    }
+
+    @Test(timeout = 5000)
+    public void testFileTokenStore() throws Exception {
+        // Simulating multiple processes sharing the same directory
+        try (FileTokenStore store1 = new FileTokenStore(folder.getRoot().toPath());
+             FileTokenStore store2 = new FileTokenStore(folder.getRoot().toPath())) {
+            assertSharedBucket(store1, store2);
+            assertReleasedTokens(store1);
+        }
+    }
+
+    @Test
+    public void testFileTokenStoreFileName() {
+        assertEquals("my-subscription.bucket", FileTokenStore.fileName("my-subscription"));
+        assertEquals("..%2Fetc%2Fpasswd.bucket", FileTokenStore.fileName("../etc/passwd"));
+        assertNotEquals(FileTokenStore.fileName("a/b"), FileTokenStore.fileName("a_b"));
+    }
+}
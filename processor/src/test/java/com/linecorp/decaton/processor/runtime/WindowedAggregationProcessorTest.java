@@ -0,0 +1,192 @@
+/*
+ * Copyright 2020 LINE Corporation
+ *
+ * LINE Corporation licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.linecorp.decaton.processor.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import com.linecorp.decaton.processor.DecatonProcessor;
+import com.linecorp.decaton.processor.DecatonTask;
+import com.linecorp.decaton.processor.DeferredCompletion;
+import com.linecorp.decaton.processor.ProcessingContext;
+import com.linecorp.decaton.processor.TaskMetadata;
+import com.linecorp.decaton.processor.runtime.WindowedAggregationProcessor.Aggregator;
+import com.linecorp.decaton.processor.runtime.WindowedAggregationProcessor.TimeWindow;
+import com.linecorp.decaton.protocol.Sample.HelloTask;
+
+public class WindowedAggregationProcessorTest {
+    @Rule
+    public MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock
+    private DecatonProcessor<HelloTask> downstream;
+
+    // Sums ages of tasks, and emits the window start as the name
+    private static final Aggregator<HelloTask, Long> AGGREGATOR = new Aggregator<HelloTask, Long>() {
+        @Override
+        public Long initialize() {
+            return 0L;
+        }
+
+        @Override
+        public Long aggregate(Long aggregate, HelloTask task) {
+            return aggregate + task.getAge();
+        }
+
+        @Override
+        public HelloTask result(String key, TimeWindow window, Long aggregate) {
+            return HelloTask.newBuilder()
+                            .setName(key + '@' + window.startMillis())
+                            .setAge(aggregate.intValue())
+                            .build();
+        }
+    };
+
+    private static class NoopDeferredCompletion implements DeferredCompletion {
+        @Override
+        public void complete() {
+            // noop
+        }
+    }
+
+    private final AtomicLong clock = new AtomicLong();
+    private final List<HelloTask> results = new ArrayList<>();
+    private final List<CompletableFuture<Void>> resultFutures = new ArrayList<>();
+
+    private WindowedAggregationProcessor<HelloTask, Long> processor(long sizeMillis, long advanceMillis) {
+        return new WindowedAggregationProcessor<>(sizeMillis, advanceMillis, 0, AGGREGATOR, clock::get,
+                                                  mock(ScheduledThreadPoolExecutor.class));
+    }
+
+    private ProcessingContext<HelloTask> put(WindowedAggregationProcessor<HelloTask, Long> processor,
+                                             String key, int age, long timestamp) throws InterruptedException {
+        // Can't use mock() for this to keep completeWith default method functioning
+        DeferredCompletion completion = spy(new NoopDeferredCompletion());
+        HelloTask taskData = HelloTask.newBuilder().setName(key).setAge(age).build();
+        DecatonTask<HelloTask> task = new DecatonTask<>(
+                TaskMetadata.builder().timestampMillis(timestamp).build(), taskData, taskData.toByteArray());
+        TaskRequest request = new TaskRequest(new TopicPartition("topic", 1), 1, null, key, null);
+        ProcessingContext<HelloTask> context =
+                spy(new ProcessingContextImpl<>("subscription", request, task, completion,
+                                                Collections.singletonList(downstream), null));
+        doAnswer(invocation -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            results.add(invocation.getArgument(0));
+            resultFutures.add(future);
+            return future;
+        }).when(context).push(any());
+
+        processor.process(context, taskData);
+        return context;
+    }
+
+    private static HelloTask result(String name, int age) {
+        return HelloTask.newBuilder().setName(name).setAge(age).build();
+    }
+
+    @Before
+    public void setUp() {
+        clock.set(100);
+    }
+
+    @Test(timeout = 5000)
+    public void testTumblingWindows() throws Exception {
+        WindowedAggregationProcessor<HelloTask, Long> processor = processor(1000, 1000);
+        ProcessingContext<HelloTask> a1 = put(processor, "a", 1, 100);
+        ProcessingContext<HelloTask> a2 = put(processor, "a", 2, 500);
+        ProcessingContext<HelloTask> b1 = put(processor, "b", 10, 900);
+        ProcessingContext<HelloTask> a3 = put(processor, "a", 3, 1200);
+
+        clock.set(999);
+        processor.closeExpired();
+        assertEquals(0, results.size());
+
+        clock.set(1000);
+        processor.closeExpired();
+        results.sort((t1, t2) -> t1.getName().compareTo(t2.getName()));
+        assertEquals(result("a@0", 3), results.get(0));
+        assertEquals(result("b@0", 10), results.get(1));
+        assertEquals(2, results.size());
+
+        DeferredCompletion a1Completion = a1.deferCompletion();
+        verify(a1Completion, never()).complete();
+        resultFutures.forEach(future -> future.complete(null));
+        verify(a1Completion, times(1)).complete();
+        verify(a2.deferCompletion(), times(1)).complete();
+        verify(b1.deferCompletion(), times(1)).complete();
+        verify(a3.deferCompletion(), never()).complete();
+
+        clock.set(2000);
+        processor.closeExpired();
+        assertEquals(result("a@1000", 3), results.get(2));
+    }
+
+    @Test(timeout = 5000)
+    public void testHoppingWindows() throws Exception {
+        WindowedAggregationProcessor<HelloTask, Long> processor = processor(1000, 500);
+        ProcessingContext<HelloTask> a1 = put(processor, "a", 1, 700);
+        ProcessingContext<HelloTask> a2 = put(processor, "a", 2, 1200);
+
+        clock.set(1000);
+        processor.closeExpired();
+        assertEquals(Collections.singletonList(result("a@0", 1)), results);
+        resultFutures.get(0).complete(null);
+        // Still belongs to the window [500, 1500)
+        verify(a1.deferCompletion(), never()).complete();
+
+        clock.set(1500);
+        processor.closeExpired();
+        assertEquals(result("a@500", 3), results.get(1));
+        resultFutures.get(1).complete(null);
+        verify(a1.deferCompletion(), times(1)).complete();
+        verify(a2.deferCompletion(), never()).complete();
+    }
+
+    @Test(timeout = 5000)
+    public void testLateTask() throws Exception {
+        WindowedAggregationProcessor<HelloTask, Long> processor = processor(1000, 1000);
+        clock.set(1000);
+        ProcessingContext<HelloTask> late = put(processor, "a", 1, 999);
+        // Not deferred, so completes as soon as the processing returns
+        verify(late, never()).deferCompletion();
+
+        clock.set(3000);
+        processor.closeExpired();
+        assertEquals(0, results.size());
+    }
+}